@@ -8,32 +8,32 @@
 */
 
 /* 
- * This project is distributed under the MIT license below.
+ * This project is distributed under the MIT license below.
  * The project links to the TJInfoExtractor and gate libraries distributed under the 
  * GNU Lesser General Public License, Version 3, June 2007
  * (see https://gate.ac.uk/gate/licence.html)
- *
-The MIT License (MIT)
-
-Copyright (c) <year> <copyright holders>
-
-Permission is hereby granted, free of charge, to any person obtaining a copy
-of this software and associated documentation files (the "Software"), to deal
-in the Software without restriction, including without limitation the rights
-to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
-copies of the Software, and to permit persons to whom the Software is
-furnished to do so, subject to the following conditions:
-
-The above copyright notice and this permission notice shall be included in
-all copies or substantial portions of the Software.
-
-THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
-IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
-FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
-AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
-LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
-OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
-THE SOFTWARE.
+ *
+The MIT License (MIT)
+
+Copyright (c) <year> <copyright holders>
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
 
  * 
  */
@@ -45,13 +45,43 @@ compile with:
 javac -classpath '.:./dependencies/*' TJBatchExtractor.java
 
 run with:
-java -classpath '.:./dependencies/*' TJBatchExtractor [num_threads] [textfile] [outfile] [chunk_size]
+java -classpath '.:./dependencies/*' TJBatchExtractor [num_threads] [textfile] [outfile] [outfile2] [chunk_size] [options]
+
+options:
+  --pipelines=N   number of duplicated applications shared by the threads (default num_threads)
+  --batch=N       number of records a thread takes from the queue at once (default 1)
+  --columns=FILE  output column definitions (default TJ_Columns.def)
+  --format=F      output format: csv (default), rfc4180, jsonl or binary
+  --gzip          gzip compress both output files
+  --mmap          memory map the input and let each thread read its own ranges of it
+  --ranges=N      number of ranges the input is split into with --mmap (default 4*num_threads)
+  --checkpoint=N  save a checkpoint every N records (default 10000, 0 for none)
+  --resume        continue an interrupted run from its last checkpoint
+  --cache=FILE    reuse the output of records seen before, kept in FILE across runs until
+                  the format, the columns or any file of the application change
+  --cache-size=N  number of cached results also kept in memory (default 10000)
+  --flags         add a Flags column saying whether the record went over budget or failed
+  --budget=MS     time a record may spend in the application before it is cut short (default no limit)
+  --max-instances=N  active FSM instances a JAPE Plus phase may have before it is skipped (default no limit)
+  --slow-log=FILE where records that went over budget are logged (default outfile.slow)
+  --dead-letter=FILE  where records that failed are logged with the error (default outfile.failed)
+  --profile       report latency percentiles of every stage and PR at the end of the run
+  --profile-interval=S  also report them every S seconds during the run (default 60, 0 for never)
+  --jape-profile=FILE  write the work of each JAPE Plus phase and rule to FILE as CSV
+  --snapshot=FILE restore the initialised application from FILE, or write it there if it is
+                  missing or out of date (default TJInfoExtractor/application.snapshot)
+
+or, to keep the application loaded and take records over HTTP:
+java -classpath '.:./dependencies/*' TJBatchExtractor [num_threads] --serve[=PORT] [options]
+
+  --serve=PORT    POST records to http://localhost:PORT/extract, one per line (default port 8080)
+  --bind=HOST     the address to listen on (default the loopback address)
+  --warmup=FILE   run the lines of FILE through the application before taking requests
+  the --pipelines, --columns, --format, --cache, --flags, --budget, --max-instances, --profile,
+  --jape-profile and --snapshot options apply as above; slow and failed records go to server.slow and server.failed
 
 */
 
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
 
 import gate.Document;
 import gate.Corpus;
@@ -63,16 +93,48 @@ import gate.Factory;
 import gate.util.*;
 import gate.util.persistence.PersistenceManager;
 
+import tjbatch.Checkpoint;
+import tjbatch.ColumnSchema;
+import tjbatch.ControllerPool;
+import tjbatch.HtmlPreProcessor;
+import tjbatch.LineReader;
+import tjbatch.MappedInput;
+import tjbatch.Options;
+import tjbatch.OrderedWriter;
+import tjbatch.PartFiles;
+import tjbatch.Pipeline;
+import tjbatch.Preprocessed;
+import tjbatch.Profile;
+import tjbatch.RangeJob;
+import tjbatch.ResultCache;
+import tjbatch.SideFile;
+import tjbatch.Snapshot;
+import tjbatch.RecyclableDocument;
+import tjbatch.Record;
+import tjbatch.RowEncoder;
+import tjbatch.RowExtractor;
+import tjbatch.Server;
+import tjbatch.Sink;
+
 import java.util.Set;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.FileOutputStream;
@@ -83,497 +145,455 @@ class TJBatchExtractor {
 
   public static void main(String[] args) throws Exception {    
 
-    int num_threads = Integer.parseInt(args[0]);
-    int chunk_size = 100000;
-    int total_lines_read = 0;
-    if( args.length>4 ) chunk_size = Integer.parseInt(args[4]);
+    Options opts = new Options(args);
+    int num_threads = opts.getInt(0, 1);
+    // maximum number of records held in memory (queued, in flight or
+    // waiting to be written) at any one time
+    int chunk_size = opts.getInt(4, 1000);
+    // number of duplicated applications shared by the worker threads, and
+    // number of records a worker takes from the queue at once
+    int num_pipelines = opts.getInt("pipelines", num_threads);
+    int batch_size = opts.getInt("batch", 1);
+    // the output columns
+    ColumnSchema columns = ColumnSchema.load(new File(opts.get("columns", "TJ_Columns.def")));
+    if(opts.has("flags")) columns.addFlagsColumn();
+    RowExtractor extractor = columns.compile();
+    // how the rows and texts are written
+    String format = opts.get("format", "csv");
+    boolean gzip = opts.has("gzip");
+    RowEncoder encoder = RowEncoder.create(format, columns);
+    // checkpoints, and the settings a run can only be resumed with
+    int interval = opts.getInt("checkpoint", 10000);
+    boolean resume = opts.has("resume");
+    File appFile = new File("TJInfoExtractor/application.xgapp");
+    File snapshotFile = new File(opts.get("snapshot", "TJInfoExtractor/application.snapshot"));
+    // the output of records seen before, by the hash of their text; the
+    // cache is started again when the application changes
+    ResultCache cache = null;
+    if(opts.has("cache")){
+      String fingerprint = "format=" + format + " flags=" + opts.has("flags") + "\n"
+          + new String(Files.readAllBytes(new File(opts.get("columns", "TJ_Columns.def")).toPath()), "UTF-8")
+          + "\napplication=" + new Snapshot(snapshotFile, appFile.getParentFile()).applicationDigest();
+      cache = new ResultCache(new File(opts.get("cache", null)), fingerprint, opts.getInt("cache-size", 10000));
+    }
     // initialise GATE - this must be done before calling any GATE APIs
     Gate.init();    
 
-    CorpusController application = (CorpusController)PersistenceManager.loadObjectFromFile(new File("TJInfoExtractor/application.xgapp"));
+    ControllerPool applicationPool = null;
+    // an image of the loaded application restores in a fraction of the time
+    Snapshot snapshot = null;
+    if(opts.has("snapshot")){
+      snapshot = new Snapshot(snapshotFile, appFile.getParentFile());
+      long start = System.currentTimeMillis();
+      List<CorpusController> restored = null;
+      try{
+        restored = snapshot.read(num_pipelines);
+      }catch(Exception e){
+        System.out.println("Could not restore " + snapshot.file() + ": " + e);
+      }
+      if(restored != null){
+        applicationPool = new ControllerPool(restored);
+        System.out.println("Restored " + restored.size() + " pipelines from " + snapshot.file()
+            + " in " + (System.currentTimeMillis() - start) + "ms");
+      }
+    }
+    if(applicationPool == null){
+      CorpusController application = (CorpusController)PersistenceManager.loadObjectFromFile(appFile);
+      if(snapshot != null){
+        snapshot.write(application);
+        System.out.println("Wrote " + snapshot.file());
+      }
+      applicationPool = new ControllerPool(application, num_pipelines);
+    }
+    // records that take too long are cut short and flagged
+    applicationPool.setBudget(opts.getLong("budget", 0), opts.getInt("max-instances", 0));
+    // where the time goes, if asked
+    Profile profile = null;
+    if(opts.has("profile")){
+      profile = applicationPool.profile();
+      int profile_interval = opts.getInt("profile-interval", 60);
+      if(profile_interval>0) profile.startReporting(profile_interval);
+    }
+    String japeProfile = opts.get("jape-profile", null);
+    if(japeProfile != null) applicationPool.profilePhases();
+
+    if(opts.has("serve")){
+      Serve(opts, num_threads, applicationPool, cache, profile, japeProfile, columns, extractor, format);
+      return;
+    }
 
-    List<CorpusController> applicationList = new ArrayList<CorpusController>();    
-    for(int i=0;i<num_threads;++i) applicationList.add( (CorpusController)Factory.duplicate(application) );
+    File infile = new File(opts.get(1, null));
+    String settings = "input=" + infile.getAbsolutePath() + " size=" + infile.length()
+        + " columns=" + opts.get("columns", "TJ_Columns.def") + " flags=" + opts.has("flags") + " format=" + format + " gzip=" + gzip;
+    String outfile = opts.get(2, "Out.csv");
+    String outfile2 = opts.get(3, "Out.txt");
+    SideFile slowLog = new SideFile(new File(opts.get("slow-log", outfile + ".slow")), resume);
+    SideFile deadLetters = new SideFile(new File(opts.get("dead-letter", outfile + ".failed")), resume);
+    List<ExtractorThread> pool = new ArrayList<ExtractorThread>();
+    long total_lines_read = 0;
 
-    String outfile = "Out.csv";
-    if( args.length>2 ) outfile = args[2];
-    PrintWriter writer = new PrintWriter(outfile,"UTF-8");
-    writer.println("Perspective_1st,Perspective_3rd,Name,Age,Cost,Height_ft,Height_in,Weight,Cup,Chest,Waist,Hip,Ethnicity,SkinColor,EyeColor,HairColor,Restriction_Type,Restriction_Ethnicity,Restriction_Age,PhoneNumber,AreaCode_State,AreaCode_Cities,Email,Url,Media");
-    
-    outfile = "Out.txt";
-    if( args.length>3 ) outfile = args[3];
-    PrintWriter writer2 = new PrintWriter(outfile,"UTF-8");
-    
     // load the document
-    System.out.println("Reading document " + args[1] + "...");
-    BufferedReader br = new BufferedReader(new FileReader(args[1]));
-    Boolean done = false;
-    
-    while( !done ){
-      List<String> FileLines = new ArrayList<String>();
-      // Create container for results
-      List<String> AnnotationResults = new ArrayList<String>();  
-      List<String> AnnotationText = new ArrayList<String>();  
-	      
-      int LinesRead = 0;
-      String fileline;
-      // read the file
-      while( true ){
-	if(LinesRead >= chunk_size) break;
-	if((fileline = br.readLine()) == null){
-	  done = true;
-	  break;
-	}
-	FileLines.add(fileline);
-	LinesRead++;
-	total_lines_read++;
+    System.out.println("Reading document " + opts.get(1, null) + "...");
+    if(opts.has("mmap")){
+      // every worker claims whole ranges of the mapped file, one at a time,
+      // and writes each of them to part files of its own; the parts are
+      // joined in order at the end. Each range has its own checkpoint.
+      MappedInput input = new MappedInput(infile, opts.getInt("ranges", 4*num_threads));
+      PartFiles rowParts = new PartFiles(new File(outfile), gzip);
+      PartFiles textParts = new PartFiles(new File(outfile2), gzip);
+      RangeJob job = new RangeJob(input, rowParts, textParts, settings, interval, resume);
+      for(int i=0;i<num_threads;++i) pool.add( new ExtractorThread(job, applicationPool, cache, slowLog, deadLetters, profile, extractor, RowEncoder.create(format, columns), i) );
+      for(int i=0;i<num_threads;++i) pool.get(i).t.join();
+      input.close();
+      if(job.fatal() != null) throw job.fatal();
+      for(int i=0;i<num_threads;++i) if(pool.get(i).error != null) throw pool.get(i).error;
+      job.finish(encoder.header(), encoder.textHeader());
+      total_lines_read = job.processed();
+    } else {
+      File ckptFile = Checkpoint.file(new File(outfile));
+      Checkpoint ckpt = resume ? Checkpoint.load(ckptFile) : null;
+      if(resume && ckpt == null) System.out.println("No checkpoint found, starting from the beginning");
+      Sink writer, writer2;
+      if(ckpt != null){
+        // drop whatever was written after the checkpoint and carry on from there
+        ckpt.check(settings, ckptFile);
+        Sink.truncate(new File(outfile), ckpt.rows);
+        Sink.truncate(new File(outfile2), ckpt.text);
+        writer = new Sink(new File(outfile), gzip, true);
+        writer2 = new Sink(new File(outfile2), gzip, true);
+        total_lines_read = ckpt.records;
+        System.out.println("Resuming after line " + total_lines_read + "...");
+      } else {
+        ckpt = new Checkpoint(settings);
+        writer = new Sink(new File(outfile), gzip);
+        writer.write(encoder.header());
+        writer2 = new Sink(new File(outfile2), gzip);
+        writer2.write(encoder.textHeader());
       }
 
-      //launch threads to process each chunk    
-      int step = (int) Math.ceil(((double) FileLines.size())/((double) num_threads));
-      List<ExtractorThread> pool = new ArrayList<ExtractorThread>();
-      for(int i=0;i<num_threads;++i){
-	pool.add( new ExtractorThread(
-	    FileLines.subList(i*step,Math.min((i+1)*step,FileLines.size())),
-	    applicationList.get(i),
-	    i) );       
-      }
-      for(int i=0;i<num_threads;++i){ 
-	pool.get(i).t.join();
-	if(pool.get(i).results!=null) AnnotationResults.addAll(pool.get(i).results);
-	if(pool.get(i).text!=null) AnnotationText.addAll(pool.get(i).text);
+      // the pipeline: this thread reads lines into a bounded queue, the
+      // workers take records from the queue as they become idle, borrowing
+      // an application from the pool for each record, and the writer puts
+      // the finished records back into input order
+      OrderedWriter out = new OrderedWriter(writer, writer2, chunk_size, total_lines_read);
+      out.checkpoint(ckptFile, ckpt, interval);
+      BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(chunk_size);
+      for(int i=0;i<num_threads;++i) pool.add( new ExtractorThread(queue, out, applicationPool, cache, slowLog, deadLetters, profile, extractor, RowEncoder.create(format, columns), batch_size, i) );
+
+      LineReader br = new LineReader(infile, Charset.defaultCharset(), ckpt.offset);
+      String fileline;
+      // a worker that hits an error it cannot recover from aborts the run
+      while(out.fatal() == null && (fileline = br.readLine()) != null){
+        out.reserve();
+        Record rec = new Record(total_lines_read++, fileline);
+        rec.end = br.offset();
+        queue.put(rec);
       }
-      
-      for(String l : AnnotationResults) writer.println(l);        
-      for(String l : AnnotationText) writer2.println(l);
-      System.out.println("Processed "+total_lines_read+" lines...");
+      br.close();
+      queue.put(Record.END);
+
+      for(int i=0;i<num_threads;++i) pool.get(i).t.join();
+      out.finish(total_lines_read);
+      out.t.join();
+      writer.close();
+      writer2.close();
+      if(out.fatal() != null) throw out.fatal();
+      if(out.error() != null) throw out.error();
+      ckptFile.delete();
+    }
+    System.out.println("Processed "+total_lines_read+" lines...");
+    long fallbacks = 0;
+    for(int i=0;i<num_threads;++i) fallbacks += pool.get(i).preprocessor.fallbacks();
+    if(fallbacks>0) System.out.println(fallbacks+" lines had html that needed the full parser");
+    slowLog.close();
+    if(slowLog.entries()>0) System.out.println(slowLog.entries()+" lines went over budget, see "+slowLog.file());
+    deadLetters.close();
+    if(deadLetters.entries()>0) System.out.println(deadLetters.entries()+" lines failed, see "+deadLetters.file());
+    if(cache != null){
+      cache.close();
+      System.out.println("Cache: "+cache.hits()+" hits ("+cache.diskHits()+" from disk), "+cache.misses()+" misses");
+    }
+    if(profile != null){
+      profile.stop();
+      System.out.println("Time per stage:");
+      profile.report(System.out);
+    }
+    if(japeProfile != null){
+      applicationPool.writePhaseProfile(new File(japeProfile));
+      System.out.println("JAPE Plus phases profiled in "+japeProfile);
     }
-    
-    br.close();
-    writer.close();
-    writer2.close();
+    applicationPool.cleanup();
     System.out.println("All done");
   } 
+
+  // The server mode: the pipelines are loaded once and records come in over
+  // HTTP, a line or a batch at a time, until the process is stopped.
+  static void Serve(Options opts, int num_threads, final ControllerPool applicationPool, final ResultCache cache,
+      final Profile profile, final String japeProfile, ColumnSchema columns, final RowExtractor extractor,
+      final String format) throws Exception {
+    final SideFile slowLog = new SideFile(new File(opts.get("slow-log", "server.slow")), true);
+    final SideFile deadLetters = new SideFile(new File(opts.get("dead-letter", "server.failed")), true);
+    InetAddress host = opts.has("bind") ? InetAddress.getByName(opts.get("bind", null)) : InetAddress.getLoopbackAddress();
+    final Server server = new Server(new InetSocketAddress(host, opts.getInt("serve", 8080)), num_threads, columns, format,
+        new Server.WorkerFactory(){
+          public Server.Worker create(String f, RowEncoder e){
+            // the cache holds rows in the format of the command line only
+            return new ExtractorThread(applicationPool, f.equals(format) ? cache : null, slowLog, deadLetters, profile, extractor, e);
+          }
+        }, profile, applicationPool.size());
+
+    if(opts.has("warmup")){
+      List<String> lines = new ArrayList<String>();
+      LineReader br = new LineReader(new File(opts.get("warmup", null)), Charset.defaultCharset(), 0);
+      String fileline;
+      while((fileline = br.readLine()) != null) lines.add(fileline);
+      br.close();
+      long start = System.currentTimeMillis();
+      server.warmUp(lines);
+      System.out.println("Warmed up on "+lines.size()+" lines in "+(System.currentTimeMillis()-start)+"ms");
+    }
+
+    // stopping the process stops the server and releases everything as
+    // the end of a batch run does
+    Runtime.getRuntime().addShutdownHook(new Thread("Shutdown"){
+      public void run(){
+        try {
+          server.stop();
+          slowLog.close();
+          deadLetters.close();
+          if(cache != null) cache.close();
+          if(profile != null){
+            profile.stop();
+            System.out.println("Time per stage:");
+            profile.report(System.out);
+          }
+          if(japeProfile != null) applicationPool.writePhaseProfile(new File(japeProfile));
+        } catch (Exception e){
+          System.out.println("Shutdown caught exception " + e);
+        }
+        applicationPool.cleanup();
+        System.out.println("All done");
+      }
+    });
+    server.start();
+    System.out.println("Serving on http://"+server.address().getHostString()+":"+server.address().getPort()+"/extract");
+  }
 }  
 
-class ExtractorThread implements Runnable {
+class ExtractorThread implements Runnable, Server.Worker {
    Thread t;
-   List<String> recs;
-   List<String> results;
-   List<String> text;
-   CorpusController application;
+   BlockingQueue<Record> queue;
+   OrderedWriter writer;
+   RangeJob job;
+   IOException error;
+   ControllerPool applications;
+   ResultCache cache;
+   SideFile slowLog;
+   SideFile deadLetters;
+   Profile profile;
+   Profile.Times times;
+   MessageDigest digest = ResultCache.digest();
+   RowExtractor extractor;
+   RowExtractor.Scratch scratch;
+   RowEncoder encoder;
+   HtmlPreProcessor preprocessor = new HtmlPreProcessor();
+   RecyclableDocument document;
+   int batchSize;
    Integer threadID;
 
-   ExtractorThread(List<String> r,CorpusController a,Integer id) {
+   ExtractorThread(BlockingQueue<Record> q,OrderedWriter w,ControllerPool a,ResultCache c,SideFile s,SideFile d,Profile p,RowExtractor x,RowEncoder e,int batch,Integer id) {
       // Create a new thread
       t = new Thread(this, "Thread"+id);
-      recs = r;
-      application = a;
+      queue = q;
+      writer = w;
+      applications = a;
+      cache = c;
+      slowLog = s;
+      deadLetters = d;
+      profile = p;
+      if(p != null) times = p.newTimes();
+      extractor = x;
+      scratch = x.newScratch();
+      encoder = e;
+      batchSize = batch;
       threadID = id;
-      results = null;
-      text = null;
       t.start(); // Start the thread
    }
 
-   class RetObj{
-      List<String> text;
-      List<String> results;
-      RetObj(List<String> r,List<String> t){
-        text = t;
-        results = r;
-      }
+   ExtractorThread(RangeJob j,ControllerPool a,ResultCache c,SideFile s,SideFile d,Profile p,RowExtractor x,RowEncoder e,Integer id) {
+      t = new Thread(this, "Thread"+id);
+      job = j;
+      applications = a;
+      cache = c;
+      slowLog = s;
+      deadLetters = d;
+      profile = p;
+      if(p != null) times = p.newTimes();
+      extractor = x;
+      scratch = x.newScratch();
+      encoder = e;
+      threadID = id;
+      t.start();
    }
 
-   public static boolean isInteger(String s) {
-      try { 
-        Integer.parseInt(s); 
-      } catch(NumberFormatException e) { 
-        return false; 
-      }
-      return true;
-    }   
+   // A worker of the server, which runs on the server's threads rather than one of its own
+   ExtractorThread(ControllerPool a,ResultCache c,SideFile s,SideFile d,Profile p,RowExtractor x,RowEncoder e) {
+      applications = a;
+      cache = c;
+      slowLog = s;
+      deadLetters = d;
+      profile = p;
+      if(p != null) times = p.newTimes();
+      extractor = x;
+      scratch = x.newScratch();
+      encoder = e;
+   }
+
+   public void process(Record rec) {
+      IsolateRecord(rec);
+   }
 
    // This is the entry point for the thread.
    public void run() {
      //System.out.println("Launching thread " + this.threadID);
+     if(job != null){
+       runRanges();
+       return;
+     }
+     List<Record> batch = new ArrayList<Record>(batchSize);
      try {
-         RetObj r = ProcessRecords();         
-         results = r.results;
-         text = r.text;
+       boolean done = false;
+       while(!done){
+         batch.clear();
+         batch.add(queue.take());
+         if(batchSize>1) queue.drainTo(batch, batchSize-1);
+         for(Record r : batch){
+           if(r == Record.END){
+             // leave the marker in the queue for the other workers
+             queue.put(Record.END);
+             done = true;
+             break;
+           }
+           try {
+             // once the run is aborted the records left are only passed on
+             if(writer.fatal() == null) IsolateRecord(r);
+           } catch (Error e) {
+             writer.abort(e);
+           } finally {
+             // always hand the record on, the writer waits for every sequence number
+             writer.complete(r);
+           }
+         }
+       }
      } catch (InterruptedException e) {
-         System.out.println("Child interrupted.");
-     } catch (Exception e){
-          System.out.println("Child caught exception " + e);
+       System.out.println("Child interrupted.");
      }
      //System.out.println("Thread " + this.threadID + " finished.");
    }
 
-   private RetObj ProcessRecords() throws Exception {    
-    // Create a Corpus to use.  We recycle the same Corpus object for each
-    // iteration.
-    Corpus corpus = Factory.newCorpus("BatchProcessApp Corpus");
-    this.application.setCorpus(corpus);
-
-    // object for returned data
-    List<String> processedlines = new ArrayList<String>();  
-    List<String> processedText = new ArrayList<String>();
-    
-    for(int record_num=0;record_num<this.recs.size();++record_num){
-      /*if( record_num % Math.ceil(((double) this.recs.size())/10.0) == 0)
-           System.out.println("Thread " + this.threadID + ": "+ ((int) ((double)record_num)/((double) this.recs.size())*100.0 ) +"% complete.");
-      */
-
-      // first, split title from body and get embedded age in title..
-      String title_age = "-1";
-      String sep = "..THIS IS MY SEPARATION STRING..";
-      String title = "";
-      String body = this.recs.get(record_num);
-      Boolean trimmed = false;
-      int age_end = body.indexOf(",>           ");
-      if(age_end>=0 && age_end < body.length()){
-        int age_start = body.lastIndexOf("-",age_end);
-        if(age_start>=0 && age_start<age_end){
-          title_age = body.substring(age_start+1,age_end).trim();
-          if( !isInteger(title_age) ) title_age = "-1";
-          else {
-            title = body.substring(0,age_start);
-            body = body.substring(age_end+2,body.length());
-            body = title + sep + body;
-            trimmed = true;
-          }
-        }
-        if(!trimmed){
-           title = body.substring(0,age_end);
-           body = body.substring(age_end+2,body.length());
-           body = title + sep + body;
-           trimmed = true;
-        }
-      }
-      // --------------------
-
-      org.jsoup.nodes.Document htmldoc = Jsoup.parseBodyFragment(body.replaceAll("COMMA_GOES_HERE",","));
-      Elements links = htmldoc.select("a[href]");
-      Elements media = htmldoc.select("[src]");
-      Elements imports = htmldoc.select("link[href]");
-
-      processedText.add(htmldoc.text().replace(sep," "));
-      Document doc = Factory.newDocument(htmldoc.text());
-
-      // put the document in the corpus
-      corpus.add(doc);
-      
-      // run the application
-      this.application.execute();
-
-      // remove the document from the corpus again
-      corpus.clear();
-
-      //extract annotations
-      String line = "";
-      AnnotationSet Annots = doc.getAnnotations("");                  
-
-      Integer FirstPersonCount=0, ThirdPersonCount=0;
-      AnnotationSet FirstPerson = Annots.get("FirstPerson");
-      if( FirstPerson != null ) FirstPersonCount = FirstPerson.size();
-      AnnotationSet ThirdPerson = Annots.get("ThirdPerson");
-      if( ThirdPerson != null ) ThirdPersonCount = ThirdPerson.size();
-      line += FirstPersonCount.toString()+","+ThirdPersonCount.toString()+",";
-
-
-      AnnotationSet Names = Annots.get("Name");
-      if( Names == null || Names.size() < 1 ) line += ",";
-      else{         
-         Iterator<Annotation> Iter = Names.inDocumentOrder().iterator();         
-         while(Iter.hasNext()){
-            Annotation Ann = Iter.next();
-            Object Feat = Ann.getFeatures().get("name");
-            if(Feat!=null) line+= Feat.toString();
-            if(Iter.hasNext()) line += ";";            
-         }
-         line += ",";
-      }
-
-      AnnotationSet Age = Annots.get("Age");
-      if( Age == null || Age.size() < 1 ) line += title_age + ",";
-      else{         
-         Iterator<Annotation> Iter = Age.inDocumentOrder().iterator();         
-         line += title_age + ";";
-         while(Iter.hasNext()){
-            Annotation Ann = Iter.next();
-            Object Feat = Ann.getFeatures().get("age");
-            if(Feat!=null) line+= Feat.toString();
-            if(Iter.hasNext()) line += ";";            
-         }
-         line += ",";
-      }
-      
-      AnnotationSet Cost = Annots.get("Cost"); 
-      if( Cost == null || Cost.size() < 1 ) line += ",";
-      else{         
-         Iterator<Annotation> Iter = Cost.inDocumentOrder().iterator();         
-         while(Iter.hasNext()){
-            Annotation Ann = Iter.next();
-            Object Feat = Ann.getFeatures().get("value");
-            if(Feat!=null) line+= Feat.toString();
-            else line+="none";
-            line+="/";
-            Feat = Ann.getFeatures().get("target_value");
-            if(Feat!=null) line+= Feat.toString();
-            else line+="none";
-            line+="/";
-            Feat = Ann.getFeatures().get("target_type");
-            if(Feat!=null) line+= Feat.toString();
-            else line+="none";
-            if(Iter.hasNext()) line += ";";
-         }
-         line += ",";
-      }  
-     
-      AnnotationSet height = Annots.get("height");
-      if( height == null || height.size() < 1 ) line += ",,";
-      else{
-         String ft = "";
-         String inch = "";
-         Iterator<Annotation> Iter = height.inDocumentOrder().iterator();         
-         while(Iter.hasNext()){
-            Annotation Ann = Iter.next();
-            Object Feat = Ann.getFeatures().get("feet");
-            if(Feat!=null) ft+= Feat.toString();
-            else ft+="none";
-            Feat = Ann.getFeatures().get("inches");
-            if(Feat!=null) inch+= Feat.toString();
-            else inch+="none";
-            if(Iter.hasNext()){ 
-                ft += ";";
-                inch += ";";                
-            }
-         }
-         line += ft+","+inch+",";
-      } 
-
-      AnnotationSet weight = Annots.get("weight");
-      if( weight == null || weight.size() < 1 ) line += ",";
-      else{         
-         Iterator<Annotation> Iter = weight.inDocumentOrder().iterator();         
-         while(Iter.hasNext()){
-            Annotation Ann = Iter.next();
-            Object Feat = Ann.getFeatures().get("pounds");
-            if(Feat!=null) line+= Feat.toString();
-            if(Iter.hasNext()) line += ";";            
-         }
-         line += ",";
-      }  
-
-      AnnotationSet measurement = Annots.get("measurement");
-      if( measurement == null || measurement.size() < 1 ) line += ",,,,";
-      else{
-         String cup = "";
-         String chest = "";
-         String waist = "";
-         String hip = "";
-         Iterator<Annotation> Iter = measurement.inDocumentOrder().iterator();         
-         while(Iter.hasNext()){
-            Annotation Ann = Iter.next();
-            Object Feat = Ann.getFeatures().get("cup");
-            if(Feat!=null) cup+= Feat.toString();
-            else cup+="none";
-            Feat = Ann.getFeatures().get("chest");
-            if(Feat!=null) chest += Feat.toString();
-            else chest+="none";
-            Feat = Ann.getFeatures().get("waist");
-            if(Feat!=null) waist+= Feat.toString();
-            else waist+="none";
-            Feat = Ann.getFeatures().get("hip");
-            if(Feat!=null) hip+= Feat.toString();
-            else hip+="none";
-            if(Iter.hasNext()){ 
-                cup += ";";
-                chest += ";";
-                waist += ";";
-                hip += ";";
-            }
-         }
-         line += cup+","+chest+","+waist+","+hip+",";
-      }
-
-
-      AnnotationSet Ethnicity = Annots.get("Ethnicity");
-      if( Ethnicity == null || Ethnicity.size() < 1 ) line += ",";
-      else{         
-         Iterator<Annotation> Iter = Ethnicity.inDocumentOrder().iterator();         
-         while(Iter.hasNext()){
-            Annotation Ann = Iter.next();
-            Object Feat = Ann.getFeatures().get("ethnicity");
-            if(Feat!=null) line+= Feat.toString().toLowerCase().replaceAll(","," ").replaceAll(";"," ");
-            if(Iter.hasNext()) line += ";";            
+   private void runRanges() {
+     try {
+       RangeJob.Part part;
+       while((part = job.next()) != null){
+         try {
+           String line;
+           while(job.fatal() == null && (line = part.lines.readLine()) != null){
+             Record r = new Record(part.seq(), line);
+             try {
+               IsolateRecord(r);
+             } catch (Error e) {
+               job.abort(e);
+             } finally {
+               part.write(r);
+             }
+           }
+           if(job.fatal() == null) part.complete();
+         } finally {
+           part.close();
          }
-         line += ",";
-      }
+       }
+     } catch (IOException e) {
+       // the output is incomplete; main gives up once all workers are done
+       System.out.println("Child caught exception " + e);
+       error = e;
+     }
+   }
 
-      AnnotationSet SkinColor = Annots.get("SkinColor");
-      if( SkinColor == null || SkinColor.size() < 1 ) line += ",";
-      else{         
-         Iterator<Annotation> Iter = SkinColor.inDocumentOrder().iterator();         
-         while(Iter.hasNext()){
-            Annotation Ann = Iter.next();
-            Object Feat = Ann.getFeatures().get("color");
-            if(Feat!=null) line+= Feat.toString().toLowerCase().replaceAll(","," ").replaceAll(";"," "); 
-            if(Iter.hasNext()) line += ";";            
-         }
-         line += ",";
+   // A record that fails gets an empty, flagged row, so that the output
+   // stays in line with the input, and goes to the dead letter file. Any
+   // other Error (out of memory, a class a grammar needs is missing, ...)
+   // is rethrown once the record is flagged: the worker cannot go on.
+   private void IsolateRecord(Record rec) {
+      long start = this.times != null ? System.nanoTime() : 0;
+      try {
+        ProcessRecord(rec);
+      } catch (Exception | StackOverflowError e){
+        FailRecord(rec, e);
+      } catch (Error e){
+        FailRecord(rec, e);
+        throw e;
       }
+      if(this.times != null) this.times.record(this.profile.record, System.nanoTime()-start);
+   }
 
-      AnnotationSet EyeColor = Annots.get("EyeColor");
-      if( EyeColor == null || EyeColor.size() < 1 ) line += ",";
-      else{         
-         Iterator<Annotation> Iter = EyeColor.inDocumentOrder().iterator();         
-         while(Iter.hasNext()){
-            Annotation Ann = Iter.next();
-            Object Feat = Ann.getFeatures().get("color");
-            if(Feat!=null) line+= Feat.toString().toLowerCase().replaceAll(","," ").replaceAll(";"," ");
-            if(Iter.hasNext()) line += ";";            
-         }
-         line += ",";
+   private void FailRecord(Record rec, Throwable e) {
+      System.out.println("Child caught exception " + e);
+      rec.flags = null;
+      rec.flag("error");
+      rec.row = this.extractor.emptyRow(rec.flags, this.encoder);
+      rec.text = this.encoder.text("");
+      StringWriter trace = new StringWriter();
+      e.printStackTrace(new PrintWriter(trace));
+      try {
+        this.deadLetters.write(rec.line + "\n" + trace.toString().trim() + "\n");
+      } catch (IOException io){
+        System.out.println("Child caught exception " + io);
       }
+   }
 
-      AnnotationSet HairColor = Annots.get("HairColor");      
-      if( HairColor == null || HairColor.size() < 1 ) line += ",";
-      else{         
-         Iterator<Annotation> Iter = HairColor.inDocumentOrder().iterator();         
-         while(Iter.hasNext()){
-            Annotation Ann = Iter.next();
-            Object Feat = Ann.getFeatures().get("color");
-            if(Feat!=null) line+= Feat.toString().toLowerCase().replaceAll(","," ").replaceAll(";"," ");
-            if(Iter.hasNext()) line += ";";            
-         }
-         line += ",";
+   private void ProcessRecord(Record rec) throws Exception {    
+      // split title from body, then get the text and links out of the html
+      long start = this.times != null ? System.nanoTime() : 0;
+      Preprocessed prep = this.preprocessor.process(rec.line);
+      if(this.times != null) this.times.record(Profile.PREPROCESS, System.nanoTime()-start);
+
+      // a repost of an ad seen before gets the same output without GATE
+      byte[] key = null;
+      if(this.cache != null){
+        key = ResultCache.key(prep, this.digest);
+        if(this.cache.get(key, rec)) return;
       }
 
-      AnnotationSet Restriction = Annots.get("Restriction");      
-      if( Restriction == null || Restriction.size() < 1 ) line += ",,,";
-      else{
-         String type = "";
-         String ethnicity = "";         
-         String age = "";
-         Iterator<Annotation> Iter = Restriction.inDocumentOrder().iterator();         
-         while(Iter.hasNext()){
-            Annotation Ann = Iter.next();
-            Object Feat = Ann.getFeatures().get("type");
-            if(Feat!=null) type+= Feat.toString();
-            else type+="none";
-            Feat = Ann.getFeatures().get("ethnicity");
-            if(Feat!=null) ethnicity+= Feat.toString().toLowerCase().replaceAll(","," ").replaceAll(";"," ");
-            else ethnicity+="none";
-            Feat = Ann.getFeatures().get("age");
-            if(Feat!=null) age+=Feat.toString();
-            else age+="none";
-            if(Iter.hasNext()){ 
-                type += ";";
-                ethnicity += ";";
-                age += ";";
-            }
-         }
-         line += type+","+ethnicity+","+age+",";
-      }
+      // the same document is used for every record of this worker
+      if(this.document == null) this.document = RecyclableDocument.create();
+      RecyclableDocument doc = this.document;
+      doc.recycle(prep.text);
+      try {
+        // run whichever copy of the application is free
+        Pipeline pipeline = this.applications.checkout();
+        long started = System.currentTimeMillis();
+        String overBudget;
+        try {
+          overBudget = pipeline.execute(doc, this.times);
+        } finally {
+          this.applications.release(pipeline);
+        }
+        if(overBudget != null){
+          // keep what was found so far, but flag the row and log the ad
+          rec.flag(overBudget);
+          this.slowLog.write((System.currentTimeMillis()-started)+"ms\t"+overBudget+"\t"+rec.line);
+        }
 
-      AnnotationSet Phone = Annots.get("PhoneNumber");
-      if( Phone == null || Phone.size() < 1 ) line += ",,,";
-      else{
-         String value = "";
-         String state = "";
-         String city = "";
-         Iterator<Annotation> Iter = Phone.inDocumentOrder().iterator();         
-         while(Iter.hasNext()){
-            Annotation Ann = Iter.next();
-            Object Feat = Ann.getFeatures().get("value");
-            if(Feat!=null) value+= Feat.toString();
-            else value+="none";
-            Feat = Ann.getFeatures().get("state");
-            if(Feat!=null) state+= Feat.toString();
-            else state+="none";
-            Feat = Ann.getFeatures().get("area");
-            if(Feat!=null) city+= Feat.toString().toLowerCase().replaceAll(","," ").replaceAll(";"," ");
-            else city+="none";
-            if(Iter.hasNext()){ 
-                value += ";";
-                state += ";";
-                city += ";";
-            }
-         }
-         line += value+","+state+","+city+",";
-      }      
-
-      String Emails = "";
-      AnnotationSet Email = Annots.get("Email");
-      if( Email == null || Email.size() < 1 ) Emails = "";
-      else{         
-         Iterator<Annotation> Iter = Email.inDocumentOrder().iterator();
-         while(Iter.hasNext()){
-            Annotation Ann = Iter.next();
-            Object Feat = Ann.getFeatures().get("email");
-            if(Feat!=null) Emails+= Feat.toString().toLowerCase().replaceAll(","," ").replaceAll(";"," ")+";";
-         }
-      }
-      if(links !=null){
-      for(Element l : links){
-         String href = l.attr("abs:href");
-         if(href==null) continue;
-         if(href.length()>7 && href.substring(0,7).toLowerCase().equals("mailto:")){         
-            Emails += href.substring(7,href.length()).replaceAll(","," ").replaceAll(";"," ") + ";";
-         }
-      }
+        //extract annotations
+        start = this.times != null ? System.nanoTime() : 0;
+        rec.row = this.extractor.extract(doc.getAnnotations(""), prep, rec.flags, this.scratch, this.encoder);
+        rec.text = this.encoder.text(prep.outputText());
+        if(this.times != null) this.times.record(this.profile.extract, System.nanoTime()-start);
+        // a result cut short by a budget depends on more than the record
+        if(key != null && rec.flags == null) this.cache.put(key, rec);
+      } finally {
+        // Release the content and annotations on every path, as they are no longer needed
+        doc.clear();
       }
-      if(Emails.length()>0 && Emails.substring(Emails.length()-1,Emails.length()).equals(";")) Emails = Emails.substring(0,Emails.length()-1);
-      line += Emails + ",";
-
-      String Urls = "";
-      AnnotationSet Url = Annots.get("Url");      
-      if( Url == null || Url.size() < 1 ) Urls = "";
-      else{         
-         Iterator<Annotation> Iter = Url.inDocumentOrder().iterator();         
-         while(Iter.hasNext()){
-            Annotation Ann = Iter.next();
-            Object Feat = Ann.getFeatures().get("url");
-            if(Feat!=null) Urls+= Feat.toString().toLowerCase().replaceAll(","," ").replaceAll(";"," ")+";";
-         }        
-      }
-      if(links !=null ){
-      for(Element l : links){
-         String href = l.attr("abs:href");
-         if(href==null) continue;
-         if(href.length()<=7 || !href.substring(0,7).toLowerCase().equals("mailto:")){
-            Urls += href.replaceAll(","," ").replaceAll(";"," ") + ";";
-         }
-      }
-      }
-      if(imports != null){
-      for(Element l : imports){
-         String href = l.attr("abs:href");
-         if(href==null) continue;
-         Urls += href.replaceAll(","," ").replaceAll(";"," ") + ";";
-      }
-      }
-      if(Urls.length()>0 && Urls.substring(Urls.length()-1,Urls.length()).equals(";")) Urls = Urls.substring(0,Urls.length()-1);
-      line += Urls + ",";
-
-      String Medias = "";
-      if(media != null){
-      for(Element l : media){
-         String src = l.attr("abs:src");
-         if(src==null) continue;
-         Medias += src.replaceAll(","," ").replaceAll(";"," ") + ";";
-      }
-      }
-      if(Medias.length()>0 && Medias.substring(Medias.length()-1,Medias.length()).equals(";")) Medias = Medias.substring(0,Medias.length()-1);
-      line += Medias;                
-      
-      processedlines.add(line);
-      // Release the document, as it is no longer needed
-      Factory.deleteResource(doc);            
-    }
-    Factory.deleteResource(corpus);
-
-    RetObj out = new RetObj(processedlines,processedText);
-    return out;
   }
 }
@@ -49,11 +49,27 @@ public class FSMPDA extends FSM {
 		return arrayOfBindingNames;
 	}
 
-	public FSMPDA(SinglePhaseTransducer spt) {
-		this();
-		setOfBindingNames = new ClosedHashOfStrings();
-		tripleTransitions = new TripleTransitions();
-		addRules(spt.getRules());
+	/**
+	 * Guards the static counters GATE numbers its states and transitions
+	 * from, which must not hand out the same number twice. Whatever creates
+	 * states or transitions holds it, so that the FSMs of several phases can
+	 * be built at once; determinizing and minimizing do not create any and
+	 * run without it.
+	 */
+	private static final Object NUMBERING = new Object();
+
+	/**
+	 * Builds the FSM of a phase.
+	 */
+	public static FSMPDA create(SinglePhaseTransducer spt) {
+		FSMPDA fsm;
+		synchronized (NUMBERING) {
+			fsm = new FSMPDA();
+		}
+		fsm.setOfBindingNames = new ClosedHashOfStrings();
+		fsm.tripleTransitions = new TripleTransitions();
+		fsm.addRules(spt.getRules());
+		return fsm;
 	}
 	
 	@Override
@@ -69,9 +85,11 @@ public class FSMPDA extends FSM {
 	protected void addRules(PrioritisedRuleList rules) {
 		Iterator rulesEnum = rules.iterator();
 
-		while (rulesEnum.hasNext()) {
-			FSMPDA ruleFSM = spawn((Rule) rulesEnum.next());
-			initialState.addTransition(new TransitionPDA(null, ruleFSM.initialState), tripleTransitions);
+		synchronized (NUMBERING) {
+			while (rulesEnum.hasNext()) {
+				FSMPDA ruleFSM = spawn((Rule) rulesEnum.next());
+				initialState.addTransition(new TransitionPDA(null, ruleFSM.initialState), tripleTransitions);
+			}
 		}
 		arrayOfBindingNames = setOfBindingNames.getCopyOfStrings();
 		setOfBindingNames = null;
@@ -80,14 +98,16 @@ public class FSMPDA extends FSM {
 		tripleTransitions.addAll(aut, help);
 		tripleTransitions.setTheInitialState(aut, initialState.getIndex());
 		aut = aut.determinize(tripleTransitions.getFinalitites()).minimize();
-		allStates = aut.toFSM(tripleTransitions);
-		int i = aut.getInitialState();
-		if (i == Constants.NO) {
-			initialState = new StatePDA();
-			allStates = new StatePDA[1];
-			allStates[0] = initialState;
-		} else {
-			initialState = allStates[i];
+		synchronized (NUMBERING) {
+			allStates = aut.toFSM(tripleTransitions);
+			int i = aut.getInitialState();
+			if (i == Constants.NO) {
+				initialState = new StatePDA();
+				allStates = new StatePDA[1];
+				allStates[0] = initialState;
+			} else {
+				initialState = allStates[i];
+			}
 		}
 		tripleTransitions = null;
 	}
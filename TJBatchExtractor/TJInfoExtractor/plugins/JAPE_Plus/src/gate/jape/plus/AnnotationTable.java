@@ -0,0 +1,295 @@
+/*
+ *  AnnotationTable.java
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+package gate.jape.plus;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * All the annotations of the input annotation set of the document a
+ * {@link Transducer} is running on, in one array sorted by start offset and
+ * inverse length. The annotation set is sorted once per document; after
+ * that, the annotations the phases add and remove are merged in before the
+ * next phase runs. A phase does not copy the annotations of its input
+ * types out of the table: it reads the table itself, skipping the rows of
+ * the other types (see {@link SPTBase#loadAnnotations()}).
+ */
+public class AnnotationTable {
+
+  protected final Comparator<Annotation> comparator;
+
+  /** The annotations, in order, as they were at the last merge. */
+  protected Annotation[] annotations = new Annotation[0];
+
+  /** The start offset of each annotation. */
+  protected long[] starts = new long[0];
+
+  /** The type of each annotation, as an index in {@link #typeNames}. */
+  protected int[] types = new int[0];
+
+  /** The number of rows of the arrays in use. */
+  protected int size;
+
+  /**
+   * The arrays the next merge writes into, which then swap places with the
+   * ones above.
+   */
+  protected Annotation[] spareAnnotations = new Annotation[0];
+
+  protected long[] spareStarts = new long[0];
+
+  protected int[] spareTypes = new int[0];
+
+  /** The types seen in the annotation set so far. */
+  protected final List<String> typeNames = new ArrayList<String>();
+
+  protected final Map<String, Integer> typeIds = new HashMap<String, Integer>();
+
+  /**
+   * The annotations added to the annotation set since the last merge and
+   * still in it, by ID.
+   */
+  protected final Map<Integer, Annotation> added =
+      new HashMap<Integer, Annotation>();
+
+  /**
+   * The annotations of the table removed from the annotation set since the
+   * last merge and not added back, by ID.
+   */
+  protected final Map<Integer, Annotation> removed =
+      new HashMap<Integer, Annotation>();
+
+  /**
+   * @param comparator the order of the annotations, which must only find
+   *   an annotation equal to itself
+   */
+  public AnnotationTable(Comparator<Annotation> comparator) {
+    this.comparator = comparator;
+  }
+
+  /**
+   * Fills the table with the annotations of an annotation set.
+   */
+  public void load(AnnotationSet annotationSet) {
+    clear();
+    Annotation[] all = annotationSet.toArray(
+        new Annotation[annotationSet.size()]);
+    Arrays.sort(all, comparator);
+    ensureCapacity(all.length);
+    for(int i = 0; i < all.length; i++) {
+      annotations[i] = all[i];
+      starts[i] = all[i].getStartNode().getOffset();
+      types[i] = typeId(all[i].getType(), true);
+    }
+    size = all.length;
+  }
+
+  /**
+   * Records an annotation added to the annotation set, which goes into the
+   * table at the next merge.
+   */
+  public void annotationAdded(Annotation annotation) {
+    Integer id = annotation.getId();
+    // an annotation removed and added back never left the table
+    if(removed.get(id) == annotation) removed.remove(id);
+    else added.put(id, annotation);
+  }
+
+  /**
+   * Records an annotation removed from the annotation set, which leaves the
+   * table at the next merge.
+   */
+  public void annotationRemoved(Annotation annotation) {
+    Integer id = annotation.getId();
+    // an annotation added and removed again never entered the table
+    if(added.get(id) == annotation) added.remove(id);
+    else removed.put(id, annotation);
+  }
+
+  /**
+   * Merges the changes recorded since the last merge into the table. The
+   * place of each change is found by binary search and the rows between
+   * two changes are copied in one go.
+   */
+  public void merge() {
+    if(added.isEmpty() && removed.isEmpty()) return;
+    List<Annotation> add = new ArrayList<Annotation>(added.values());
+    List<Annotation> remove = new ArrayList<Annotation>(removed.values());
+    Collections.sort(add, comparator);
+    Collections.sort(remove, comparator);
+    int length = size + add.size();
+    if(spareAnnotations.length < length) {
+      length = Math.max(length, spareAnnotations.length * 3 / 2);
+      spareAnnotations = new Annotation[length];
+      spareStarts = new long[length];
+      spareTypes = new int[length];
+    }
+    int from = 0;
+    int to = 0;
+    int addIdx = 0;
+    int removeIdx = 0;
+    while(addIdx < add.size() || removeIdx < remove.size()) {
+      boolean isAdded = removeIdx == remove.size() ||
+          (addIdx < add.size() && comparator.compare(
+              add.get(addIdx), remove.get(removeIdx)) < 0);
+      Annotation next = isAdded ? add.get(addIdx++) :
+          remove.get(removeIdx++);
+      int pos = Arrays.binarySearch(annotations, from, size, next,
+          comparator);
+      if(isAdded) {
+        int insertAt = pos < 0 ? -1 - pos : pos;
+        to = copy(from, insertAt, to);
+        from = insertAt;
+        spareAnnotations[to] = next;
+        spareStarts[to] = next.getStartNode().getOffset();
+        spareTypes[to] = typeId(next.getType(), true);
+        to++;
+      } else if(pos >= 0) {
+        to = copy(from, pos, to);
+        from = pos + 1;
+      }
+    }
+    to = copy(from, size, to);
+    added.clear();
+    removed.clear();
+    Annotation[] swapAnnotations = annotations;
+    annotations = spareAnnotations;
+    spareAnnotations = swapAnnotations;
+    long[] swapStarts = starts;
+    starts = spareStarts;
+    spareStarts = swapStarts;
+    int[] swapTypes = types;
+    types = spareTypes;
+    spareTypes = swapTypes;
+    size = to;
+  }
+
+  /**
+   * Copies a range of rows into the spare arrays.
+   *
+   * @return the row of the spare arrays after the copied ones
+   */
+  private int copy(int from, int until, int to) {
+    int count = until - from;
+    System.arraycopy(annotations, from, spareAnnotations, to, count);
+    System.arraycopy(starts, from, spareStarts, to, count);
+    System.arraycopy(types, from, spareTypes, to, count);
+    return to + count;
+  }
+
+  private void ensureCapacity(int count) {
+    if(annotations.length >= count) return;
+    int length = Math.max(count, annotations.length * 3 / 2);
+    annotations = new Annotation[length];
+    starts = new long[length];
+    types = new int[length];
+  }
+
+  /**
+   * @return the index of a type in the table, or -1 if no annotation of the
+   *   type has been seen, unless <tt>create</tt> is set
+   */
+  protected int typeId(String type, boolean create) {
+    Integer id = typeIds.get(type);
+    if(id == null) {
+      if(!create) return -1;
+      id = typeNames.size();
+      typeNames.add(type);
+      typeIds.put(type, id);
+    }
+    return id;
+  }
+
+  /**
+   * @return the index of a type, which is what {@link #getTypes()} holds for
+   *   the annotations of the type, or -1 if the table has none
+   */
+  public int getTypeId(String type) {
+    return typeId(type, false);
+  }
+
+  /** @return the number of types the table has seen */
+  public int getTypeCount() {
+    return typeNames.size();
+  }
+
+  /**
+   * @return the annotations, of which the first {@link #size()} are in the
+   *   table; the array must not be changed, and only stays the table's
+   *   until the next merge
+   */
+  public Annotation[] getAnnotations() {
+    return annotations;
+  }
+
+  /** @return the start offset of each annotation */
+  public long[] getStarts() {
+    return starts;
+  }
+
+  /** @return the type of each annotation, see {@link #getTypeId(String)} */
+  public int[] getTypes() {
+    return types;
+  }
+
+  /** @return the number of annotations in the table */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the annotations of a type, sorted, as they are in the
+   *   annotation set now
+   */
+  public Annotation[] get(String type) {
+    // the changes are not merged into the table, whose arrays a phase may
+    // be reading
+    int id = getTypeId(type);
+    List<Annotation> ofType = new ArrayList<Annotation>();
+    for(int i = 0; i < size; i++) {
+      if(types[i] == id &&
+         removed.get(annotations[i].getId()) != annotations[i]) {
+        ofType.add(annotations[i]);
+      }
+    }
+    boolean changed = false;
+    for(Annotation annotation : added.values()) {
+      if(annotation.getType().equals(type)) {
+        ofType.add(annotation);
+        changed = true;
+      }
+    }
+    if(changed) Collections.sort(ofType, comparator);
+    return ofType.toArray(new Annotation[ofType.size()]);
+  }
+
+  /**
+   * Empties the table, so that it holds on to no annotations of the last
+   * document, keeping its arrays.
+   */
+  public void clear() {
+    Arrays.fill(annotations, 0, size, null);
+    Arrays.fill(spareAnnotations, null);
+    size = 0;
+    typeNames.clear();
+    typeIds.clear();
+    added.clear();
+    removed.clear();
+  }
+}
@@ -0,0 +1,352 @@
+/*
+ *  CompiledGrammar.java
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+package gate.jape.plus;
+
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.jape.RightHandSide;
+import gate.jape.Rule;
+import gate.jape.plus.Transducer.SPTData;
+import gate.util.GateClassLoader;
+import gate.util.GateException;
+import gate.util.Javac;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A JAPE Plus grammar compiled ahead of time. Besides the phase data that a
+ * binary grammar holds (the rules, predicate tables and generated sources),
+ * it holds the bytecode of every class compiled for the grammar: the
+ * generated phase classes, their controller event blocks and the action
+ * classes of the rules' right hand sides. A transducer initialised from it
+ * neither parses the grammar nor runs the Java compiler.
+ *
+ * The file is gzipped and starts with a magic number and a format version,
+ * followed by a fingerprint of what it was built from: the SHA-256 of the
+ * grammar file and of every phase file it lists, the encoding, and the
+ * classes of JAPE Plus and GATE that generate and run the compiled code.
+ * A file whose fingerprint does not match the sources at load time is
+ * ignored, and the grammar is compiled from its sources as usual.
+ *
+ * The action classes are defined in GATE's own class loader, as that is
+ * where a right hand side looks for its class when it is read back; were
+ * it not there, the right hand side would compile it again.
+ *
+ * To build one, run this class with the grammar file:
+ * <pre>
+ * java gate.jape.plus.CompiledGrammar grammar.jape [grammar.jplusc] [encoding]
+ * </pre>
+ */
+public class CompiledGrammar {
+
+  private static final Logger log = Logger.getLogger(CompiledGrammar.class);
+
+  /** "JPLC" */
+  private static final int MAGIC = 0x4A504C43;
+
+  /** The version of the format; files of any other version are ignored. */
+  private static final int VERSION = 1;
+
+  /** A class defined in the transducer's class loader. */
+  private static final int PHASE_CLASS = 0;
+
+  /** A class defined in GATE's class loader. */
+  private static final int ACTION_CLASS = 1;
+
+  /** The classes whose code the compiled classes depend on. */
+  private static final Class<?>[] GENERATORS = {
+    SPTBase.class, SPTBuilder.class, RightHandSide.class
+  };
+
+  /**
+   * A class loader that keeps the bytecode of every class the compiler
+   * defines in it.
+   */
+  private static class RecordingClassLoader extends GateClassLoader {
+    final Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+
+    RecordingClassLoader(String name) {
+      super(name, Gate.getClassLoader());
+    }
+
+    @Override
+    public Class<?> defineGateClass(String name, byte[] bytes, int offset, int length) {
+      byte[] copy = new byte[length];
+      System.arraycopy(bytes, offset, copy, 0, length);
+      classes.put(name, copy);
+      return super.defineGateClass(name, bytes, offset, length);
+    }
+  }
+
+  private CompiledGrammar() {
+  }
+
+  /**
+   * Writes the grammar of an initialised transducer, compiling the sources
+   * of its classes once more to get at their bytecode.
+   */
+  public static void write(Transducer transducer, OutputStream out)
+      throws IOException, GateException {
+    SPTData[] phases = transducer.singlePhaseTransducersData;
+    // the classes are compiled the way they are when the grammar is compiled
+    // from source: the actions of all phases together, then all the phases
+    RecordingClassLoader actionClasses = new RecordingClassLoader("JAPE Plus action classes");
+    RecordingClassLoader phaseClasses = new RecordingClassLoader("JAPE Plus phase classes");
+    Map<String, String> actions = new HashMap<String, String>();
+    Map<String, String> sources = new HashMap<String, String>();
+    for(SPTData phase : phases) {
+      for(Rule rule : phase.getRules()) {
+        actions.put(rule.getRHS().getActionClassName(), rule.getRHS().getActionClassString());
+      }
+      sources.putAll(phase.sources());
+    }
+    if(!actions.isEmpty()) Javac.loadClasses(actions, actionClasses);
+    Javac.loadClasses(sources, phaseClasses);
+
+    DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(out)));
+    data.writeInt(MAGIC);
+    data.writeInt(VERSION);
+    // a transducer made from a binary grammar has no sources to check
+    Map<String, String> fingerprint = transducer.getGrammarURL() == null
+        ? new LinkedHashMap<String, String>()
+        : fingerprint(transducer.getGrammarURL(), transducer.getEncoding());
+    data.writeInt(fingerprint.size());
+    for(Map.Entry<String, String> entry : fingerprint.entrySet()) {
+      data.writeUTF(entry.getKey());
+      data.writeUTF(entry.getValue());
+    }
+    data.writeInt(actionClasses.classes.size() + phaseClasses.classes.size());
+    writeClasses(data, ACTION_CLASS, actionClasses.classes);
+    writeClasses(data, PHASE_CLASS, phaseClasses.classes);
+    ObjectOutputStream objects = new ObjectOutputStream(data);
+    objects.writeObject(phases);
+    objects.close();
+  }
+
+  private static void writeClasses(DataOutputStream data, int kind, Map<String, byte[]> classes)
+      throws IOException {
+    for(Map.Entry<String, byte[]> c : classes.entrySet()) {
+      data.writeByte(kind);
+      data.writeUTF(c.getKey());
+      data.writeInt(c.getValue().length);
+      data.write(c.getValue());
+    }
+  }
+
+  /**
+   * Reads a compiled grammar, defining its classes in the given class loader
+   * (and its action classes in GATE's), so that
+   * {@link SPTData#generateSpt} has nothing left to compile.
+   *
+   * @return the data of the phases, or null if there is no compiled grammar
+   *   at the URL or it is out of date, in which case the grammar should be
+   *   compiled from source
+   */
+  public static SPTData[] read(URL compiled, URL grammarURL, String encoding,
+      GateClassLoader classLoader) {
+    InputStream in;
+    try {
+      in = compiled.openStream();
+    } catch(IOException e) {
+      log.info("No compiled grammar at " + compiled + ", compiling " + grammarURL);
+      return null;
+    }
+    try {
+      DataInputStream data = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in)));
+      Map<String, String> fingerprint = readFingerprint(data);
+      if(fingerprint == null) {
+        log.warn(compiled + " is not a compiled grammar of this version, compiling " + grammarURL);
+        return null;
+      }
+      if(!fingerprint.equals(fingerprint(grammarURL, encoding))) {
+        log.warn(compiled + " is out of date, compiling " + grammarURL);
+        return null;
+      }
+      return readPhases(data, classLoader);
+    } catch(Exception e) {
+      log.warn("Could not read the compiled grammar " + compiled + ", compiling " + grammarURL, e);
+      return null;
+    } finally {
+      try {
+        in.close();
+      } catch(IOException e) {
+        log.error("Exception while closing input stream.", e);
+      }
+    }
+  }
+
+  /**
+   * Reads a compiled grammar without checking it against its sources, as
+   * a transducer read back with Java serialization does.
+   */
+  static SPTData[] read(InputStream in, GateClassLoader classLoader)
+      throws IOException, ClassNotFoundException {
+    DataInputStream data = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in)));
+    if(readFingerprint(data) == null) {
+      throw new IOException("Not a compiled grammar of this version");
+    }
+    return readPhases(data, classLoader);
+  }
+
+  /**
+   * @return the fingerprint of a compiled grammar, or null if it is not one
+   *   or of another version
+   */
+  private static Map<String, String> readFingerprint(DataInputStream data) throws IOException {
+    if(data.readInt() != MAGIC || data.readInt() != VERSION) return null;
+    Map<String, String> fingerprint = new LinkedHashMap<String, String>();
+    for(int i = data.readInt(); i > 0; i--) fingerprint.put(data.readUTF(), data.readUTF());
+    return fingerprint;
+  }
+
+  private static SPTData[] readPhases(DataInputStream data, GateClassLoader classLoader)
+      throws IOException, ClassNotFoundException {
+    GateClassLoader gateLoader = Gate.getClassLoader();
+    for(int i = data.readInt(); i > 0; i--) {
+      GateClassLoader loader = data.readByte() == ACTION_CLASS ? gateLoader : classLoader;
+      String name = data.readUTF();
+      byte[] bytes = new byte[data.readInt()];
+      data.readFully(bytes);
+      // the action classes stay in GATE's class loader once defined, so
+      // a grammar read a second time finds them there already
+      if(loader.findExistingClass(name) == null) {
+        loader.defineGateClass(name, bytes, 0, bytes.length);
+      }
+    }
+    ObjectInputStream objects = new ObjectInputStream(data);
+    return (SPTData[])objects.readObject();
+  }
+
+  /**
+   * @return the SHA-256 of each of the files of a grammar and of the
+   *   classes that generate its code, by name, and the encoding
+   */
+  static Map<String, String> fingerprint(URL grammarURL, String encoding) throws IOException {
+    Map<String, String> fingerprint = new LinkedHashMap<String, String>();
+    fingerprint.put("encoding", String.valueOf(encoding));
+    for(Class<?> c : GENERATORS) {
+      String resource = c.getName().substring(c.getName().lastIndexOf('.') + 1) + ".class";
+      fingerprint.put(c.getName(), sha256(c.getResource(resource)));
+    }
+    String path = grammarURL.getPath();
+    fingerprint.put(path.substring(path.lastIndexOf('/') + 1), sha256(grammarURL));
+    for(String phase : phaseFiles(grammarURL, encoding)) {
+      fingerprint.put(phase, sha256(new URL(grammarURL, phase)));
+    }
+    return fingerprint;
+  }
+
+  /**
+   * @return the files listed after "Phases:" in a multi-phase grammar,
+   *   relative to it, or nothing for a single-phase one
+   */
+  private static List<String> phaseFiles(URL grammarURL, String encoding) throws IOException {
+    List<String> phases = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(grammarURL.openStream(),
+        encoding == null ? "UTF-8" : encoding));
+    try {
+      boolean listed = false;
+      String line;
+      while((line = in.readLine()) != null) {
+        int comment = line.indexOf("//");
+        if(comment >= 0) line = line.substring(0, comment);
+        line = line.trim();
+        if(line.startsWith("Phases:")) {
+          listed = true;
+          line = line.substring("Phases:".length()).trim();
+        }
+        if(!listed || line.length() == 0) continue;
+        for(String phase : line.split("\\s+")) phases.add(phase + ".jape");
+      }
+    } finally {
+      in.close();
+    }
+    return phases;
+  }
+
+  private static String sha256(URL url) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch(NoSuchAlgorithmException e) {
+      throw new IOException(e.toString());
+    }
+    InputStream in = url.openStream();
+    try {
+      byte[] buf = new byte[8192];
+      int n;
+      while((n = in.read(buf)) > 0) digest.update(buf, 0, n);
+    } finally {
+      in.close();
+    }
+    StringBuilder hex = new StringBuilder();
+    for(byte b : digest.digest()) hex.append(String.format("%02x", b & 0xff));
+    return hex.toString();
+  }
+
+  /**
+   * Compiles a grammar and writes it next to it, or to the given file.
+   */
+  public static void main(String[] args) throws Exception {
+    if(args.length < 1) {
+      System.err.println("usage: java gate.jape.plus.CompiledGrammar grammar.jape [output] [encoding]");
+      System.exit(1);
+    }
+    File grammar = new File(args[0]);
+    File output = args.length > 1 ? new File(args[1])
+        : new File(grammar.getParentFile(), grammar.getName().replaceFirst("\\.jape$", "") + ".jplusc");
+    String encoding = args.length > 2 ? args[2] : "UTF-8";
+
+    Gate.init();
+    // the plugin this class came from
+    File plugin = new File(CompiledGrammar.class.getProtectionDomain().getCodeSource()
+        .getLocation().toURI()).getParentFile();
+    Gate.getCreoleRegister().registerDirectories(plugin.toURI().toURL());
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("grammarURL", grammar.toURI().toURL());
+    params.put("encoding", encoding);
+    Transducer transducer = (Transducer)Factory.createResource(Transducer.class.getName(), params);
+    OutputStream out = new FileOutputStream(output);
+    try {
+      write(transducer, out);
+    } finally {
+      out.close();
+    }
+    System.out.println("Compiled " + transducer.singlePhaseTransducersData.length
+        + " phases of " + grammar + " to " + output);
+    Factory.deleteResource(transducer);
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ *  IntervalIndex.java
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+package gate.jape.plus;
+
+import gate.Annotation;
+
+import java.util.Arrays;
+
+/**
+ * An index over the annotations of one type in the annotation table of a
+ * phase (see {@link SPTBase#annotation}), used to answer the
+ * <tt>contains</tt> and <tt>within</tt> predicates. The annotations are
+ * kept in table order, that is by start offset, and their end offsets are
+ * held in two segment trees, one keeping the largest and one the smallest
+ * end offset of each range. An annotation that ends late enough (or early
+ * enough) is found by walking down the tree, skipping whole ranges that
+ * hold none, so each one costs logarithmic time whatever the number of
+ * annotations of the type.
+ */
+public class IntervalIndex {
+
+  /** The index in the annotation table of each annotation of the type. */
+  protected final int[] tableIndex;
+
+  /** The start offset of each annotation of the type. */
+  protected final long[] start;
+
+  /** The number of leaves of the segment trees, a power of two. */
+  protected final int leaves;
+
+  /**
+   * The largest end offset in each node of the segment tree: node 1 is the
+   * root, the children of node i are 2i and 2i+1, and the leaves start at
+   * {@link #leaves}.
+   */
+  protected final long[] maxEnd;
+
+  /** The smallest end offset in each node, laid out as {@link #maxEnd}. */
+  protected final long[] minEnd;
+
+  /**
+   * Builds the index of the annotations of one type.
+   *
+   * @param annotation the annotation table of a phase
+   * @param annotationType the type of each annotation in the table
+   * @param annotationCount the number of annotations in the table
+   * @param type the type to index
+   */
+  public IntervalIndex(Annotation[] annotation, int[] annotationType,
+      int annotationCount, int type) {
+    int count = 0;
+    for(int i = 0; i < annotationCount; i++) {
+      if(annotationType[i] == type) count++;
+    }
+    tableIndex = new int[count];
+    start = new long[count];
+    int size = 1;
+    while(size < count) size <<= 1;
+    leaves = size;
+    maxEnd = new long[2 * size];
+    minEnd = new long[2 * size];
+    Arrays.fill(maxEnd, Long.MIN_VALUE);
+    Arrays.fill(minEnd, Long.MAX_VALUE);
+    int pos = 0;
+    for(int i = 0; i < annotationCount; i++) {
+      if(annotationType[i] == type) {
+        tableIndex[pos] = i;
+        start[pos] = annotation[i].getStartNode().getOffset();
+        long end = annotation[i].getEndNode().getOffset();
+        maxEnd[size + pos] = end;
+        minEnd[size + pos] = end;
+        pos++;
+      }
+    }
+    for(int node = size - 1; node > 0; node--) {
+      maxEnd[node] = Math.max(maxEnd[2 * node], maxEnd[2 * node + 1]);
+      minEnd[node] = Math.min(minEnd[2 * node], minEnd[2 * node + 1]);
+    }
+  }
+
+  /** @return the number of annotations in the index. */
+  public int size() {
+    return tableIndex.length;
+  }
+
+  /**
+   * @return the index in the annotation table of the annotation at a
+   *   position of this index
+   */
+  public int tableIndex(int position) {
+    return tableIndex[position];
+  }
+
+  /**
+   * @return the first position whose annotation comes at or after an index
+   *   of the annotation table
+   */
+  public int positionOfTableIndex(int index) {
+    int pos = Arrays.binarySearch(tableIndex, index);
+    return pos < 0 ? -1 - pos : pos;
+  }
+
+  /**
+   * @return the first position whose annotation starts at or after an
+   *   offset
+   */
+  public int firstStartingFrom(long offset) {
+    int low = 0;
+    int high = start.length;
+    while(low < high) {
+      int mid = (low + high) >>> 1;
+      if(start[mid] < offset) low = mid + 1;
+      else high = mid;
+    }
+    return low;
+  }
+
+  /**
+   * @return the last position before <tt>before</tt> whose annotation ends
+   *   at or after <tt>offset</tt>, or -1 if there is none
+   */
+  public int lastEndingFrom(int before, long offset) {
+    return lastEndingFrom(1, 0, leaves, before, offset);
+  }
+
+  private int lastEndingFrom(int node, int from, int to, int before,
+      long offset) {
+    if(from >= before || maxEnd[node] < offset) return -1;
+    if(node >= leaves) return from;
+    int middle = (from + to) >>> 1;
+    int found = lastEndingFrom(2 * node + 1, middle, to, before, offset);
+    if(found >= 0) return found;
+    return lastEndingFrom(2 * node, from, middle, before, offset);
+  }
+
+  /**
+   * @return the first position from <tt>from</tt> and before <tt>before</tt>
+   *   whose annotation ends at or before <tt>offset</tt>, or -1 if there is
+   *   none
+   */
+  public int firstEndingBy(int from, int before, long offset) {
+    return firstEndingBy(1, 0, leaves, from, before, offset);
+  }
+
+  private int firstEndingBy(int node, int nodeFrom, int nodeTo, int from,
+      int before, long offset) {
+    if(nodeTo <= from || nodeFrom >= before || minEnd[node] > offset) {
+      return -1;
+    }
+    if(node >= leaves) return nodeFrom;
+    int middle = (nodeFrom + nodeTo) >>> 1;
+    int found = firstEndingBy(2 * node, nodeFrom, middle, from, before, offset);
+    if(found >= 0) return found;
+    return firstEndingBy(2 * node + 1, middle, nodeTo, from, before, offset);
+  }
+}
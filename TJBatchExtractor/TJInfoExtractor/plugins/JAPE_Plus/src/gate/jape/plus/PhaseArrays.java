@@ -0,0 +1,45 @@
+/*
+ *  PhaseArrays.java
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+package gate.jape.plus;
+
+/**
+ * The arrays through which a phase reads the {@link AnnotationTable} (see
+ * {@link SPTBase#loadAnnotations()}), one entry per row of the table. A
+ * {@link Transducer} keeps one set and hands it to each of its phases in
+ * turn, so that the arrays are only reallocated when a document has more
+ * annotations than any before, rather than once per phase and document.
+ */
+public class PhaseArrays {
+
+  protected int[] annotationType = new int[0];
+
+  protected int[] annotationNextOffset = new int[0];
+
+  protected int[] annotationNextInput = new int[0];
+
+  protected int[] annotationFollowing = new int[0];
+
+  protected long[][] annotationPredicateComputed = new long[0][];
+
+  protected long[][] annotationPredicateValues = new long[0][];
+
+  /** Makes sure the arrays hold at least a number of annotations. */
+  public void ensureCapacity(int count) {
+    if(annotationType.length >= count) return;
+    int length = Math.max(count, annotationType.length * 3 / 2);
+    annotationType = new int[length];
+    annotationNextOffset = new int[length];
+    annotationNextInput = new int[length];
+    annotationFollowing = new int[length];
+    annotationPredicateComputed = new long[length][];
+    annotationPredicateValues = new long[length][];
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ *  PhaseStatistics.java
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+package gate.jape.plus;
+
+import gate.jape.Rule;
+
+import java.util.Locale;
+
+/**
+ * Counts what one phase of a {@link Transducer} did, over all the documents
+ * it ran on while the transducer was {@link Transducer#setProfile(Boolean)
+ * profiling}. Each copy of a transducer has its own statistics, which only
+ * the thread running that copy writes to; they are added up when a report
+ * is asked for.
+ */
+public class PhaseStatistics {
+
+  /**
+   * The header of the CSV produced by {@link #appendCsv(StringBuilder)}.
+   */
+  public static final String CSV_HEADER = "phase,rule,runs,time_ms," +
+      "annotations_loaded,instances_created,instances_cloned," +
+      "accepting_instances,rules_fired,predicate_hits,predicate_misses," +
+      "predicate_hit_rate";
+
+  protected final String phaseName;
+
+  protected final String[] ruleNames;
+
+  /** The number of documents the phase ran on. */
+  protected long runs;
+
+  /** The time spent in the phase, including loading the annotations. */
+  protected long nanos;
+
+  /** The number of entries of the annotations tables that were built. */
+  protected long annotationsLoaded;
+
+  /** The number of instances started in the initial state. */
+  protected long instancesCreated;
+
+  /** The number of instances cloned when following transitions. */
+  protected long instancesCloned;
+
+  protected long predicateHits;
+
+  protected long predicateMisses;
+
+  /** The number of instances that reached a final state, by rule. */
+  protected final long[] accepting;
+
+  /** The number of times the RHS of each rule was applied. */
+  protected final long[] fired;
+
+  /** The time spent in the RHS of each rule. */
+  protected final long[] ruleNanos;
+
+  /**
+   * @param phaseName the name of the phase in the grammar (see
+   * {@link SPTBase#getGrammarPhaseName()})
+   */
+  public PhaseStatistics(String phaseName, Rule[] rules) {
+    this.phaseName = phaseName;
+    int ruleCount = rules == null ? 0 : rules.length;
+    ruleNames = new String[ruleCount];
+    for(int i = 0; i < ruleCount; i++) ruleNames[i] = rules[i].getName();
+    accepting = new long[ruleCount];
+    fired = new long[ruleCount];
+    ruleNanos = new long[ruleCount];
+  }
+
+  /**
+   * Adds the counts of another copy of the same phase to these ones.
+   */
+  public void add(PhaseStatistics other) {
+    runs += other.runs;
+    nanos += other.nanos;
+    annotationsLoaded += other.annotationsLoaded;
+    instancesCreated += other.instancesCreated;
+    instancesCloned += other.instancesCloned;
+    predicateHits += other.predicateHits;
+    predicateMisses += other.predicateMisses;
+    for(int i = 0; i < ruleNames.length; i++) {
+      accepting[i] += other.accepting[i];
+      fired[i] += other.fired[i];
+      ruleNanos[i] += other.ruleNanos[i];
+    }
+  }
+
+  /**
+   * Writes one CSV row for the phase, followed by one row for each of its
+   * rules. The rule rows only fill in the columns that can be attributed to
+   * a rule: the time spent in its RHS, its accepting instances and the
+   * times it fired.
+   */
+  public void appendCsv(StringBuilder out) {
+    long allAccepting = 0;
+    long allFired = 0;
+    for(int i = 0; i < ruleNames.length; i++) {
+      allAccepting += accepting[i];
+      allFired += fired[i];
+    }
+    long lookups = predicateHits + predicateMisses;
+    out.append(csvField(phaseName)).append(',')
+       .append(',')
+       .append(runs).append(',')
+       .append(millis(nanos)).append(',')
+       .append(annotationsLoaded).append(',')
+       .append(instancesCreated).append(',')
+       .append(instancesCloned).append(',')
+       .append(allAccepting).append(',')
+       .append(allFired).append(',')
+       .append(predicateHits).append(',')
+       .append(predicateMisses).append(',')
+       .append(lookups == 0 ? "" : String.format(Locale.ENGLISH, "%.4f",
+           (double)predicateHits / lookups))
+       .append('\n');
+    for(int i = 0; i < ruleNames.length; i++) {
+      out.append(csvField(phaseName)).append(',')
+         .append(csvField(ruleNames[i])).append(",,")
+         .append(millis(ruleNanos[i])).append(",,,,")
+         .append(accepting[i]).append(',')
+         .append(fired[i]).append(",,,\n");
+    }
+  }
+
+  private static String millis(long nanos) {
+    return String.format(Locale.ENGLISH, "%.3f", nanos / 1e6);
+  }
+
+  private static String csvField(String value) {
+    if(value == null) return "";
+    if(value.indexOf(',') < 0 && value.indexOf('"') < 0) return value;
+    return '"' + value.replace("\"", "\"\"") + '"';
+  }
+}
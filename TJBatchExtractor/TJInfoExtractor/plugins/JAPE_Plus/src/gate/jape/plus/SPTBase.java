@@ -28,13 +28,12 @@ import gate.jape.ActionContext;
 import gate.*;
 
 import java.text.NumberFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -46,10 +45,8 @@ import org.apache.log4j.Logger;
 import com.ontotext.jape.pda.TransitionPDA;
 
 import cern.colt.GenericSorting;
-import cern.colt.Sorting;
 import cern.colt.Swapper;
 import cern.colt.bitvector.QuickBitVector;
-import cern.colt.function.IntComparator;
 import cern.colt.list.IntArrayList;
 import gate.jape.ControllerEventBlocksAction;
 import gate.jape.constraint.ConstraintPredicate;
@@ -159,20 +156,105 @@ public abstract class SPTBase extends AbstractLanguageAnalyser {
     protected int type;
   }
 
+  /**
+   * A node of the list of annotations an {@link FSMInstance} has bound so
+   * far, newest first. Nodes are never changed, so instances cloned from
+   * one another share the part of the list they have in common.
+   */
+  protected static final class BoundAnnotation {
+    /** The index of the annotation in the {@link SPTBase#annotation} array. */
+    protected final int annotationIndex;
+
+    /** The annotation bound before this one, or null. */
+    protected final BoundAnnotation previous;
+
+    /** The number of annotations in the list ending with this one. */
+    protected final int count;
+
+    protected BoundAnnotation(int annotationIndex, BoundAnnotation previous) {
+      this.annotationIndex = annotationIndex;
+      this.previous = previous;
+      this.count = previous == null ? 1 : previous.count + 1;
+    }
+
+    /** @return the number of annotations in a list, which may be empty. */
+    protected static int count(BoundAnnotation list) {
+      return list == null ? 0 : list.count;
+    }
+  }
+
+  /**
+   * A group of the pattern that an {@link FSMInstance} is inside, opened by
+   * an opening-round-bracket transition. Like {@link BoundAnnotation}, the
+   * stack of open groups is shared between clones.
+   */
+  protected static final class OpenGroup {
+    /**
+     * The annotations bound when the group was opened; the group holds all
+     * the annotations bound after them.
+     */
+    protected final BoundAnnotation opened;
+
+    /** The enclosing group, or null. */
+    protected final OpenGroup enclosing;
+
+    protected OpenGroup(BoundAnnotation opened, OpenGroup enclosing) {
+      this.opened = opened;
+      this.enclosing = enclosing;
+    }
+  }
+
+  /**
+   * A labelled group of the pattern that an {@link FSMInstance} has
+   * closed, holding the annotations bound between two nodes of its
+   * {@link BoundAnnotation} list. The closed groups are kept in a list,
+   * newest first, shared between clones like the other two.
+   */
+  protected static final class Binding {
+    protected final String label;
+
+    /** The last annotation bound inside the group. */
+    protected final BoundAnnotation last;
+
+    /** The annotations bound before the group was opened. */
+    protected final BoundAnnotation opened;
+
+    /** The group closed before this one, or null. */
+    protected final Binding previous;
+
+    /**
+     * The number of annotations bound to all the groups in the list ending
+     * with this one.
+     */
+    protected final int count;
+
+    protected Binding(String label, BoundAnnotation last, 
+        BoundAnnotation opened, Binding previous) {
+      this.label = label;
+      this.last = last;
+      this.opened = opened;
+      this.previous = previous;
+      this.count = (previous == null ? 0 : previous.count) +
+          BoundAnnotation.count(last) - BoundAnnotation.count(opened);
+    }
+  }
+
   /**
    * An instance of the state machine.
    */
   protected class FSMInstance implements Comparable<FSMInstance> {
-    public FSMInstance(int annotationIndex, int state, Map<String, IntArrayList> bindings) {
-      this(annotationIndex, state, bindings, new IntArrayList[8]);
+    public FSMInstance(int annotationIndex, int state) {
+      this(annotationIndex, state, null, null, null);
     }
 
-    private FSMInstance(int annotationIndex, int state, Map<String, IntArrayList> bindings, IntArrayList[] bindingStack) {
+    private FSMInstance(int annotationIndex, int state, 
+        BoundAnnotation bound, OpenGroup openGroups, Binding bindings) {
       super();
       this.annotationIndex = annotationIndex;
       this.state = state;
+      this.bound = bound;
+      this.openGroups = openGroups;
       this.bindings = bindings;
-      this.bindingStack = bindingStack;
     }
 
     public int compareTo(FSMInstance other) {
@@ -191,35 +273,23 @@ public abstract class SPTBase extends AbstractLanguageAnalyser {
         if(res == 0) {
           // same rule matching same document segment (probably some zero-length
           // annotations are involved) -> prefer the version with more annotations
-          int thisSize = 0;
-          for(IntArrayList binds : bindings.values()) thisSize += binds.size();
-          int thatSize = 0;
-          for(IntArrayList binds : other.bindings.values()) thatSize += binds.size();
+          int thisSize = bindings == null ? 0 : bindings.count;
+          int thatSize = other.bindings == null ? 0 : other.bindings.count;
           res = thatSize - thisSize;
         }
       }
       return res;
     }
 
+    /**
+     * Makes a copy of this instance. The bindings are immutable lists
+     * shared with the copy, so this takes constant time however many
+     * annotations the instance has bound. The copy is taken from the
+     * {@link SPTBase#instancePool} when it holds one.
+     */
     public FSMInstance clone() {
-      Map<String, IntArrayList> bindsClone = new HashMap<String, IntArrayList>(bindings.size());
-      for(Map.Entry<String, IntArrayList> anEntry : bindings.entrySet()) {
-        bindsClone.put(anEntry.getKey(), anEntry.getValue().copy());
-      }
-      FSMInstance newInstance = new FSMInstance(annotationIndex, state, bindsClone, null);
-      newInstance.bindingStack = new IntArrayList[bindingStack.length];
-      int j, length;
-      for(int i = 0; i < bindingStackStored; i++){
-        if(bindingStack[i] != null){
-          newInstance.bindingStack[i] = new IntArrayList();
-          length = bindingStack[i].size();
-          for(j = 0; j < length; j++){
-            newInstance.bindingStack[i].add(bindingStack[i].get(j));
-          }
-        }
-      }
-      newInstance.bindingStackStored = bindingStackStored;
-      return newInstance;
+      if(statistics != null) statistics.instancesCloned++;
+      return newInstance(annotationIndex, state, bound, openGroups, bindings);
     }
 
     /**
@@ -240,74 +310,56 @@ public abstract class SPTBase extends AbstractLanguageAnalyser {
     public int rule = -1;
 
     /**
-     * Store the currently bound annotations. Keys are binding labels, values
-     * are lists of int values (representing annotation indexes).
+     * The annotations bound while inside at least one group, newest first.
      */
-    protected Map<String, IntArrayList> bindings;
+    protected BoundAnnotation bound;
 
     /**
-     * A stack of bindings. It maps a number i to bindingStack[i]. A string
-     * label L corresponds to each i. This label L becomes clear when a
-     * transition '):L' (of type closing-round-bracket) is consumed. When L
-     * becomes clear, we add the pair <L, bindingStack[i]> into the hash map
-     * bindings.
+     * The stack of groups the instance is inside. A group is opened when a
+     * transition of type opening-round-bracket is consumed and closed by the
+     * matching '):label' transition, when its annotations become bound to
+     * the label.
      */
-    private IntArrayList[] bindingStack;
-  
+    protected OpenGroup openGroups;
+
     /**
-     * The number of the annotation sets stored in the stack. If
-     * bindingStackStored > 0, then the top set of the stack is
-     * bindingStack[bindingStackStored - 1].
+     * The groups closed so far, with the labels their annotations are bound
+     * to. They are only turned into annotation sets when a rule is applied
+     * (see {@link SPTBase#applyRule(FSMInstance)}).
      */
-    private int bindingStackStored;
-  
+    protected Binding bindings;
+
     /**
-     * Pushes a new empty annotation set in the binding stack. This method is
-     * invoked for each opening-round-bracket transition that is consumed during
-     * the traversal.
+     * Opens a new group. This method is invoked for each
+     * opening-round-bracket transition that is consumed during the
+     * traversal.
      */
     public void pushNewEmptyBindingSet() {
-      if (bindingStack.length == bindingStackStored) {
-        bindingStack = Arrays.copyOf(bindingStack, 2 * bindingStackStored);
-      }
-      bindingStack[bindingStackStored] = null;
-      bindingStackStored++;
+      openGroups = new OpenGroup(bound, openGroups);
     }
 
     /**
-     * Pops annotation set from the binding stack and puts it in the hash map
-     * bindings. This method is invoked when a closing-round-bracket transition
-     * '):label' is consumed during the traversal.
+     * Closes the innermost group, binding the annotations matched inside it
+     * to a label. This method is invoked when a closing-round-bracket
+     * transition '):label' is consumed during the traversal.
      */
     public void popBindingSet(String label) {
-      // Here bindingStackStored is always > 0.
-      bindingStackStored--;
-      IntArrayList annotList = bindingStack[bindingStackStored];
-      if (annotList != null && !annotList.isEmpty()) {
-        IntArrayList annotSet = bindings.get(label);
-        if (annotSet == null) {
-          annotSet = new IntArrayList();
-        }
-        int length = annotList.size();
-        for (int i = 0; i < length; i++) {
-          annotSet.add(annotList.get(i));
-        }
-        bindings.put(label, annotSet);
+      // Here openGroups is never null.
+      BoundAnnotation opened = openGroups.opened;
+      openGroups = openGroups.enclosing;
+      if(bound != opened) {
+        bindings = new Binding(label, bound, opened, bindings);
       }
     }
 
     /**
-     * Adds all input annotations to every annotation set stored in the binding stack.
+     * Adds all input annotations to every open group.
      */
     public void bindAnnotations(int[] aStep) {
-      int j;
-      for (int i = 0; i < bindingStackStored; i++) {
-        for (j = 0; j < aStep.length; j++) {
-          if (bindingStack[i] == null) {
-            bindingStack[i] = new IntArrayList();
-          }
-          if(aStep[j] >= 0) bindingStack[i].add(aStep[j]);
-        }
+      // annotations matched outside any group are not bound to anything
+      if(openGroups == null) return;
+      for (int j = 0; j < aStep.length; j++) {
+        if(aStep[j] >= 0) bound = new BoundAnnotation(aStep[j], bound);
       }
     }
 
@@ -368,6 +420,14 @@ public abstract class SPTBase extends AbstractLanguageAnalyser {
    */
   protected static final int ANNOTATION_TYPE_OTHER = -2;
 
+  /**
+   * The pseudo-type of the annotations of the {@link AnnotationTable} that
+   * are not input to the phase. Unlike those of {@link #ANNOTATION_TYPE_OTHER},
+   * they do not stop matching either: the phase steps over them as if they
+   * were not there.
+   */
+  protected static final int ANNOTATION_TYPE_NOT_INPUT = -3;
+
   /**
    * Value used for int fields whose value was not yet calculated.
    */
@@ -383,26 +443,40 @@ public abstract class SPTBase extends AbstractLanguageAnalyser {
   }
 
   /**
-   * An array of all the input annotations, sorted by start offset, then inverse
-   * length. This means that at each offset, the longest annotation is always
-   * first.
+   * An array of all the annotations of the input annotation set, sorted by
+   * start offset, then inverse length. This means that at each offset, the
+   * longest annotation is always first. This is the array of the
+   * {@link AnnotationTable}, which also holds the annotations that are not
+   * input to this phase: their type is {@link #ANNOTATION_TYPE_NOT_INPUT}.
    */
   protected Annotation[] annotation;
 
+  /**
+   * The number of annotations in the table: the arrays holding them, which
+   * are reused from phase to phase (see {@link PhaseArrays}), may be longer.
+   */
+  protected int annotationCount;
+
   /**
    * The type for each annotation in the {@link #annotation} array. The values
-   * in this array are either an index in the {@link #annotationTypes} array, or
-   * {@link #ANNOTATION_TYPE_OTHER}.
+   * in this array are either an index in the {@link #annotationTypes} array,
+   * {@link #ANNOTATION_TYPE_OTHER} or {@link #ANNOTATION_TYPE_NOT_INPUT}.
    */
   protected int[] annotationType;
 
   /**
    * For each annotation, this array holds the index (in the {@link #annotation}
-   * array) of the first annotation starting at the next offset (following this
-   * annotation's <b>start</b> offset).
+   * array) of the first input annotation starting at the next offset
+   * (following this annotation's <b>start</b> offset).
    */
   protected int[] annotationNextOffset;
 
+  /**
+   * For each annotation, the index of the first input annotation at or after
+   * it in the {@link #annotation} array.
+   */
+  protected int[] annotationNextInput;
+
   /**
    * Used for the predicates cache. For each annotation, a bit vector is stored.
    * The length of the bit vector is equal to the number of predicates for the
@@ -421,11 +495,19 @@ public abstract class SPTBase extends AbstractLanguageAnalyser {
   protected long[][] annotationPredicateValues;
 
   /**
-   * An array that, for each input annotation, points to the first annotation
-   * starting at (or after) the offset where the current annotation ends.
+   * An array that, for each input annotation, points to the first input
+   * annotation starting at (or after) the offset where the current annotation
+   * ends.
    */
   protected int[] annotationFollowing;
 
+  /**
+   * The index of the annotations of each type used by <tt>contains</tt> and
+   * <tt>within</tt> predicates, built the first time one is checked (see
+   * {@link #intervalIndex(int)}).
+   */
+  protected IntervalIndex[] intervalIndexes;
+
   /**
    * The states of the state machine. State at index 0 is always the initial
    * state.
@@ -477,14 +559,60 @@ public abstract class SPTBase extends AbstractLanguageAnalyser {
   protected final boolean groupMatchingMode;
 
   /**
-   * The list of active FSM instances.
+   * The queue of active FSM instances, kept from one document to the next.
+   */
+  protected final ArrayDeque<FSMInstance> activeInstances = 
+      new ArrayDeque<FSMInstance>();
+
+  /**
+   * The list of FSM instances that have reached a final state, kept from
+   * one document to the next.
+   */
+  protected final ArrayList<FSMInstance> acceptingInstances = 
+      new ArrayList<FSMInstance>();
+
+  /**
+   * The largest number of FSM instances kept in {@link #instancePool}.
+   */
+  protected static final int MAX_POOLED_INSTANCES = 4096;
+
+  /**
+   * FSM instances that are no longer active nor accepting, handed out again
+   * by {@link #newInstance} instead of making new ones. Each instance lives
+   * through a single step of the matching, so once the pool has grown to
+   * the widest step of a document the matching makes no new instances.
+   */
+  protected final ArrayList<FSMInstance> instancePool = 
+      new ArrayList<FSMInstance>();
+
+  /**
+   * The current step of {@link #generateAllNewInstances}, one annotation
+   * index for each constraint of the transition.
+   */
+  protected int[] step = new int[0];
+
+  /**
+   * The candidate each constraint is at in {@link #step}.
+   */
+  protected int[] stepIndexes = new int[0];
+
+  /**
+   * The maximum number of active FSM instances for the current execution, or
+   * 0 for no limit (see {@link Transducer#setMaxActiveInstances(Integer)}).
+   */
+  protected int maxActiveInstances;
+
+  /**
+   * Set when the active FSM instances grew beyond
+   * {@link #maxActiveInstances}; the rest of the document was skipped.
    */
-  protected LinkedList<FSMInstance> activeInstances;
+  protected boolean overBudget;
 
   /**
-   * The list of FSM instances that have reached a final state.
+   * Where the work of this phase is counted while the owner is profiling,
+   * otherwise null (see {@link Transducer#setProfile(Boolean)}).
    */
-  protected List<FSMInstance> acceptingInstances;
+  protected PhaseStatistics statistics;
 
   protected SPTBase(String phaseName, 
                     String[] bindingNames, 
@@ -521,149 +649,107 @@ public abstract class SPTBase extends AbstractLanguageAnalyser {
       for(String aType : allTypes)
         inputAnnotationTypes[index++] = aType;
     }
-    // calculate the total number of annotations, and separate them by type
-    int annCount = 0;
-    final Annotation[][] annotsByType =
-            new Annotation[inputAnnotationTypes.length][];
-    //the internal type (int) for each input type
-    int internalTypes[] = new int[inputAnnotationTypes.length];
-    for(int type = 0; type < inputAnnotationTypes.length; type++) {
-      String aType = inputAnnotationTypes[type];
-      internalTypes[type] = ANNOTATION_TYPE_OTHER;
+    intervalIndexes = null;
+    // the phase reads the table through the internal type (int) of each
+    // annotation type of the table, which is not input unless it is one of
+    // the input types
+    AnnotationTable table = owner.getAnnotationTable();
+    table.merge();
+    int[] internalTypes = new int[table.getTypeCount()];
+    Arrays.fill(internalTypes, ANNOTATION_TYPE_NOT_INPUT);
+    for(String aType : inputAnnotationTypes) {
+      int id = table.getTypeId(aType);
+      if(id < 0) continue;
+      internalTypes[id] = ANNOTATION_TYPE_OTHER;
       for(int i = 0; i < annotationTypes.length; i++) {
         if(annotationTypes[i].equals(aType)) {
-          internalTypes[type] = i;
+          internalTypes[id] = i;
           break;
         }
       }
-      Annotation[] ofOneType = owner.getSortedAnnotations(aType);
-      annCount += ofOneType.length;
-      annotsByType[type] = ofOneType;
-    }
-    // now add all the input annotations to the main annotations table
-    //holds the position we're reading from in each of the annotation arrays
-    final int[] typeIndex = new int[annotsByType.length];
-    //an array that keeps the order over the types lists
-    final int[] typesOrder = new int [annotsByType.length];
-    //an int comparator between annotation lists, that wraps the owner's 
-    //comparator and handles the indirection
-    IntComparator typeComparator = new IntComparator() {
-      public int compare(int type1, int type2) {
-        if(typeIndex[type1] >= annotsByType[type1].length){
-          //first list out of annotations
-          if(typeIndex[type2] >= annotsByType[type2].length){
-            return 0;
-          }else{
-            //first list is larger than all (goes to the end of the sort array)  
-            return 1;
-          }
-        }else if(typeIndex[type2] >= annotsByType[type2].length){
-          //second list out of annots, but first list still has some
-          return -1;
-        }
-        Annotation a1 = annotsByType[type1][typeIndex[type1]];
-        Annotation a2 = annotsByType[type2][typeIndex[type2]];
-        return owner.annotationComparator.compare(a1, a2);
-      }
-    };
-    for(int i = 0; i < typesOrder.length; i++){
-      typesOrder[i] = i;
     }
-    Sorting.quickSort(typesOrder, 0, typesOrder.length, typeComparator);
-    //now build the annotation and annotationType arrays
-    annotation = new Annotation[annCount];
-    annotationType = new int[annCount];
-    int annIdx = 0;
-    if(typesOrder.length > 0){ // if there are any annotations
-      while(true){
-        int nextType = typesOrder[0];
-        //exit condition
-        if(typeIndex[nextType] >= annotsByType[nextType].length){
-          //sanity check
-          if(annIdx != annCount){
-            throw new RuntimeException(
-                    "Malfunction while building the annotation table: " +
-                    "sorted " + annIdx + " annotations instead of " + annCount);
-          }
-          break;
-        }
-        //take the next annotation
-        annotation[annIdx] = annotsByType[nextType][typeIndex[nextType]];
-        typeIndex[nextType]++;
-        //save the internal type
-        annotationType[annIdx] = internalTypes[nextType];
-        //increment the index
-        annIdx++;
-        //recalculate the position for the list we just used 
-        int insertPos = binarySearchFromTo(typesOrder, 1, typesOrder.length -1, 
-                typeComparator);
-        if(insertPos < 0){
-          //no equal value found
-          insertPos = -1 -insertPos;
-        }
-        //everything gets shifted left, including the insertion point
-        insertPos -= 1;
-        
-        
-        for(int i = 0; i < insertPos; i++){
-          typesOrder[i] = typesOrder[i+1];
-        }
-        typesOrder[insertPos] = nextType;
-      }      
+    int annCount = table.size();
+    PhaseArrays arrays = owner.getPhaseArrays();
+    arrays.ensureCapacity(annCount);
+    annotation = table.getAnnotations();
+    annotationCount = annCount;
+    annotationType = arrays.annotationType;
+    int[] tableTypes = table.getTypes();
+    for(int i = 0; i < annCount; i++) {
+      annotationType[i] = internalTypes[tableTypes[i]];
     }
     
     // initialise the nextAnnotation array with -1
-    annotationFollowing = new int[annCount];
-    for(int i = 0; i < annotationFollowing.length; i++) {
-      annotationFollowing[i] = NOT_CALCULATED;
+    annotationFollowing = arrays.annotationFollowing;
+    Arrays.fill(annotationFollowing, 0, annCount, NOT_CALCULATED);
+    // calculate the annotationNextInput and annotationNextOffset arrays,
+    // from the last annotation back: the next offset of an annotation is
+    // the next input annotation of the first annotation starting after it
+    annotationNextInput = arrays.annotationNextInput;
+    annotationNextOffset = arrays.annotationNextOffset;
+    long[] starts = table.getStarts();
+    int nextInput = Integer.MAX_VALUE;
+    int nextOffset = Integer.MAX_VALUE;
+    for(int i = annCount - 1; i >= 0; i--) {
+      if(i + 1 < annCount && starts[i + 1] > starts[i]) nextOffset = nextInput;
+      if(annotationType[i] != ANNOTATION_TYPE_NOT_INPUT) nextInput = i;
+      annotationNextInput[i] = nextInput;
+      annotationNextOffset[i] = nextOffset;
     }
-    // calculate the annotationNextOffset array
-    annotationNextOffset = new int[annCount];
-    if(annCount > 0) {
-      long currentOffset = annotation[0].getStartNode().getOffset();
-      int currentOffsetStart = 0;
-      for(int i = 1; i < annotation.length; i++) {
-        long newOffset = annotation[i].getStartNode().getOffset();
-        if(newOffset > currentOffset) {
-          // we have a new start offset
-          for(int j = currentOffsetStart; j < i; j++) {
-            annotationNextOffset[j] = i;
-          }
-          currentOffset = newOffset;
-          currentOffsetStart = i;
-        }
-      }
-      // the last annotations don't have a next offset
-      for(int j = currentOffsetStart; j < annotation.length; j++) {
-        annotationNextOffset[j] = Integer.MAX_VALUE;
-      }
-    }
-    // initialise the predicates arrays
-    annotationPredicateComputed = new long[annCount][];
-    annotationPredicateValues = new long[annCount][];
-    for(int i = 0; i < annotation.length; i++) {
+    // initialise the predicates arrays, reusing the bit vectors of the
+    // last phase where they have the right size
+    annotationPredicateComputed = arrays.annotationPredicateComputed;
+    annotationPredicateValues = arrays.annotationPredicateValues;
+    for(int i = 0; i < annCount; i++) {
       if(annotationType[i] >= 0 && 
          predicatesByType[annotationType[i]] != null){
-        annotationPredicateComputed[i] =
-                QuickBitVector.makeBitVector(
-                        predicatesByType[annotationType[i]].length, 1);
-        annotationPredicateValues[i] =
-                QuickBitVector.makeBitVector(
-                        predicatesByType[annotationType[i]].length, 1);
+        int size = predicatesByType[annotationType[i]].length;
+        annotationPredicateComputed[i] = 
+                bitVector(annotationPredicateComputed[i], size);
+        annotationPredicateValues[i] = 
+                bitVector(annotationPredicateValues[i], size);
+      } else if(annotationType[i] != ANNOTATION_TYPE_NOT_INPUT) {
+        annotationPredicateComputed[i] = null;
+        annotationPredicateValues[i] = null;
       }
     } 
   }
   
-  protected static int binarySearchFromTo(int[] array, int from, int to, IntComparator comp) {
-    final int key = 0;
-    while (from <= to) {
-      int mid = (from + to) / 2;
-      int comparison = comp.compare(array[mid], array[key]);
-      if (comparison < 0) from = mid + 1;
-      else if (comparison > 0) to = mid - 1;
-      else return mid; // key found
+  /**
+   * @return the index in the {@link #annotation} array of the first input
+   *   annotation at or after an index, or <tt>Integer.MAX_VALUE</tt> if
+   *   there is none
+   */
+  protected int nextInput(int idx) {
+    return idx < annotationCount ? annotationNextInput[idx] : Integer.MAX_VALUE;
+  }
+  
+  /**
+   * @return a cleared bit vector of a size, which is the one given if it
+   *   fits
+   */
+  private static long[] bitVector(long[] old, int size) {
+    if(old != null && old.length == ((size - 1) >> 6) + 1) {
+      Arrays.fill(old, 0L);
+      return old;
+    }
+    return QuickBitVector.makeBitVector(size, 1);
+  }
+  
+  /**
+   * @return the index of the annotations of a type in the {@link #annotation}
+   *   array, built when first asked for
+   */
+  protected IntervalIndex intervalIndex(int type) {
+    if(intervalIndexes == null) {
+      intervalIndexes = new IntervalIndex[annotationTypes.length];
+    }
+    IntervalIndex index = intervalIndexes[type];
+    if(index == null) {
+      index = new IntervalIndex(annotation, annotationType, annotationCount, type);
+      intervalIndexes[type] = index;
     }
-    return -(from + 1);  // key not found.
+    return index;
   }
 
   /**
@@ -686,60 +772,18 @@ public abstract class SPTBase extends AbstractLanguageAnalyser {
       // annotations are sorted by start offset, and have non-negative length
       // -> next annotation cannot be before current annotation.
       int from = idx;
-      int to = annotation.length -1;
-      while(from <= to) {
-        int mid = (from + to) / 2;
-        long midStartOffset = annotation[mid].getStartNode().getOffset();
-        if(midStartOffset > endOffset) {
-          // move to the left
-          // skip all annotations of the same starting offset
-          while(mid > from && 
-                annotationNextOffset[mid -1] == annotationNextOffset[mid]){
-            mid--;
-          }
-          if(annotation[mid -1].getStartNode().getOffset() < endOffset){
-            //we found the right value
-            annotationFollowing[idx] = mid;
-            break;
-          }else{
-            to = mid - 1;
-          }
-        } else if(midStartOffset < endOffset) {
-          // move to the right
-          //skip all anots at the same offset
-          mid = annotationNextOffset[mid];
-          if(mid > annotation.length){
-            //no more annotations
-            annotationFollowing[idx] = Integer.MAX_VALUE;
-            break;
-          }else if(annotation[mid].getStartNode().getOffset() > endOffset){
-            //we found the right value
-            annotationFollowing[idx] = mid;
-            break;
-          }else{
-            from = mid;  
-          }
-        } else {
-          // we have an exact match
-          // move the the left to find first correct annot
-          while(mid > from
-                  && annotation[mid - 1].getStartNode().getOffset() == midStartOffset) {
-            mid--;
-          }
-          annotationFollowing[idx] = mid;
-          break;
-        }
-      }
-      
-      if(annotationFollowing[idx] == NOT_CALCULATED) {
-        // we could not find an exact match.
-        // find first annotation after from
-        if(from < annotation.length) {
-          annotationFollowing[idx] = from;
+      int to = annotationCount;
+      while(from < to) {
+        int mid = (from + to) >>> 1;
+        if(annotation[mid].getStartNode().getOffset() < endOffset) {
+          from = mid + 1;
         } else {
-          annotationFollowing[idx] = Integer.MAX_VALUE;
+          to = mid;
         }
       }
+      // the first annotation starting at or after the end offset may not be
+      // input to this phase
+      annotationFollowing[idx] = nextInput(from);
     }
     return annotationFollowing[idx];
   }
@@ -952,70 +996,62 @@ public abstract class SPTBase extends AbstractLanguageAnalyser {
       case CONTAINS:
         {
           int[] constraints = (int[])predicate.featureValue;
-          // find all annotations contained in this annotation
-          // annotations are sorted by start offset
-          int currAnnIdx = annotationId;
+          // find all annotations of the right type contained in this
+          // annotation: those starting within its span that end by its end
+          IntervalIndex index = intervalIndex(constraints[0]);
           long startOffset = annotation[annotationId].getStartNode().getOffset();
           long endOffset = annotation[annotationId].getEndNode().getOffset();
-          // move left until we find the first annotation starting here
-          while(currAnnIdx > 0 && 
-              annotation[currAnnIdx -1].getStartNode().getOffset() == startOffset) {
-            currAnnIdx--;
-          }
-          while(currAnnIdx < annotation.length &&
-                annotation[currAnnIdx].getStartNode().getOffset() <= endOffset) {
-            if(annotationType[currAnnIdx] == constraints[0] &&
-               annotation[currAnnIdx].getEndNode().getOffset() <= endOffset) {
-              // annotation is of correct type and contained
-              // now check the constraint predicates
-              boolean predicatesHappy = true;
-              for(int predIdx = 2;
-                  predIdx < constraints.length && predicatesHappy; 
-                  predIdx++) {
-                predicatesHappy &= (checkPredicate(currAnnIdx, constraints[predIdx]));
-              }
-              if((constraints[1] >= 0 && predicatesHappy) ||
-                 // negated constraint 
-                 (constraints[1] < 0 && !predicatesHappy)) {
-                result = true;
-                break predtype;
-              }
+          int pos = index.firstStartingFrom(startOffset);
+          int before = index.firstStartingFrom(endOffset + 1);
+          while(pos < before &&
+                (pos = index.firstEndingBy(pos, before, endOffset)) >= 0) {
+            int currAnnIdx = index.tableIndex(pos);
+            // annotation is of correct type and contained
+            // now check the constraint predicates
+            boolean predicatesHappy = true;
+            for(int predIdx = 2;
+                predIdx < constraints.length && predicatesHappy; 
+                predIdx++) {
+              predicatesHappy &= (checkPredicate(currAnnIdx, constraints[predIdx]));
+            }
+            if((constraints[1] >= 0 && predicatesHappy) ||
+               // negated constraint 
+               (constraints[1] < 0 && !predicatesHappy)) {
+              result = true;
+              break predtype;
             }
             // try the next ann
-            currAnnIdx++;
+            pos++;
           }
         }
         break;
       case WITHIN: 
         {
           int[] constraints = (int[])predicate.featureValue;
-          // find all annotations containing this annotation
-          // annotations are sorted by start offset
-          int currAnnIdx = 0;
+          // find all annotations of the right type containing this
+          // annotation: those starting by its start that end at or after
+          // its end
+          IntervalIndex index = intervalIndex(constraints[0]);
           int maxCurrAnn = annotationNextOffset[annotationId];
-          if(maxCurrAnn >= annotation.length) maxCurrAnn = annotation.length;
+          if(maxCurrAnn >= annotationCount) maxCurrAnn = annotationCount;
           long endOffset = annotation[annotationId].getEndNode().getOffset();
-          // move left until we find the first annotation starting here
-          while(currAnnIdx < maxCurrAnn) {
-            if(annotationType[currAnnIdx] == constraints[0] &&
-               annotation[currAnnIdx].getEndNode().getOffset() >= endOffset) {
-              // annotation is of correct type and contains the current one
-              // now check the constraint predicates
-              boolean predicatesHappy = true;
-              for(int predIdx = 2;
-                  predIdx < constraints.length && predicatesHappy; 
-                  predIdx++) {
-                predicatesHappy &= (checkPredicate(currAnnIdx, constraints[predIdx]));
-              }
-              if((constraints[1] >= 0 && predicatesHappy) ||
-                 // negated constraint 
-                 (constraints[1] < 0 && !predicatesHappy)) {
-                result = true;
-                break predtype;
-              }
+          int pos = index.positionOfTableIndex(maxCurrAnn);
+          while((pos = index.lastEndingFrom(pos, endOffset)) >= 0) {
+            int currAnnIdx = index.tableIndex(pos);
+            // annotation is of correct type and contains the current one
+            // now check the constraint predicates
+            boolean predicatesHappy = true;
+            for(int predIdx = 2;
+                predIdx < constraints.length && predicatesHappy; 
+                predIdx++) {
+              predicatesHappy &= (checkPredicate(currAnnIdx, constraints[predIdx]));
+            }
+            if((constraints[1] >= 0 && predicatesHappy) ||
+               // negated constraint 
+               (constraints[1] < 0 && !predicatesHappy)) {
+              result = true;
+              break predtype;
             }
-            // try the next ann
-            currAnnIdx++;
           }
         }
         break;
@@ -1036,6 +1072,7 @@ public abstract class SPTBase extends AbstractLanguageAnalyser {
    * @throws ExecutionException
    */
   public void execute() throws ExecutionException {
+    long startTime = statistics == null ? 0 : System.nanoTime();
     // fire the progress start event
     fireProgressChanged(0);
     // the annotation for which we last reported the progress
@@ -1044,66 +1081,87 @@ public abstract class SPTBase extends AbstractLanguageAnalyser {
     loadAnnotations();
     predicateHits = 0;
     predicateMisses = 0;
-    activeInstances = new LinkedList<FSMInstance>();
-    acceptingInstances = new ArrayList<FSMInstance>();
-    int currentAnnotation = 0;
-    topWhile: while(currentAnnotation < annotation.length) {
+    Integer max = owner.getMaxActiveInstances();
+    maxActiveInstances = max == null ? 0 : max.intValue();
+    overBudget = false;
+    // drop any instances left over by a failed run
+    recycleInstances();
+    int currentAnnotation = nextInput(0);
+    topWhile: while(currentAnnotation < annotationCount) {
       // start with state 0
-      activeInstances.add(new FSMInstance(currentAnnotation, 0,
-              new HashMap<String, IntArrayList>()));      
+      activeInstances.addLast(newInstance(currentAnnotation, 0, null, null, 
+          null));
+      if(statistics != null) statistics.instancesCreated++;
       instances:while(activeInstances.size() > 0) {
         if(owner.isInterrupted()) throw new ExecutionInterruptedException(
                 "The execution of the \"" + getName() + 
                 "\" JAPE Plus transducer has been interrupted!");
+        if(overBudget || (maxActiveInstances > 0 && 
+           activeInstances.size() > maxActiveInstances)) {
+          // give up on this phase rather than run out of time or memory
+          overBudget = true;
+          logger.debug("Phase \"" + phaseName + "\" exceeded " + 
+              maxActiveInstances + " active instances.");
+          break topWhile;
+        }
         // The matching needs to run in breadth-first-search mode, in order to
         // support Once and First matching modes. The algorithm is that we
         // advance the top instance, and queue all resulting instances.
         // get the first instance
         FSMInstance fsmInstance = activeInstances.removeFirst();
+        boolean done;
         try {
-          if(advanceInstance(fsmInstance)) break instances;
+          done = advanceInstance(fsmInstance);
         } catch(JapeException e) {
           throw new ExecutionException(e);
         }
+        // the instance has been replaced by the ones it advanced to
+        recycleInstance(fsmInstance);
+        if(done) break instances;
       }// while activeInstances not empty
       // at this point, there are no more active instances (or we exited due to
       // matching mode being First or Once).
       // fire all rules that need firing, update the currentAnnotation value
       int oldCurrAnn = currentAnnotation;
-      if(acceptingInstances.size() > 0) {
+      int accepting = acceptingInstances.size();
+      if(statistics != null) {
+        for(int i = 0; i < accepting; i++) {
+          statistics.accepting[acceptingInstances.get(i).rule]++;
+        }
+      }
+      if(accepting > 0) {
         try {
           switch(matchMode){
             case APPELT:
-              // sort accepting instances so that the first one is:
-              // the longest match, the higher priority, the first rule in the
-              // file
-              Collections.sort(acceptingInstances);
+              // find the first of the best accepting instances: the longest
+              // match, the higher priority, the first rule in the file
               FSMInstance topInstance = acceptingInstances.get(0);
+              for(int i = 1; i < accepting; i++) {
+                FSMInstance anInstance = acceptingInstances.get(i);
+                if(anInstance.compareTo(topInstance) < 0) {
+                  topInstance = anInstance;
+                }
+              }
               currentAnnotation = topInstance.annotationIndex;
               applyRule(topInstance);
               if(debugMode || groupMatchingMode) {
-                List<FSMInstance> otherEqualInstances =
-                        new LinkedList<FSMInstance>();
-                int i = 1;
-                while(i < acceptingInstances.size()
-                        && topInstance.compareTo(acceptingInstances.get(i)) == 0) {
-                  otherEqualInstances.add(acceptingInstances.get(i++));
-                }
-                if(otherEqualInstances.size() > 0) {
-                  if(debugMode) {
+                boolean warned = false;
+                for(int i = 0; i < accepting; i++) {
+                  FSMInstance anInstance = acceptingInstances.get(i);
+                  if(anInstance == topInstance ||
+                     anInstance.compareTo(topInstance) != 0) continue;
+                  if(debugMode && !warned) {
                     logger.warn("Multiple equivalent matches in Appelt mode!");
+                    warned = true;
                   }
-                  if(groupMatchingMode) {
-                    for(FSMInstance anInstance : otherEqualInstances) {
-                      applyRule(anInstance);
-                    }
-                  }
+                  if(groupMatchingMode) applyRule(anInstance);
                 }
               }
               break;
             case BRILL:
               int maxNext = Integer.MIN_VALUE;
-              for(FSMInstance anInstance : acceptingInstances) {
+              for(int i = 0; i < accepting; i++) {
+                FSMInstance anInstance = acceptingInstances.get(i);
                 applyRule(anInstance);
                 if(anInstance.annotationIndex > maxNext) {
                   maxNext = anInstance.annotationIndex;
@@ -1112,8 +1170,8 @@ public abstract class SPTBase extends AbstractLanguageAnalyser {
               currentAnnotation = maxNext;
               break;
             case ALL:
-              for(FSMInstance anInstance : acceptingInstances) {
-                applyRule(anInstance);
+              for(int i = 0; i < accepting; i++) {
+                applyRule(acceptingInstances.get(i));
               }
               // move to the next relevant offset in the input 
               currentAnnotation = annotationNextOffset[currentAnnotation];
@@ -1122,13 +1180,13 @@ public abstract class SPTBase extends AbstractLanguageAnalyser {
               FSMInstance anInstance = acceptingInstances.get(0);
               applyRule(anInstance);
               currentAnnotation = anInstance.annotationIndex;
-              activeInstances.clear();
+              recycleInstances();
               break;
             case ONCE:
               applyRule(acceptingInstances.get(0));
               break topWhile;
           }
-          acceptingInstances.clear();
+          recycleInstances();
           // make sure the matching advances by at least the minimum amount
           // (a rule with only a Kleene* can legitimately match nothing, leading
           // to an infinite loop)
@@ -1153,22 +1211,31 @@ public abstract class SPTBase extends AbstractLanguageAnalyser {
         break topWhile;
       }
       // fire the progress event
-      if(currentAnnotation - lastProgressReportAnnIdx > annotation.length / 10) {
-        fireProgressChanged(currentAnnotation * 100 / annotation.length);
+      if(currentAnnotation - lastProgressReportAnnIdx > annotationCount / 10) {
+        fireProgressChanged(currentAnnotation * 100 / annotationCount);
         lastProgressReportAnnIdx = currentAnnotation;
       }
-    }// while(currentAnnotation < annotation.length)
+    }// while(currentAnnotation < annotationCount)
     // execution completed -> clean up the internal data structures.
+    if(statistics != null) {
+      statistics.runs++;
+      statistics.annotationsLoaded += annotationCount;
+      statistics.predicateHits += predicateHits;
+      statistics.predicateMisses += predicateMisses;
+      statistics.nanos += System.nanoTime() - startTime;
+    }
     fireProcessFinished();
     inputAS = null;
     annotation = null;
     annotationFollowing = null;
     annotationNextOffset = null;
+    annotationNextInput = null;
     annotationPredicateComputed = null;
     annotationPredicateValues = null;
     annotationType = null;
-    acceptingInstances = null;
-    activeInstances = null;
+    annotationCount = 0;
+    intervalIndexes = null;
+    recycleInstances();
     ontology = null;
 //    System.out.println("Predicate hit rate:" + percentFormat.format(
 //            ((double)predicateHits / (predicateHits + predicateMisses))));
@@ -1177,8 +1244,30 @@ public abstract class SPTBase extends AbstractLanguageAnalyser {
   protected void generateAllNewInstances(FSMInstance instance,
                                          int nextState,
                                          IntArrayList[] annotsForConstraints) {
-    List<int[]> nextSteps = enumerateCombinations(annotsForConstraints);
-    for(int[] aStep : nextSteps) {
+    if(maxActiveInstances > 0) {
+      // don't enumerate more combinations than the budget allows
+      long combinations = 1;
+      for(IntArrayList candidates : annotsForConstraints) {
+        combinations *= candidates.size();
+        if(activeInstances.size() + combinations > maxActiveInstances) {
+          overBudget = true;
+          return;
+        }
+      }
+    }
+    // enumerate the combinations of candidates in place, the last
+    // constraint changing fastest
+    int length = annotsForConstraints.length;
+    if(step.length != length) {
+      step = new int[length];
+      stepIndexes = new int[length];
+    }
+    for(int i = 0; i < length; i++) {
+      stepIndexes[i] = 0;
+      step[i] = annotsForConstraints[i].getQuick(0);
+    }
+    int[] aStep = step;
+    while(true) {
       FSMInstance nextInstance = instance.clone();
       // update the data in the next instance            
       nextInstance.state = nextState;
@@ -1199,8 +1288,11 @@ public abstract class SPTBase extends AbstractLanguageAnalyser {
       // make sure that next annotation is greater than all the ones
       // already matched. 
       if(nextAnnotationForInstance <= maxNextStep) {
-        if(maxNextStep < annotation.length -2) {
-          nextAnnotationForInstance = maxNextStep + 1;
+        // unless it is the last but one input annotation or later
+        int afterMaxNextStep = nextInput(maxNextStep + 1);
+        if(afterMaxNextStep != Integer.MAX_VALUE &&
+           nextInput(afterMaxNextStep + 1) != Integer.MAX_VALUE) {
+          nextAnnotationForInstance = afterMaxNextStep;
         } else {
           // no more annotations
           nextAnnotationForInstance = Integer.MAX_VALUE;
@@ -1209,6 +1301,66 @@ public abstract class SPTBase extends AbstractLanguageAnalyser {
       nextInstance.annotationIndex = nextAnnotationForInstance;
       nextInstance.bindAnnotations(aStep);
       activeInstances.addLast(nextInstance);
+      // move on to the next combination
+      int slot = length - 1;
+      while(slot >= 0 && 
+            stepIndexes[slot] == annotsForConstraints[slot].size() - 1) {
+        stepIndexes[slot] = 0;
+        step[slot] = annotsForConstraints[slot].getQuick(0);
+        slot--;
+      }
+      if(slot < 0) break;
+      step[slot] = annotsForConstraints[slot].getQuick(++stepIndexes[slot]);
+    }
+  }
+
+  /**
+   * Makes an FSM instance, taking one from the {@link #instancePool} when
+   * there is one.
+   */
+  protected FSMInstance newInstance(int annotationIndex, int state, 
+      BoundAnnotation bound, OpenGroup openGroups, Binding bindings) {
+    int pooled = instancePool.size();
+    if(pooled == 0) {
+      return new FSMInstance(annotationIndex, state, bound, openGroups, 
+          bindings);
+    }
+    FSMInstance instance = instancePool.remove(pooled - 1);
+    instance.annotationIndex = annotationIndex;
+    instance.state = state;
+    instance.rule = -1;
+    instance.bound = bound;
+    instance.openGroups = openGroups;
+    instance.bindings = bindings;
+    return instance;
+  }
+
+  /**
+   * Returns an FSM instance that is neither active nor accepting any more
+   * to the {@link #instancePool}.
+   */
+  protected void recycleInstance(FSMInstance instance) {
+    if(instancePool.size() < MAX_POOLED_INSTANCES) {
+      // let go of the annotations it had bound
+      instance.bound = null;
+      instance.openGroups = null;
+      instance.bindings = null;
+      instancePool.add(instance);
+    }
+  }
+
+  /**
+   * Empties the queue of active instances and the list of accepting ones,
+   * returning their instances to the {@link #instancePool}.
+   */
+  protected void recycleInstances() {
+    for(int i = 0; i < acceptingInstances.size(); i++) {
+      recycleInstance(acceptingInstances.get(i));
+    }
+    acceptingInstances.clear();
+    FSMInstance instance;
+    while((instance = activeInstances.pollFirst()) != null) {
+      recycleInstance(instance);
     }
   }
   
@@ -1216,60 +1368,63 @@ public abstract class SPTBase extends AbstractLanguageAnalyser {
   protected void applyRule(FSMInstance instance) throws JapeException {
     // convert bindings to correct type
     Map<String, AnnotationSet> newBindings =
-            new HashMap<String, AnnotationSet>(instance.bindings.size());
-    for(Map.Entry<String, IntArrayList> entry : instance.bindings.entrySet()) {
-      AnnotationSet boundAnnots = new AnnotationSetImpl(document);
-      for(int i = 0; i < entry.getValue().size(); i++) {
-        boundAnnots.add(annotation[entry.getValue().getQuick(i)]);
+            new HashMap<String, AnnotationSet>();
+    for(Binding binding = instance.bindings; binding != null; 
+        binding = binding.previous) {
+      AnnotationSet boundAnnots = newBindings.get(binding.label);
+      if(boundAnnots == null) {
+        boundAnnots = new AnnotationSetImpl(document);
+        newBindings.put(binding.label, boundAnnots);
+      }
+      for(BoundAnnotation bound = binding.last; bound != binding.opened;
+          bound = bound.previous) {
+        boundAnnots.add(annotation[bound.annotationIndex]);
       }
-      newBindings.put(entry.getKey(), boundAnnots);
     }
+    long startTime = statistics == null ? 0 : System.nanoTime();
     rules[instance.rule].getRHS().transduce(document,
             newBindings, document.getAnnotations(inputASName),
             document.getAnnotations(outputASName), ontology, actionContext);
+    if(statistics != null) {
+      statistics.fired[instance.rule]++;
+      statistics.ruleNanos[instance.rule] += System.nanoTime() - startTime;
+    }
   }
 
   /**
-   * Calculates all possible N-uples given a set of candidate slot fillers.
-   * 
-   * @param candidates
-   *          an array on size N, where each row i contains a list of candidates
-   *          for the i-th position.
-   * @return a list of N-uples, representing all possible combinations of the
-   *         input candidates.
-   */
-  protected final static List<int[]> enumerateCombinations(IntArrayList[] candidates) {
-    List<int[]> combinations = new ArrayList<int[]>();
-    int[] indexes = new int[candidates.length];
-    int currentIndex = indexes.length;
-    while(true) {
-      if(currentIndex == indexes.length) {
-        // we have a complete solution
-        int[] aSolution = new int[indexes.length];
-        for(int i = 0; i < indexes.length; i++) {
-          aSolution[i] = candidates[i].get(indexes[i]);
-        }
-        combinations.add(aSolution);
-        // next time, try again to set the last slot
-        currentIndex--;
-      } else if(currentIndex < 0) {
-        // we have run out of solutions
-        break;
-      } else {
-        // we are looking at an arbitrary index
-        if(indexes[currentIndex] < candidates[currentIndex].size() - 1) {
-          // update solution on current index
-          indexes[currentIndex]++;
-          // next look at the next slot
-          currentIndex++;
-        } else {
-          // no more values for this slot -> move back
-          indexes[currentIndex] = -1;
-          currentIndex--;
-        }
-      }
+   * @return the name of the phase.
+   */
+  public String getPhaseName() {
+    return phaseName;
+  }
+
+  /**
+   * @return the name the phase has in the grammar, which unlike
+   * {@link #getPhaseName()}, the name of the generated class, is the same
+   * from one run to the next; or the class name if the rules do not know it.
+   */
+  public String getGrammarPhaseName() {
+    if(rules != null && rules.length > 0 && rules[0].getRHS() != null) {
+      String name = rules[0].getRHS().getPhaseName();
+      if(name != null) return name;
     }
-    return combinations;
+    return phaseName;
+  }
+
+  /**
+   * Makes the following executions count their work in the given
+   * statistics, or stops counting if they are null.
+   */
+  public void setStatistics(PhaseStatistics statistics) {
+    this.statistics = statistics;
+  }
+
+  /**
+   * @return true if the last execution stopped early because it exceeded
+   * the maximum number of active FSM instances.
+   */
+  public boolean isOverBudget() {
+    return overBudget;
   }
 
   /**
@@ -28,6 +28,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.ontotext.jape.pda.FSMPDA;
 import com.ontotext.jape.pda.StatePDA;
@@ -72,6 +73,12 @@ public class SPTBuilder {
       "\t\t\t\t", "\t\t\t\t\t", "\t\t\t\t\t\t", "\t\t\t\t\t\t\t", 
       "\t\t\t\t\t\t\t\t"};
   
+  /**
+   * Numbers the generated classes, which are named after their phase: two
+   * phases of a grammar may share a name, and may be built at the same time.
+   */
+  private static final AtomicInteger classNumber = new AtomicInteger();
+  
   
   
   /**
@@ -109,7 +116,8 @@ public class SPTBuilder {
     rules = new Rule[oldSpt.getRules().size()];
     rules = ((List<Rule>) oldSpt.getRules()).toArray(rules);
     
-    //TODO not sure why this is being called from here but it needs to use the right classloader
+    // finishing builds the FSM; the right hand side actions of a transducer
+    // parsed by JAPE Plus are compiled by the Transducer, for all phases
     oldSpt.finish(classLoader);
     
     // FSM fsm = new FSM(oldSpt);
@@ -120,7 +128,8 @@ public class SPTBuilder {
 
     StringBuilder sptCode = new StringBuilder();
     String className = "Phase" + oldSpt.getName() +  Long.toString(
-        System.currentTimeMillis(), Character.MAX_RADIX).toUpperCase();
+        System.currentTimeMillis(), Character.MAX_RADIX).toUpperCase() +
+        "_" + classNumber.getAndIncrement();
 
     writeClassHeader(className, sptCode);
     writeConstructor(className, oldSpt, 1, sptCode);
@@ -405,7 +414,7 @@ public class SPTBuilder {
       out.append("for(int annIdx = instance.annotationIndex;\n");
       tabs++;
       tabs++;
-      out.append(TABS[tabs]).append("annIdx < annotation.length &&\n");
+      out.append(TABS[tabs]).append("annIdx < annotationCount &&\n");
       out.append(TABS[tabs]).append("annIdx < annotationNextOffset[instance.annotationIndex];\n"); 
       out.append(TABS[tabs]).append("annIdx++) {\n");
       tabs--;
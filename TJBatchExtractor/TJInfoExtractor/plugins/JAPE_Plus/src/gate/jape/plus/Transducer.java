@@ -40,6 +40,7 @@ import gate.gui.MainFrame;
 import gate.jape.ControllerEventBlocksAction;
 import gate.jape.DefaultActionContext;
 import gate.jape.MultiPhaseTransducer;
+import gate.jape.RightHandSide;
 import gate.jape.Rule;
 import gate.jape.SinglePhaseTransducer;
 import gate.jape.constraint.AnnotationAccessor;
@@ -54,6 +55,8 @@ import gate.util.persistence.PersistenceManager;
 
 import java.awt.event.ActionEvent;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -65,13 +68,17 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -100,6 +107,13 @@ public class Transducer extends AbstractLanguageAnalyser
   private static final Logger log = Logger.getLogger(Transducer.class);
   
   private static final boolean DEBUG_DUPLICATION = false;
+
+  /**
+   * Document feature naming the first phase that exceeded the
+   * {@link #setMaxActiveInstances(Integer) maximum number of active
+   * instances}.
+   */
+  public static final String OVER_BUDGET_FEATURE = "JAPEPlus.overBudget";
   
   /**
    * A comparator for annotations based on start offset and inverse length.
@@ -119,7 +133,9 @@ public class Transducer extends AbstractLanguageAnalyser
         if(end0 > end1) {
           return -1;
         } else if(end0 < end1) { return 1; }
-        return 0;
+        // annotations with the same span stay in the order they were
+        // created, whichever way they were collected
+        return a0.getId().compareTo(a1.getId());
       }
     }
     
@@ -127,9 +143,9 @@ public class Transducer extends AbstractLanguageAnalyser
   
   
   /**
-   * A listener for the input annotation set, which invalidates the pre-built
-   * lists of sorted annotation when they change due to the execution of one of
-   * the phases.
+   * A listener for the input annotation set, which records the changes to
+   * the sorted annotations in the {@link #annotationTable} while the phases
+   * run.
    */
   protected class AnnSetListener implements AnnotationSetListener{
 
@@ -138,7 +154,7 @@ public class Transducer extends AbstractLanguageAnalyser
      */
     @Override
     public void annotationAdded(AnnotationSetEvent e) {
-      changedTypes.add(e.getAnnotation().getType());
+      annotationTable.annotationAdded(e.getAnnotation());
     }
 
     /* (non-Javadoc)
@@ -146,7 +162,7 @@ public class Transducer extends AbstractLanguageAnalyser
      */
     @Override
     public void annotationRemoved(AnnotationSetEvent e) {
-      changedTypes.add(e.getAnnotation().getType());
+      annotationTable.annotationRemoved(e.getAnnotation());
     }
   }
   
@@ -211,7 +227,22 @@ public class Transducer extends AbstractLanguageAnalyser
 
     @Override
     protected FSMPDA createFSM() {
-      return new FSMPDA(this);
+      return FSMPDA.create(this);
+    }
+
+    /**
+     * Finishes the rules and builds the FSM, as the default transducer does,
+     * but compiles neither the right hand side actions nor the controller
+     * event blocks: {@link Transducer#parseJape()} compiles the actions of
+     * all phases at once, and JAPE Plus generates the event blocks class of
+     * each phase itself. The rules are kept, for the {@link SPTBuilder}.
+     */
+    @Override
+    public void finish(GateClassLoader classLoader) {
+      if(finishedAlready) return;
+      finishedAlready = true;
+      for(Object rule : rules) ((Rule)rule).finish(classLoader);
+      fsm = createFSM();
     }
   }
   
@@ -259,21 +290,32 @@ public class Transducer extends AbstractLanguageAnalyser
           duplicatedRules, that.predicatesByType, that.inputTypes);
     }
     
+    Rule[] getRules() {
+      return rules;
+    }
+    
+    /**
+     * @return the sources of the phase class and of its controller event
+     * blocks class, if it has one, by class name
+     */
+    Map<String, String> sources() {
+      Map<String, String> classes = new HashMap<String, String>(2);
+      classes.put(className, lhsSourceCode.toString());  
+      if(controllerEventsSourceCode != null) {
+        classes.put(className + "CEAB", controllerEventsSourceCode);  
+      }
+      return classes;
+    }
+    
     public SPTBase generateSpt(GateClassLoader classLoader) throws ResourceInstantiationException {
       
       SPTBase optimisedTransducer = null;
       
       try {
-        Map<String, String> classes = new HashMap<String, String>(1);
-        
-        classes.put(className, lhsSourceCode.toString());  
         String ceabClassName = className + "CEAB"; 
-        if(controllerEventsSourceCode != null) {
-          classes.put(ceabClassName, controllerEventsSourceCode);  
-        }
-        // compile the class[es]
-        if(!classes.isEmpty()) {
-          Javac.loadClasses(classes, classLoader);
+        // compile the class[es], unless they came with a compiled grammar
+        if(classLoader.findExistingClass(className) == null) {
+          Javac.loadClasses(sources(), classLoader);
         }
         @SuppressWarnings("unchecked")
         Class<? extends SPTBase> sptClass = (Class<? extends SPTBase>)
@@ -358,39 +400,47 @@ public class Transducer extends AbstractLanguageAnalyser
   
   protected String outputASName;
 
-  protected DefaultActionContext actionContext;
+  protected transient DefaultActionContext actionContext;
   
-  protected List<Action> actions;
+  protected transient List<Action> actions;
   
   /**
    * The URL to the serialised jape file used as grammar by this transducer.
    */
   protected java.net.URL binaryGrammarURL;
   
+  /**
+   * The URL of a {@link CompiledGrammar} made from the grammar at
+   * {@link #grammarURL}, used in its place while it is up to date.
+   */
+  protected URL compiledGrammarURL;
+  
   
   /**
    * Instance of {@link AnnotationComparator} used for sorting annots for the
    * phases.
    */
-  protected AnnotationComparator annotationComparator;
+  protected transient AnnotationComparator annotationComparator;
   
   /**
-   * The sets of annotations (of a given type) that have already been sorted.
+   * The input annotations of the current document, sorted once and kept up
+   * to date across the phases, which each phase reads through a filter of
+   * its input types.
    */
-  protected Map<String, Annotation[]> sortedAnnotations;
+  protected transient AnnotationTable annotationTable;
   
   /**
-   * A set of annotation types that were modified during the latest execution of
-   * a pahse.
+   * The arrays through which the phases read the annotation table, shared
+   * by all the phases.
    */
-  protected Set<String> changedTypes;
+  protected transient PhaseArrays phaseArrays;
   
   /**
    * The listener that keeps track of the annotation types that have changed.
    */
-  protected AnnotationSetListener inputASListener;
+  protected transient AnnotationSetListener inputASListener;
   
-  protected SPTData[] singlePhaseTransducersData;
+  protected transient SPTData[] singlePhaseTransducersData;
   
   /**
    * The list of phases used in this transducer.
@@ -442,6 +492,31 @@ public class Transducer extends AbstractLanguageAnalyser
     this.classLoaderRefCount = classLoaderRefCount;
   }
 
+  /**
+   * This transducer and all its duplicates, whose statistics are added up by
+   * {@link #getProfileCsv()}. Shared among the duplicates.
+   */
+  private transient List<Transducer> copies;
+
+  /**
+   * The copies of the transducers read back with Java serialization, by the
+   * identifier of the grammar they were read from.
+   */
+  private static final Map<String, List<Transducer>> readBack =
+      new HashMap<String, List<Transducer>>();
+
+  /**
+   * The identifier of the grammar this transducer was read back from, null
+   * if it was not read back.
+   */
+  private transient String readBackId;
+
+  /**
+   * The work done by each phase while profiling, null until profiling is
+   * first enabled.
+   */
+  protected transient PhaseStatistics[] statistics;
+
   /**
    * The index in {@link #singlePhaseTransducers} for the SPT currently being
    * executed, if any, -1 otherwise.
@@ -503,7 +578,7 @@ public class Transducer extends AbstractLanguageAnalyser
     this.encoding = encoding;
   }
   
-  private Transducer existingTransducer;
+  private transient Transducer existingTransducer;
   
 
   /**
@@ -532,10 +607,18 @@ public class Transducer extends AbstractLanguageAnalyser
    * 
    */
   public Transducer() {
-    sortedAnnotations = new HashMap<String, Annotation[]>();
-    changedTypes = new HashSet<String>();
+    initState();
+  }
+
+  /**
+   * Creates the annotation caches, listener and GUI actions of a new
+   * transducer, or of one read back with Java serialization.
+   */
+  private void initState() {
     inputASListener = new AnnSetListener();
     annotationComparator = new AnnotationComparator();
+    annotationTable = new AnnotationTable(annotationComparator);
+    phaseArrays = new PhaseArrays();
     
     actions = new ArrayList<Action>();
     actions.add(new SerialiseTransducerAction());
@@ -567,21 +650,7 @@ public class Transducer extends AbstractLanguageAnalyser
       
       if(existingTransducer != null) {
         // we are duplicating
-        // we are sharing the same class loader, increment its ref count
-        classLoaderRefCount.incrementAndGet();
-        
-        this.singlePhaseTransducers = new SPTBase[existingTransducer.singlePhaseTransducers.length];
-        this.singlePhaseTransducersData = new SPTData[existingTransducer.singlePhaseTransducersData.length];
-        // spts and sptsData are guaranteed to be non-null and the same length
-        for(int i = 0; i < this.singlePhaseTransducers.length; i++) {
-          this.singlePhaseTransducers[i] = existingTransducer.singlePhaseTransducers[i].duplicate();
-          this.singlePhaseTransducers[i].addProgressListener(this);
-          // this duplicate's SPTData needs to refer to the same Rule[] as the
-          // *duplicated* SPTBase, not the original one.
-          this.singlePhaseTransducersData[i] = new SPTData(
-              existingTransducer.singlePhaseTransducersData[i],
-              this.singlePhaseTransducers[i].rules);
-        }
+        shareWith(existingTransducer);
       } else {
         if (classLoader != null) {
           if(classLoaderRefCount.decrementAndGet() == 0) {
@@ -606,14 +675,14 @@ public class Transducer extends AbstractLanguageAnalyser
           }else if(grammarURL != null) {
             classLoader = Gate.getClassLoader().getDisposableClassLoader(grammarURL.toExternalForm()+System.currentTimeMillis());
             classLoaderRefCount.incrementAndGet();
-            parseJape();  
+            singlePhaseTransducersData = null;
+            if(compiledGrammarURL != null) {
+              singlePhaseTransducersData = CompiledGrammar.read(compiledGrammarURL,
+                  grammarURL, encoding, classLoader);
+            }
+            if(singlePhaseTransducersData == null) parseJape();  
           }
-          
-          singlePhaseTransducers = new SPTBase[singlePhaseTransducersData.length];
-          for(int  i = 0; i < singlePhaseTransducersData.length; i++) {
-            singlePhaseTransducers[i] = singlePhaseTransducersData[i].generateSpt(classLoader);
-            singlePhaseTransducers[i].addProgressListener(this);  
-          }      
+          generatePhases();
         } catch(IOException e) {
           throw new ResourceInstantiationException(e);
         } catch(ParseException e) {
@@ -623,6 +692,8 @@ public class Transducer extends AbstractLanguageAnalyser
         }
       }
       actionContext = initActionContext();
+      statistics = null;
+      copies.add(this);
       return this;
     } catch(Exception e) {
       if(classLoaderRefCount.decrementAndGet() == 0) {
@@ -742,17 +813,188 @@ public class Transducer extends AbstractLanguageAnalyser
     MultiPhaseTransducer intermediate =  parser.MultiPhaseTransducer();
     parser.removeStatusListener(listener);
     
-    singlePhaseTransducersData = new SPTData[intermediate.getPhases().size()];
-    SPTBuilder builder = new SPTBuilder();
-    for(int i = 0; i < intermediate.getPhases().size(); i++){
-      singlePhaseTransducersData[i] = builder.buildSPT(
-          (SinglePhaseTransducer)intermediate.getPhases().get(i),classLoader);
+    // the right hand side actions of all phases, compiled in one go rather
+    // than a compiler run per phase
+    Map<String, String> actions = new HashMap<String, String>();
+    for(Object phase : intermediate.getPhases()) {
+      for(Object rule : ((SinglePhaseTransducer)phase).getRules()) {
+        RightHandSide rhs = ((Rule)rule).getRHS();
+        actions.put(rhs.getActionClassName(), rhs.getActionClassString());
+      }
+    }
+    if(!actions.isEmpty()) {
+      try {
+        Javac.loadClasses(actions, classLoader);
+      } catch(GateException e) {
+        throw new ResourceInstantiationException(e);
+      }
+    }
+
+    // the phases are converted on as many threads as there are processors,
+    // each with a builder of its own
+    final List<?> phases = intermediate.getPhases();
+    singlePhaseTransducersData = new SPTData[phases.size()];
+    int threads = Math.min(phases.size(), Runtime.getRuntime().availableProcessors());
+    if(threads <= 1) {
+      SPTBuilder builder = new SPTBuilder();
+      for(int i = 0; i < phases.size(); i++){
+        singlePhaseTransducersData[i] = builder.buildSPT(
+            (SinglePhaseTransducer)phases.get(i),classLoader);
+      }
+      return;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<SPTData>> built = new ArrayList<Future<SPTData>>();
+      for(final Object phase : phases) {
+        built.add(executor.submit(new Callable<SPTData>() {
+          public SPTData call() throws ResourceInstantiationException {
+            return new SPTBuilder().buildSPT((SinglePhaseTransducer)phase, classLoader);
+          }
+        }));
+      }
+      for(int i = 0; i < built.size(); i++) {
+        singlePhaseTransducersData[i] = built.get(i).get();
+      }
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ResourceInstantiationException(e);
+    } catch(java.util.concurrent.ExecutionException e) {
+      if(e.getCause() instanceof ResourceInstantiationException) {
+        throw (ResourceInstantiationException)e.getCause();
+      }
+      throw new ResourceInstantiationException(e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Makes this transducer a copy of another, sharing its class loader and
+   * the data of its phases.
+   */
+  private void shareWith(Transducer existing) throws ResourceInstantiationException {
+    // we are sharing the same class loader, increment its ref count
+    classLoader = existing.classLoader;
+    classLoaderRefCount = existing.classLoaderRefCount;
+    classLoaderRefCount.incrementAndGet();
+    copies = existing.copies;
+    
+    this.singlePhaseTransducers = new SPTBase[existing.singlePhaseTransducers.length];
+    this.singlePhaseTransducersData = new SPTData[existing.singlePhaseTransducersData.length];
+    // spts and sptsData are guaranteed to be non-null and the same length
+    for(int i = 0; i < this.singlePhaseTransducers.length; i++) {
+      this.singlePhaseTransducers[i] = existing.singlePhaseTransducers[i].duplicate();
+      this.singlePhaseTransducers[i].addProgressListener(this);
+      // this duplicate's SPTData needs to refer to the same Rule[] as the
+      // *duplicated* SPTBase, not the original one.
+      this.singlePhaseTransducersData[i] = new SPTData(
+          existing.singlePhaseTransducersData[i],
+          this.singlePhaseTransducers[i].rules);
+    }
+  }
+
+  /**
+   * Instantiates the phases from their data, in the class loader of this
+   * transducer.
+   */
+  private void generatePhases() throws ResourceInstantiationException {
+    compilePhases();
+    
+    singlePhaseTransducers = new SPTBase[singlePhaseTransducersData.length];
+    for(int  i = 0; i < singlePhaseTransducersData.length; i++) {
+      singlePhaseTransducers[i] = singlePhaseTransducersData[i].generateSpt(classLoader);
+      singlePhaseTransducers[i].addProgressListener(this);  
+    }      
+    copies = new CopyOnWriteArrayList<Transducer>();
+  }
+
+  /**
+   * Compiles the classes of all phases that are not compiled yet, in one
+   * compiler run, so that {@link SPTData#generateSpt(GateClassLoader)} only
+   * has to load them.
+   */
+  protected void compilePhases() throws ResourceInstantiationException {
+    Map<String, String> sources = new HashMap<String, String>();
+    for(SPTData phase : singlePhaseTransducersData) {
+      if(classLoader.findExistingClass(phase.className) == null) {
+        sources.putAll(phase.sources());
+      }
+    }
+    if(sources.isEmpty()) return;
+    try {
+      Javac.loadClasses(sources, classLoader);
+    } catch(GateException e) {
+      throw new ResourceInstantiationException(e);
     }
   }
   
+  /**
+   * A transducer is written with its compiled grammar (see
+   * {@link CompiledGrammar}), so that reading it back neither parses the
+   * grammar nor runs the Java compiler. The grammar is tagged with an
+   * identifier of its own: a transducer read back while another one read
+   * from the same grammar is still in use shares its classes and phase data,
+   * as a duplicate does.
+   */
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    ByteArrayOutputStream grammar = new ByteArrayOutputStream();
+    try {
+      CompiledGrammar.write(this, grammar);
+    } catch(GateException e) {
+      IOException ioe = new IOException("Could not compile the grammar of " + getName());
+      ioe.initCause(e);
+      throw ioe;
+    }
+    out.writeUTF(UUID.randomUUID().toString());
+    out.writeObject(grammar.toByteArray());
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    String id = in.readUTF();
+    readBackId = id;
+    byte[] grammar = (byte[])in.readObject();
+    initState();
+    classLoaderRefCount = new AtomicInteger(0);
+    try {
+      initCustomConstraints();
+      synchronized(readBack) {
+        List<Transducer> live = readBack.get(id);
+        if(live != null && !live.isEmpty()) {
+          shareWith(live.get(0));
+        } else {
+          classLoader = Gate.getClassLoader().getDisposableClassLoader(id);
+          classLoaderRefCount.incrementAndGet();
+          singlePhaseTransducersData = CompiledGrammar.read(
+              new ByteArrayInputStream(grammar), classLoader);
+          generatePhases();
+          readBack.put(id, copies);
+        }
+      }
+    } catch(ResourceInstantiationException e) {
+      IOException ioe = new IOException("Could not instantiate the phases of " + getName());
+      ioe.initCause(e);
+      throw ioe;
+    }
+    actionContext = initActionContext();
+    statistics = null;
+    copies.add(this);
+  }
+
   @Override
   public void cleanup() {
     super.cleanup();
+    if(copies != null) copies.remove(this);
+    if(readBackId != null) {
+      synchronized(readBack) {
+        // the last copy gone, forget the phases read back for the grammar
+        if(copies.isEmpty() && readBack.get(readBackId) == copies) {
+          readBack.remove(readBackId);
+        }
+      }
+    }
     for(SPTBase aSpt : singlePhaseTransducers){
       aSpt.removeProgressListener(this);
       aSpt.cleanup();
@@ -767,17 +1009,36 @@ public class Transducer extends AbstractLanguageAnalyser
   	if (singlePhaseTransducers == null) {
   		throw new IllegalStateException("init() was not called.");
   	}
+    executePhases(0, singlePhaseTransducers.length);
+  }
+
+  /**
+   * Runs some of the phases over the current document, as 
+   * {@link #execute()} runs all of them. This lets the phases be measured
+   * one at a time.
+   * 
+   * @param from the index of the first phase to run
+   * @param to the index after the last phase to run
+   */
+  protected void executePhases(int from, int to) throws ExecutionException {
   	interrupted = false;
+    boolean profiling = profile != null && profile.booleanValue();
+    if(profiling && statistics == null) {
+      statistics = new PhaseStatistics[singlePhaseTransducers.length];
+      for(int i = 0; i < statistics.length; i++) {
+        statistics[i] = new PhaseStatistics(
+            singlePhaseTransducers[i].getGrammarPhaseName(), 
+            singlePhaseTransducers[i].rules);
+      }
+    }
     AnnotationSet inputAs = (inputASName == null || inputASName.length() == 0) ?
             document.getAnnotations() : document.getAnnotations(inputASName);
     fireProgressChanged(0);
     try {
       inputAs.addAnnotationSetListener(inputASListener);
-      sortedAnnotations.clear();
-      for(currentSptIndex = 0; currentSptIndex < singlePhaseTransducers.length; 
-          currentSptIndex++){
+      annotationTable.load(inputAs);
+      for(currentSptIndex = from; currentSptIndex < to; currentSptIndex++){
         SPTBase aSpt = singlePhaseTransducers[currentSptIndex];
-        changedTypes.clear();
         aSpt.setCorpus(corpus);
         aSpt.setDocument(document);
         aSpt.setInputASName(inputASName);
@@ -788,17 +1049,27 @@ public class Transducer extends AbstractLanguageAnalyser
         actionContext.setPRFeatures(features);
         aSpt.setActionContext(actionContext);
         aSpt.setOntology(ontology);
+        aSpt.setStatistics(profiling ? statistics[currentSptIndex] : null);
         aSpt.execute();
         aSpt.setCorpus(null);
         aSpt.setDocument(null);
         aSpt.setInputASName(null);
         aSpt.setOutputASName(null);
         aSpt.setOwner(null);
-        for(String type : changedTypes) sortedAnnotations.remove(type);
-        changedTypes.clear();
+        if(aSpt.isOverBudget()) {
+          // the remaining phases would only work on incomplete input
+          log.debug("Skipping the phases after \"" + 
+              aSpt.getGrammarPhaseName() + "\" in document " + 
+              document.getName());
+          if(!document.getFeatures().containsKey(OVER_BUDGET_FEATURE)) {
+            document.getFeatures().put(OVER_BUDGET_FEATURE, 
+                aSpt.getGrammarPhaseName());
+          }
+          break;
+        }
       }
     } finally {
-      sortedAnnotations.clear();
+      annotationTable.clear();
       inputAs.removeAnnotationSetListener(inputASListener);
       currentSptIndex = -1;
       fireProcessFinished();
@@ -822,25 +1093,30 @@ public class Transducer extends AbstractLanguageAnalyser
   /**
    * Get the set of annotations, of a given type, sorted by start offset and
    * inverse length, obtained from the input annotation set of the current 
-   * document.
+   * document, as they are after the phases that have run so far.
    * 
    * @param type the type of annotations requested. 
    * @return an array of {@link Annotation} values.
    */
   public Annotation[] getSortedAnnotations(String type){
-    Annotation[] annots = sortedAnnotations.get(type);
-    if(annots == null){
-      //not calculated yet
-      AnnotationSet inputAS = 
-        (inputASName == null || inputASName.trim().length() == 0) ?
-        document.getAnnotations() : document.getAnnotations(inputASName);
-      ArrayList<Annotation> annOfType = new ArrayList<Annotation>(
-              inputAS.get(type));
-      Collections.sort(annOfType, annotationComparator);
-      annots = annOfType.toArray(new Annotation[annOfType.size()]);
-      sortedAnnotations.put(type, annots);
-    }
-    return annots;
+    return annotationTable.get(type);
+  }
+  
+  /**
+   * Gets the annotations of the input annotation set of the current
+   * document, sorted by start offset and inverse length, as they are after
+   * the phases that have run so far.
+   */
+  public AnnotationTable getAnnotationTable() {
+    return annotationTable;
+  }
+  
+  /**
+   * Gets the arrays through which the phases of this transducer read the
+   * annotation table.
+   */
+  public PhaseArrays getPhaseArrays() {
+    return phaseArrays;
   }
   
   public java.net.URL getBinaryGrammarURL() {
@@ -857,6 +1133,25 @@ public class Transducer extends AbstractLanguageAnalyser
     this.binaryGrammarURL = binaryGrammarURL;
   }  
   
+  public URL getCompiledGrammarURL() {
+    return compiledGrammarURL;
+  }
+
+  /**
+   * Sets the URL of a {@link CompiledGrammar} made from the grammar at
+   * grammarURL. If the file is there and was made from the current version
+   * of the grammar, the transducer is initialised from it without parsing
+   * or compiling anything; otherwise the grammar is compiled as usual.
+   */
+  @Optional
+  @CreoleParameter(
+    comment = "A compiled form of the grammar at grammarURL, used while it is up to date.",
+    suffixes = ".jplusc"
+  )
+  public void setCompiledGrammarURL(URL compiledGrammarURL) {
+    this.compiledGrammarURL = compiledGrammarURL;
+  }
+  
   /**
    * @return the inputASName
    */
@@ -903,6 +1198,63 @@ public class Transducer extends AbstractLanguageAnalyser
   }
 
   protected Ontology ontology = null;
+
+  @CreoleParameter(defaultValue = "0", comment = "The maximum number of " +
+      "FSM instances a phase may have active at the same time, 0 for no " +
+      "limit. A phase that exceeds it, and all later phases, are skipped.")
+  @Optional
+  @RunTime
+  public void setMaxActiveInstances(Integer maxActiveInstances) {
+    this.maxActiveInstances = maxActiveInstances;
+  }
+
+  public Integer getMaxActiveInstances() {
+    return maxActiveInstances;
+  }
+
+  protected Integer maxActiveInstances = 0;
+
+  @CreoleParameter(defaultValue = "false", comment = "Count the time, " +
+      "annotations, FSM instances, rules fired and predicate cache hits " +
+      "of each phase and rule.")
+  @Optional
+  @RunTime
+  public void setProfile(Boolean profile) {
+    this.profile = profile;
+  }
+
+  public Boolean getProfile() {
+    return profile;
+  }
+
+  protected Boolean profile = Boolean.FALSE;
+
+  /**
+   * Reports the work done by each phase and rule while profiling, added up
+   * over this transducer and all its duplicates. The duplicates keep
+   * counting while the report is made, so it should be asked for when they
+   * are idle.
+   * 
+   * @return a CSV table with a header line, then for each phase a row for
+   * the phase followed by a row for each of its rules (see 
+   * {@link PhaseStatistics#appendCsv(StringBuilder)}). 
+   */
+  public String getProfileCsv() {
+    PhaseStatistics[] total = new PhaseStatistics[singlePhaseTransducers.length];
+    for(int i = 0; i < total.length; i++) {
+      total[i] = new PhaseStatistics(singlePhaseTransducers[i].getGrammarPhaseName(),
+          singlePhaseTransducers[i].rules);
+    }
+    for(Transducer aCopy : copies) {
+      PhaseStatistics[] counted = aCopy.statistics;
+      if(counted == null) continue;
+      for(int i = 0; i < total.length; i++) total[i].add(counted[i]);
+    }
+    StringBuilder csv = new StringBuilder(PhaseStatistics.CSV_HEADER);
+    csv.append('\n');
+    for(PhaseStatistics phase : total) phase.appendCsv(csv);
+    return csv.toString();
+  }
   
 
   // methods implementing ControllerAwarePR
@@ -47,6 +47,8 @@ import gate.util.InvalidOffsetException;
 
 import java.awt.event.ActionEvent;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
 import java.net.URL;
 import java.text.NumberFormat;
 import java.util.ArrayList;
@@ -81,7 +83,7 @@ public class IntegerTagger extends AbstractLanguageAnalyser implements ActionsPu
 
   private transient Logger logger = Logger.getLogger(this.getClass().getName());
 
-  private transient Config config;
+  private Config config;
 
   private URL configURL;
 
@@ -103,7 +105,7 @@ public class IntegerTagger extends AbstractLanguageAnalyser implements ActionsPu
   private AnnotationSet sentences;
   private AnnotationSet tokens;
   
-  private IntegerTagger existingTagger;
+  private transient IntegerTagger existingTagger;
   
   public IntegerTagger getExistingTagger() {
     if (existingTagger == null) return this;
@@ -544,6 +546,19 @@ public class IntegerTagger extends AbstractLanguageAnalyser implements ActionsPu
     if(configURL == null)
       throw new ResourceInstantiationException("No configuration file specified!");    
 
+    if(existingTagger != null && existingTagger.config != null
+            && configURL.equals(existingTagger.configURL)
+            && String.valueOf(encoding).equals(String.valueOf(existingTagger.encoding))
+            && String.valueOf(digitGroupingSymbol).equals(String.valueOf(existingTagger.digitGroupingSymbol))) {
+      // a duplicate only reads the configuration and the patterns built
+      // from it, so it shares them with the tagger it was made from
+      config = existingTagger.config;
+      numericPattern = existingTagger.numericPattern;
+      subPattern = existingTagger.subPattern;
+      pattern = existingTagger.pattern;
+      return this;
+    }
+
     try {
       // attempt to load the configuration from the supplied URL
       XStream xstream = Config.getXStream(configURL, getClass()
@@ -687,7 +702,9 @@ public class IntegerTagger extends AbstractLanguageAnalyser implements ActionsPu
    * 
    * @author Mark A. Greenwood
    */
-  static class Config {
+  static class Config implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private String description;
 
@@ -764,6 +781,9 @@ public class IntegerTagger extends AbstractLanguageAnalyser implements ActionsPu
             }
           }
         }
+        // the imports are merged in now, and not again when a tagger is
+        // read back with Java serialization
+        imports = new HashMap<URL, String>();
       }
 
       return this;
@@ -883,7 +903,9 @@ public class IntegerTagger extends AbstractLanguageAnalyser implements ActionsPu
     }
   }
 
-  private static class Multiplier {
+  private static class Multiplier implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private enum Type {
       BASE_10("e"), FRACTION("/"), POWER("^");
 
@@ -915,6 +937,16 @@ public class IntegerTagger extends AbstractLanguageAnalyser implements ActionsPu
   
   private List<Action> actions = new ArrayList<Action>();
 
+  /**
+   * A tagger read back with Java serialization keeps the configuration it
+   * was initialised with, rather than reading it again.
+   */
+  private void readObject(ObjectInputStream in) throws IOException,
+          ClassNotFoundException {
+    in.defaultReadObject();
+    logger = Logger.getLogger(this.getClass().getName());
+  }
+
   @Override
   public List<Action> getActions() {
     return actions;
@@ -49,6 +49,8 @@ import gate.util.InvalidOffsetException;
 
 import java.awt.event.ActionEvent;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
 import java.net.URL;
 import java.text.NumberFormat;
 import java.util.ArrayList;
@@ -83,7 +85,7 @@ public class PhoneNumberTagger extends AbstractLanguageAnalyser implements Actio
 
   private transient Logger logger = Logger.getLogger(this.getClass().getName());
 
-  private transient Config config;
+  private Config config;
 
   private URL configURL;
 
@@ -101,7 +103,7 @@ public class PhoneNumberTagger extends AbstractLanguageAnalyser implements Actio
   private AnnotationSet tokens;
   private AnnotationSet integerAnnotations;
   
-  private PhoneNumberTagger existingTagger;
+  private transient PhoneNumberTagger existingTagger;
   
   public PhoneNumberTagger getExistingTagger() {
     if (existingTagger == null) return this;
@@ -710,6 +712,15 @@ public class PhoneNumberTagger extends AbstractLanguageAnalyser implements Actio
     if(configURL == null)
       throw new ResourceInstantiationException("No configuration file specified!");    
 
+    if(existingTagger != null && existingTagger.config != null
+            && configURL.equals(existingTagger.configURL)
+            && String.valueOf(encoding).equals(String.valueOf(existingTagger.encoding))) {
+      // a duplicate only reads the area codes, so it shares them with the
+      // tagger it was made from
+      config = existingTagger.config;
+      return this;
+    }
+
     try {
       // attempt to load the configuration from the supplied URL
       XStream xstream = Config.getXStream(configURL, getClass()
@@ -733,7 +744,9 @@ public class PhoneNumberTagger extends AbstractLanguageAnalyser implements Actio
    * 
    * @author Mark A. Greenwood
    */
-    static class Config {
+    static class Config implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private String description;
     private Map<String, AreaCodeDescription> area_codes;
@@ -791,6 +804,9 @@ public class PhoneNumberTagger extends AbstractLanguageAnalyser implements Actio
             }
           }
         }
+        // the imports are merged in now, and not again when a tagger is
+        // read back with Java serialization
+        imports = new HashMap<URL, String>();
       }
 
       return this;
@@ -875,7 +891,8 @@ public class PhoneNumberTagger extends AbstractLanguageAnalyser implements Actio
 
   }
 
-  private static class AreaCodeDescription {    
+  private static class AreaCodeDescription implements Serializable {
+    private static final long serialVersionUID = 1L;
 
     String state;
     String cities;
@@ -903,6 +920,16 @@ public class PhoneNumberTagger extends AbstractLanguageAnalyser implements Actio
   
   private List<Action> actions = new ArrayList<Action>();
 
+  /**
+   * A tagger read back with Java serialization keeps the configuration it
+   * was initialised with, rather than reading it again.
+   */
+  private void readObject(ObjectInputStream in) throws IOException,
+          ClassNotFoundException {
+    in.defaultReadObject();
+    logger = Logger.getLogger(this.getClass().getName());
+  }
+
   @Override
   public List<Action> getActions() {
     return actions;
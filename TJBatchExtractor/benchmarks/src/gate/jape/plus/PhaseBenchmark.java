@@ -0,0 +1,127 @@
+/*
+ *  PhaseBenchmark.java
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+package gate.jape.plus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tjbatch.Pipeline;
+import tjbatch.Preprocessed;
+import tjbatch.RecyclableDocument;
+import tjbatch.bench.Application;
+import tjbatch.bench.Workload;
+
+/**
+ * The execution of one compiled phase of the application's JAPE Plus
+ * grammar ({@link SPTBase#execute()}). Before each call, the PRs before the
+ * transducer and the phases before the measured one run over the next
+ * document, outside the measurement.
+ *
+ * The benchmark lives in the transducer's package to reach its phases; this
+ * works because jape-plus.jar is on the class path, which GATE's class
+ * loaders consult first.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PhaseBenchmark {
+
+  /**
+   * The phase, by its name in the grammar; where several phases share a
+   * name the first one is measured.
+   */
+  @Param({"restrictions", "numbercleanzeros2", "measurements", "heightweight",
+      "costpass1", "costpass2", "haireyeskin", "ethnicity", "dotcom", "Url"})
+  public String phase;
+
+  @Param({Workload.EXAMPLES})
+  public String workload;
+
+  private Pipeline pipeline;
+  private int transducerIndex;
+  private Transducer transducer;
+  private int phaseIndex;
+  private List<Preprocessed> records;
+  private int next;
+  private RecyclableDocument document;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    pipeline = Application.pipeline();
+    transducerIndex = -1;
+    List<String> names = pipeline.prNames();
+    for(int i = 0; i < names.size() && transducer == null; i++) {
+      Object pr = Application.prs(pipeline).get(i);
+      if(pr instanceof Transducer) {
+        transducerIndex = i;
+        transducer = (Transducer)pr;
+      }
+    }
+    if(transducer == null) {
+      throw new IllegalStateException("The application has no JAPE Plus transducer");
+    }
+    phaseIndex = -1;
+    List<String> phases = new ArrayList<String>();
+    for(int i = 0; i < transducer.singlePhaseTransducers.length; i++) {
+      SPTBase spt = transducer.singlePhaseTransducers[i];
+      // named the way the profile names them
+      String name = spt.getGrammarPhaseName();
+      phases.add(name);
+      if(phaseIndex < 0 && name.equals(phase)) phaseIndex = i;
+    }
+    if(phaseIndex < 0) {
+      throw new IllegalArgumentException("no phase called '" + phase + "' in " + phases);
+    }
+    records = Application.preprocessed(workload);
+    document = RecyclableDocument.create();
+    Application.started(pipeline);
+  }
+
+  @Setup(Level.Invocation)
+  public void nextDocument() throws Exception {
+    document.recycle(records.get(next).text);
+    next = (next + 1) % records.size();
+    Application.runBefore(pipeline, transducerIndex, document);
+    transducer.setDocument(document);
+    transducer.executePhases(0, phaseIndex);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    Application.finished(pipeline);
+    document.clear();
+    pipeline.cleanup();
+  }
+
+  @Benchmark
+  public int execute() throws Exception {
+    transducer.executePhases(phaseIndex, phaseIndex + 1);
+    return document.getAnnotations().size();
+  }
+}
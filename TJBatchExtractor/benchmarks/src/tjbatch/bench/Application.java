@@ -0,0 +1,112 @@
+/*
+   File:        Application.java
+   Description: the TJInfoExtractor application, loaded once per benchmark JVM
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch.bench;
+
+import gate.Controller;
+import gate.CorpusController;
+import gate.Document;
+import gate.Factory;
+import gate.Gate;
+import gate.LanguageAnalyser;
+import gate.ProcessingResource;
+import gate.creole.ControllerAwarePR;
+import gate.creole.ExecutionException;
+import gate.util.GateException;
+import gate.util.persistence.PersistenceManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import tjbatch.HtmlPreProcessor;
+import tjbatch.Pipeline;
+import tjbatch.Preprocessed;
+
+/**
+ * Loads the application the way TJBatchExtractor does, and gives every
+ * benchmark thread a {@link Pipeline} of its own. Benchmarks that measure a
+ * single PR use {@link #runBefore} to bring a document into the state the
+ * PR sees it in when the whole application runs.
+ */
+public final class Application {
+
+  private static CorpusController application;
+
+  private Application() {
+  }
+
+  /** @return a new copy of the application. */
+  public static synchronized Pipeline pipeline() throws GateException, IOException {
+    if(application == null) {
+      Gate.init();
+      application = (CorpusController)PersistenceManager.loadObjectFromFile(
+          new File("TJInfoExtractor/application.xgapp"));
+    }
+    return new Pipeline((CorpusController)Factory.duplicate(application));
+  }
+
+  /** @return the pre-processed records of a {@link Workload}. */
+  public static List<Preprocessed> preprocessed(String workload) throws IOException {
+    HtmlPreProcessor preprocessor = new HtmlPreProcessor();
+    List<Preprocessed> records = new ArrayList<Preprocessed>();
+    for(String line : Workload.lines(workload)) records.add(preprocessor.process(line));
+    return records;
+  }
+
+  /** @return the PRs of the pipeline, in the order they run. */
+  public static List<ProcessingResource> prs(Pipeline p) {
+    List<ProcessingResource> prs = new ArrayList<ProcessingResource>();
+    for(Object pr : p.controller.getPRs()) prs.add((ProcessingResource)pr);
+    return prs;
+  }
+
+  /**
+   * @param name the name of the PR without the suffix GATE adds to it,
+   *   e.g. "Integer Tagger"
+   * @return the position of the PR in the pipeline
+   */
+  public static int indexOf(Pipeline p, String name) {
+    List<String> names = p.prNames();
+    for(int i = 0; i < names.size(); i++) {
+      if(names.get(i).startsWith(name)) return i;
+    }
+    throw new IllegalArgumentException("no PR called '" + name + "' in " + names);
+  }
+
+  /**
+   * Tells the PRs that care that the controller is starting, as it would
+   * before running them.
+   */
+  public static void started(Pipeline p) throws ExecutionException {
+    Controller c = p.controller;
+    for(ProcessingResource pr : prs(p)) {
+      if(pr instanceof ControllerAwarePR) ((ControllerAwarePR)pr).controllerExecutionStarted(c);
+    }
+  }
+
+  public static void finished(Pipeline p) throws ExecutionException {
+    Controller c = p.controller;
+    for(ProcessingResource pr : prs(p)) {
+      if(pr instanceof ControllerAwarePR) ((ControllerAwarePR)pr).controllerExecutionFinished(c);
+    }
+  }
+
+  /**
+   * Runs the PRs that come before the given one over the document.
+   */
+  public static void runBefore(Pipeline p, int index, Document doc) throws ExecutionException {
+    List<ProcessingResource> prs = prs(p);
+    for(int i = 0; i < index; i++) {
+      LanguageAnalyser pr = (LanguageAnalyser)prs.get(i);
+      pr.setDocument(doc);
+      pr.execute();
+    }
+  }
+}
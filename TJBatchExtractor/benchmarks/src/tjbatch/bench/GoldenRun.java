@@ -0,0 +1,424 @@
+/*
+   File:        GoldenRun.java
+   Description: runs the extractor over the examples in every mode and thread
+                count, checks the output against the golden features and
+                reports the throughput of each configuration
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch.bench;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import tjbatch.Options;
+
+/**
+ * Runs TJBatchExtractor over Example_text.txt at 1, 2, 4, ... N threads in
+ * each of its modes, and checks that every run writes exactly the bytes of
+ * Example_features.txt. The text file, which has no golden copy, must be the
+ * same in every run as in the first. For each configuration the records per
+ * second are reported, and in the profile mode the median, 90th and 99th
+ * percentile and maximum time per record as well.
+ *
+ * <pre>
+ * java tjbatch.bench.GoldenRun [max_threads] [--modes=M,...] [--update]
+ * </pre>
+ *
+ * max_threads defaults to the number of processors. The modes are
+ * <ul>
+ * <li><b>default</b>: a pipeline per thread, one record at a time</li>
+ * <li><b>profile</b>: the default mode with --profile</li>
+ * <li><b>batch</b>: eight records taken from the queue at once</li>
+ * <li><b>shared</b>: half as many pipelines as threads</li>
+ * <li><b>mmap</b>: the input memory mapped and read by the workers</li>
+ * <li><b>ranges</b>: mmap with 100 ranges, so that most records are next to
+ * a range boundary</li>
+ * <li><b>gzip</b>: both output files compressed, and compared once
+ * uncompressed</li>
+ * <li><b>cache</b>: a result cache, run twice: cold, then warm from disk</li>
+ * <li><b>snapshot</b>: an application image, run twice: written, then
+ * restored</li>
+ * <li><b>compiled</b>: the grammar compiled to TJ_Annotation.jplusc once,
+ * before the first compiled run, and loaded from there</li>
+ * <li><b>server</b>: the server mode, with the whole input posted to it in
+ * one request; there is no text file to compare</li>
+ * <li><b>parallel</b>: the default mode in a JVM that reports four
+ * processors, so that the phases of the grammar are built in parallel
+ * however many processors the machine has</li>
+ * </ul>
+ *
+ * Every run is a JVM of its own, started with the options of this one, so
+ * the time GATE takes to load is left out: the throughput is measured from
+ * the moment the extractor starts reading (or the request is sent) to the
+ * moment it has processed the last record. The runs use UTF-8, the
+ * encoding of the example files, as their platform encoding, so that the
+ * default mode and the mmap mode read the input the same way. Only the
+ * profile mode turns the profiler on, so the other modes run as they do in
+ * production. The compiled grammar is removed again after each compiled
+ * run; if there is one already, every mode loads it and the compiled mode
+ * leaves it alone.
+ *
+ * --update replaces Example_features.txt with the output of the first run,
+ * for when a change to the grammars is meant to change the output.
+ */
+public final class GoldenRun {
+
+  private static final String INPUT = "Example_text.txt";
+  private static final String GOLDEN = "Example_features.txt";
+  private static final String GRAMMAR =
+      "TJInfoExtractor/application-resources/jape_transducers/TJ_Annotation.jape";
+  private static final String COMPILED =
+      "TJInfoExtractor/application-resources/jape_transducers/TJ_Annotation.jplusc";
+  private static final String[] MODES = {"default", "profile", "batch", "shared", "mmap",
+      "ranges", "gzip", "cache", "snapshot", "compiled", "server", "parallel"};
+  private static final int BATCH = 8;
+  private static final int RANGES = 100;
+  /** The processors the JVM of the parallel mode reports. */
+  private static final int PARALLEL_CPUS = 4;
+  /** How long a server may take to start, in seconds. */
+  private static final int SERVER_START = 600;
+
+  /** The outcome of one run of the extractor. */
+  private static final class Run {
+    String name;
+    int threads;
+    long records;
+    long nanos;
+    /** p50, p90, p99 and max of the record stage, in ms */
+    String[] latency = {"-", "-", "-", "-"};
+    String verdict;
+  }
+
+  private final File dir;
+  private final List<String> jvm;
+  private byte[] golden;
+  private byte[] text;
+  /** The rows written by the last run. */
+  private byte[] rows;
+  /** The compiled grammar, once made. */
+  private File compiled;
+
+  private GoldenRun(File dir) {
+    this.dir = dir;
+    jvm = new ArrayList<String>();
+    jvm.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+    jvm.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+    jvm.add("-Dfile.encoding=UTF-8");
+    jvm.add("-classpath");
+    jvm.add(System.getProperty("java.class.path"));
+  }
+
+  public static void main(String[] args) throws Exception {
+    Options opts = new Options(args);
+    int max = opts.getInt(0, Runtime.getRuntime().availableProcessors());
+    List<String> modes = Arrays.asList(opts.get("modes", join(MODES)).split(","));
+    for(String mode : modes) {
+      if(!Arrays.asList(MODES).contains(mode)) {
+        throw new IllegalArgumentException("unknown mode '" + mode + "', expected one of " + join(MODES));
+      }
+    }
+    List<Integer> threads = new ArrayList<Integer>();
+    for(int t = 1; t < max; t *= 2) threads.add(t);
+    threads.add(Math.max(max, 1));
+
+    File dir = Files.createTempDirectory("golden").toFile();
+    GoldenRun harness = new GoldenRun(dir);
+    List<Run> runs = new ArrayList<Run>();
+    boolean update = opts.has("update");
+    for(int t : threads) {
+      for(String mode : modes) {
+        if(mode.equals("cache")) {
+          File cache = new File(dir, "cache." + t);
+          runs.add(harness.run("cache (cold)", t, "--cache=" + cache));
+          runs.add(harness.run("cache (warm)", t, "--cache=" + cache));
+          cache.delete();
+        } else if(mode.equals("batch")) {
+          runs.add(harness.run(mode, t, "--batch=" + BATCH));
+        } else if(mode.equals("shared")) {
+          runs.add(harness.run(mode, t, "--pipelines=" + Math.max(t / 2, 1)));
+        } else if(mode.equals("mmap")) {
+          runs.add(harness.run(mode, t, "--mmap"));
+        } else if(mode.equals("ranges")) {
+          runs.add(harness.run(mode, t, "--mmap", "--ranges=" + RANGES));
+        } else if(mode.equals("gzip")) {
+          runs.add(harness.run(mode, t, "--gzip"));
+        } else if(mode.equals("profile")) {
+          runs.add(harness.run(mode, t, "--profile", "--profile-interval=0"));
+        } else if(mode.equals("snapshot")) {
+          File snapshot = new File(dir, "snapshot." + t);
+          runs.add(harness.run("snapshot (write)", t, "--snapshot=" + snapshot));
+          runs.add(harness.run("snapshot (read)", t, "--snapshot=" + snapshot));
+          snapshot.delete();
+        } else if(mode.equals("compiled")) {
+          runs.add(harness.compiled(t));
+        } else if(mode.equals("server")) {
+          runs.add(harness.serve(mode, t));
+        } else if(mode.equals("parallel")) {
+          runs.add(harness.run(mode, t,
+              Arrays.asList("-XX:ActiveProcessorCount=" + PARALLEL_CPUS)));
+        } else {
+          runs.add(harness.run(mode, t));
+        }
+        if(update && !runs.get(runs.size() - 1).verdict.startsWith("failed")) {
+          Files.write(new File(GOLDEN).toPath(), harness.rows);
+          System.out.println(GOLDEN + " updated from " + mode + " at " + t + " threads");
+          update = false;
+          harness.golden = null;
+          runs.get(runs.size() - 1).verdict = "updated";
+        }
+      }
+    }
+
+    System.out.println();
+    System.out.println(String.format("%-16s %7s %9s %9s %9s %9s %9s %9s  %s",
+        "Mode", "threads", "records", "docs/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "output"));
+    int failed = 0;
+    for(Run run : runs) {
+      System.out.println(String.format("%-16s %7d %9d %9.1f %9s %9s %9s %9s  %s",
+          run.name, run.threads, run.records, run.records * 1e9 / Math.max(run.nanos, 1),
+          run.latency[0], run.latency[1], run.latency[2], run.latency[3], run.verdict));
+      if(!run.verdict.equals("identical") && !run.verdict.equals("updated")) failed++;
+    }
+    for(File f : dir.listFiles()) f.delete();
+    dir.delete();
+    if(failed > 0) {
+      System.out.println(failed + " of " + runs.size() + " runs differ from " + GOLDEN);
+      System.exit(1);
+    }
+    System.out.println("All " + runs.size() + " runs match " + GOLDEN);
+  }
+
+  /** Runs the extractor once and checks what it wrote. */
+  private Run run(String name, int threads, String... mode) throws IOException, InterruptedException {
+    return run(name, threads, Collections.<String>emptyList(), mode);
+  }
+
+  /**
+   * Runs the extractor once, in a JVM with some more options, and checks
+   * what it wrote.
+   */
+  private Run run(String name, int threads, List<String> jvmOptions, String... mode)
+      throws IOException, InterruptedException {
+    Run run = new Run();
+    run.name = name;
+    run.threads = threads;
+    File rowFile = new File(dir, "out.csv");
+    File textFile = new File(dir, "out.txt");
+    File log = new File(dir, "out.log");
+    List<String> command = new ArrayList<String>(jvm);
+    // after the options of this JVM, so that they take precedence
+    command.addAll(command.indexOf("-classpath"), jvmOptions);
+    command.addAll(Arrays.asList("TJBatchExtractor", Integer.toString(threads), INPUT,
+        rowFile.getPath(), textFile.getPath(), "--checkpoint=0"));
+    command.addAll(Arrays.asList(mode));
+    System.out.println("Running " + name + " with " + threads + " threads...");
+
+    Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+    PrintWriter logOut = new PrintWriter(log, "UTF-8");
+    BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream(), "UTF-8"));
+    long started = 0;
+    try {
+      String line;
+      while((line = in.readLine()) != null) {
+        logOut.println(line);
+        if(line.startsWith("Reading document")) {
+          started = System.nanoTime();
+        } else if(line.startsWith("Processed ")) {
+          run.nanos = System.nanoTime() - started;
+          run.records = Long.parseLong(line.split(" ")[1]);
+        } else if(line.startsWith("record ")) {
+          // the record stage of the profile: count, p50, p90, p99, max, share
+          String[] cols = line.trim().split("\\s+");
+          run.latency = Arrays.copyOfRange(cols, 2, 6);
+        }
+      }
+    } finally {
+      in.close();
+      logOut.close();
+    }
+    if(p.waitFor() != 0) {
+      System.out.print(new String(Files.readAllBytes(log.toPath()), "UTF-8"));
+      run.verdict = "failed, exit code " + p.exitValue();
+      return run;
+    }
+
+    byte[] rowBytes = Files.readAllBytes(rowFile.toPath());
+    byte[] textBytes = Files.readAllBytes(textFile.toPath());
+    if(Arrays.asList(mode).contains("--gzip")) {
+      rowBytes = gunzip(rowBytes);
+      textBytes = gunzip(textBytes);
+    }
+    check(run, rowBytes, textBytes);
+    return run;
+  }
+
+  /**
+   * Runs the extractor with the compiled grammar, compiling it into the
+   * temporary directory first if this is the first such run.
+   */
+  private Run compiled(int threads) throws IOException, InterruptedException {
+    File target = new File(COMPILED);
+    if(target.exists()) return run("compiled", threads);
+    if(compiled == null) {
+      File made = new File(dir, target.getName());
+      List<String> command = new ArrayList<String>(jvm);
+      command.addAll(Arrays.asList("gate.jape.plus.CompiledGrammar", GRAMMAR, made.getPath()));
+      System.out.println("Compiling " + GRAMMAR + "...");
+      Process p = new ProcessBuilder(command).redirectErrorStream(true)
+          .redirectOutput(new File(dir, "compile.log")).start();
+      if(p.waitFor() != 0 || !made.exists()) {
+        System.out.print(new String(Files.readAllBytes(new File(dir, "compile.log").toPath()), "UTF-8"));
+        Run run = new Run();
+        run.name = "compiled";
+        run.threads = threads;
+        run.verdict = "failed, the grammar did not compile";
+        return run;
+      }
+      compiled = made;
+    }
+    Files.copy(compiled.toPath(), target.toPath());
+    try {
+      return run("compiled", threads);
+    } finally {
+      target.delete();
+    }
+  }
+
+  /**
+   * Starts the extractor as a server, posts the whole input to it in one
+   * request, checks the response and stops the server again.
+   */
+  private Run serve(String name, int threads) throws IOException, InterruptedException {
+    Run run = new Run();
+    run.name = name;
+    run.threads = threads;
+    ServerSocket free = new ServerSocket(0);
+    int port = free.getLocalPort();
+    free.close();
+    File log = new File(dir, "out.log");
+    List<String> command = new ArrayList<String>(jvm);
+    command.addAll(Arrays.asList("TJBatchExtractor", Integer.toString(threads), "--serve=" + port,
+        "--slow-log=" + new File(dir, "server.slow"), "--dead-letter=" + new File(dir, "server.failed")));
+    System.out.println("Running " + name + " with " + threads + " threads...");
+
+    Process p = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+    byte[] rowBytes = null;
+    try {
+      long deadline = System.currentTimeMillis() + SERVER_START * 1000L;
+      while(!new String(Files.readAllBytes(log.toPath()), "UTF-8").contains("Serving on")) {
+        if(exited(p) || System.currentTimeMillis() > deadline) {
+          System.out.print(new String(Files.readAllBytes(log.toPath()), "UTF-8"));
+          run.verdict = "failed, the server did not start";
+          return run;
+        }
+        Thread.sleep(100);
+      }
+      byte[] input = Files.readAllBytes(new File(INPUT).toPath());
+      long started = System.nanoTime();
+      HttpURLConnection http = (HttpURLConnection)new URL(
+          "http://localhost:" + port + "/extract?header=true").openConnection();
+      http.setDoOutput(true);
+      http.setFixedLengthStreamingMode(input.length);
+      OutputStream body = http.getOutputStream();
+      body.write(input);
+      body.close();
+      if(http.getResponseCode() != HttpURLConnection.HTTP_OK) {
+        run.verdict = "failed, HTTP " + http.getResponseCode();
+        return run;
+      }
+      rowBytes = readFully(http.getInputStream());
+      run.nanos = System.nanoTime() - started;
+      run.records = new String(input, "UTF-8").split("\\r?\\n").length;
+    } finally {
+      p.destroy();
+      p.waitFor();
+    }
+    check(run, rowBytes, null);
+    return run;
+  }
+
+  /**
+   * Sets the verdict of a run from the rows and text it wrote; a run with
+   * no text file passes null.
+   */
+  private void check(Run run, byte[] rowBytes, byte[] textBytes) throws IOException {
+    if(golden == null) golden = Files.readAllBytes(new File(GOLDEN).toPath());
+    rows = rowBytes;
+    if(text == null) text = textBytes;
+    if(!Arrays.equals(rowBytes, golden)) {
+      run.verdict = "DIFFERS from " + GOLDEN + ": " + difference(golden, rowBytes);
+    } else if(textBytes != null && !Arrays.equals(textBytes, text)) {
+      run.verdict = "text DIFFERS from the first run: " + difference(text, textBytes);
+    } else {
+      run.verdict = "identical";
+    }
+  }
+
+  private static boolean exited(Process p) {
+    try {
+      p.exitValue();
+      return true;
+    } catch(IllegalThreadStateException e) {
+      return false;
+    }
+  }
+
+  private static byte[] gunzip(byte[] bytes) throws IOException {
+    return readFully(new GZIPInputStream(new ByteArrayInputStream(bytes)));
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      byte[] buf = new byte[65536];
+      int n;
+      while((n = in.read(buf)) > 0) out.write(buf, 0, n);
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
+  /** @return the number of lines that differ and the first of them. */
+  private static String difference(byte[] expected, byte[] actual) throws IOException {
+    String[] a = new String(expected, "UTF-8").split("\n", -1);
+    String[] b = new String(actual, "UTF-8").split("\n", -1);
+    int first = -1;
+    int count = Math.abs(a.length - b.length);
+    for(int i = 0; i < Math.min(a.length, b.length); i++) {
+      if(!a[i].equals(b[i])) {
+        if(first < 0) first = i;
+        count++;
+      }
+    }
+    if(first < 0) first = Math.min(a.length, b.length);
+    return count + " lines, the first at line " + (first + 1)
+        + (a.length != b.length ? " (" + b.length + " lines instead of " + a.length + ")" : "");
+  }
+
+  private static String join(String[] values) {
+    StringBuilder sb = new StringBuilder();
+    for(String v : values) sb.append(sb.length() > 0 ? "," : "").append(v);
+    return sb.toString();
+  }
+}
@@ -0,0 +1,331 @@
+/*
+   File:        HtmlDiffRun.java
+   Description: checks the html scanner of HtmlPreProcessor against the
+                Jsoup parse it replaces, on fixed and generated markup
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import tjbatch.HtmlPreProcessor;
+import tjbatch.Options;
+import tjbatch.Preprocessed;
+
+/**
+ * A differential check of {@link HtmlPreProcessor}: every line is
+ * processed by the scanner ({@link HtmlPreProcessor#process}) and by a whole
+ * Jsoup document ({@link HtmlPreProcessor#processWithJsoup}), and the text,
+ * links, imports, media and title age must be the same. The scanner copies
+ * what the Jsoup tokeniser and tree builder do, so a change to either, or a
+ * Jsoup upgrade, that makes them drift apart is caught here before it
+ * changes the extractions.
+ *
+ * <pre>
+ * java tjbatch.bench.HtmlDiffRun [--records=N] [--seed=S]
+ * </pre>
+ *
+ * The lines checked are
+ * <ul>
+ * <li><b>fixed</b>: hand written markup for the cases the scanner models
+ * (comments, character references, attribute quoting, blocks, headings,
+ * pre, stray and self closing tags) and some it hands to Jsoup</li>
+ * <li><b>examples</b>: the ads of Example_text.txt, and the html workload
+ * made from them</li>
+ * <li><b>random</b>: N lines (default 200000) made up of tags, attributes,
+ * text, character references and stray markup characters at random</li>
+ * <li><b>mutated</b>: N/4 example lines cut short or with random pieces
+ * inserted into them</li>
+ * </ul>
+ *
+ * The random lines come from a seeded generator (the seed defaults to a
+ * fixed value), so a failure is reproduced by running again with the same
+ * seed. For each kind the number of lines the scanner handled itself rather
+ * than handing to Jsoup is reported, since only those are a real check. The
+ * run exits with status 1, after printing the first differing lines, if
+ * any line differs.
+ */
+public final class HtmlDiffRun {
+
+  private static final int SHOWN = 10;
+
+  /** Markup that exercises the scanner, one body per entry. */
+  private static final String[] FIXED = {
+    "",
+    "plain text only",
+    "  leading and trailing space  ",
+    "a\tb\nc\rd\fe   f",
+    "<p>one</p><p>two</p>three",
+    "<div>a<div>b</div>c</div>d",
+    "line<br>break<br/>and<br />more</br>end",
+    "<b>bold</b> <i>it</i><u>under</u><span>span</span>",
+    "<p>open paragraph<div>closed by a block</div>",
+    "<p>a<p>b<p>c",
+    "</p>stray end p</p>",
+    "<h1>one<h2>two</h2>three</h1>four",
+    "<h2>a</h3>b",
+    "<pre>  keep   the\tspaces  </pre> but  not   here",
+    "<pre>\nnewline after pre</pre>",
+    "<pre><b>  nested  </b>  </pre>",
+    "<a href=\"http://example.com/a?b=1&amp;c=2\">link</a>",
+    "<a href='http://example.com/single'>single</a>",
+    "<a href=http://example.com/unquoted>unquoted</a>",
+    "<a href=\"mailto:ad@example.com\">mail</a><a HREF=\"MAILTO:UP@EXAMPLE.COM\">up</a>",
+    "<a href=\"/relative/path.html\">relative</a>",
+    "<a href=\"javascript:void(0)\">js</a>",
+    "<a href=\"http://a.com/1\">one<a href=\"http://a.com/2\">two</a>",
+    "<a href=\"http://a.com/1\" href=\"http://a.com/2\">twice</a>",
+    "<a abs:href=\"http://abs.com/\" href=\"/rel\">abs</a>",
+    "<img src=\"http://example.com/i.jpg\"><img src='/rel.jpg'><img src=>",
+    "<link href=\"http://example.com/style.css\" rel=stylesheet>",
+    "<video src=\"http://example.com/v.mp4\"></video>",
+    "<img src=\"http://example.com/a.jpg\"/><p/>after self closing",
+    "<!-- a comment --> text <!-- another -- one --> <!--> <!---> <!---->",
+    "<!-- unterminated comment",
+    "<!-- ends with bang --!> after",
+    "<!bogus comment> <?php echo 1 ?> </3 > </ > </>",
+    "a < b > c",
+    "a <",
+    "a </",
+    "trailing &",
+    "&amp; &lt; &gt; &quot; &apos; &nbsp; &copy &copy; &notanentity; &amp",
+    "&#65; &#x41; &#X41 &#0; &#55296; &#1114112; &#99999999999; &#; &#x;",
+    "<a href=\"http://x.com/?a=1&copy=2&amp=3\">refs in attributes</a>",
+    "<a href=http://x.com/?a&b=c>unquoted ref</a>",
+    "<p class=\"a\" id='b' data-x=c disabled>attributes</p>",
+    "<p class=\"a\"title='b'>no space between</p>",
+    "<p =\"odd\" \"name\" 'x' <y>odd attribute names</p>",
+    "<p class=a/b>slash in value</p>",
+    "<p / class=x>stray slash</p>",
+    "<DIV CLASS=\"upper\">UPPER CASE</DIV>",
+    "<font color=red>font</font><center>center</center>",
+    "<section><header>h</header><nav>n</nav><footer>f</footer></section>",
+    "<blockquote>q</blockquote><address>a</address><hr>after hr",
+    "COMMA_GOES_HERE between COMMA_GOES_HERE words",
+    "caf\u00e9 \u00fcber \ud83d\ude00  ",
+    "<unterminated tag",
+    "<p unterminated=\"attribute>",
+    "<table><tr><td>cell</td></tr></table>",
+    "<ul><li>one<li>two</ul>",
+    "<script>var a = '<p>';</script>after",
+    "<style>p { color: red }</style>after",
+    "<title>title</title>body",
+    "<b><i>mis</b>nested</i>",
+    "<!DOCTYPE html><p>doctype</p>",
+    "<![CDATA[cdata]]>",
+    "<textarea><p>raw</p></textarea>",
+    "control \u0001 character",
+  };
+
+  private static final String[] TAGS = {"p", "div", "br", "b", "i", "u", "a", "span", "font",
+      "img", "pre", "h1", "h2", "h3", "hr", "link", "center", "strong", "em", "section", "sup",
+      "small", "video", "blockquote", "wbr"};
+
+  /** Rarely used: tags the scanner hands to Jsoup. */
+  private static final String[] OTHER_TAGS = {"table", "td", "li", "script", "title", "form",
+      "body", "textarea"};
+
+  private static final String[] ATTRIBUTES = {"href", "src", "HREF", "class", "style", "alt",
+      "abs:href", "abs:src", "id"};
+
+  private static final String[] VALUES = {"http://example.com/a?b=1&c=2", "mailto:ad@example.com",
+      "/ads/1.html", "MAILTO:x@y.z", "http://x.com/&amp;y", "javascript:void(0)",
+      "ftp://host/file", "", " spaced ", "http://x.com/?a=1&copy=2", "a b", "x>y", "q\"t"};
+
+  private static final String[] TEXT = {"Hello", "5'4\"", "110 lbs", "call 412-403-1289", " ",
+      "  ", "\n", "\t", "\r\n", "&amp;", "&nbsp;", "&lt;", "&gt", "&#39;", "&#x41;", "&#999999999;",
+      "&copy", "&notanentity;", "&", "<", ">", "/", "=", "\"", "'", "-", "!", "?",
+      "COMMA_GOES_HERE", "\u00e9", "\ud83d\ude00"};
+
+  private static final String[] MARKUP = {"<!-- c -->", "<!--", "-->", "<!-->", "<!--->",
+      "<!---->", "<!-- a -- b --!>", "<!x>", "<?php ?>", "</>", "</ b>", "< p>", "<p/>", "<br/>",
+      "</br>", "</p>", "<a href=x/>", "<img src='/i.jpg'>", "<!DOCTYPE html>", "<![CDATA[x]]>"};
+
+  /** The lines checked and the results of one kind. */
+  private static final class Kind {
+    final String name;
+    long lines;
+    long scanned;
+    long differing;
+
+    Kind(String name) {
+      this.name = name;
+    }
+  }
+
+  private final HtmlPreProcessor preprocessor = new HtmlPreProcessor();
+  private final List<String> shown = new ArrayList<String>();
+
+  public static void main(String[] args) throws Exception {
+    Options opts = new Options(args);
+    int records = opts.getInt("records", 200000);
+    long seed = opts.getLong("seed", 20140601L);
+    Random random = new Random(seed);
+    HtmlDiffRun run = new HtmlDiffRun();
+    List<Kind> kinds = new ArrayList<Kind>();
+
+    Kind fixed = new Kind("fixed");
+    for(String body : FIXED) {
+      run.check(fixed, body);
+      // the same markup after a title, as in the input files
+      run.check(fixed, "Title - 23,>           " + body);
+    }
+    kinds.add(fixed);
+
+    List<String> examples = new ArrayList<String>(Workload.lines(Workload.EXAMPLES));
+    examples.addAll(Workload.lines(Workload.HTML));
+    Kind example = new Kind("examples");
+    for(String line : examples) run.check(example, line);
+    kinds.add(example);
+
+    Kind generated = new Kind("random");
+    for(int i = 0; i < records; i++) run.check(generated, randomMarkup(random));
+    kinds.add(generated);
+
+    Kind mutated = new Kind("mutated");
+    for(int i = 0; i < records / 4; i++) {
+      run.check(mutated, mutate(examples.get(random.nextInt(examples.size())), random));
+    }
+    kinds.add(mutated);
+
+    System.out.println(String.format("%-10s %9s %9s %9s", "Lines", "checked", "scanned", "differ"));
+    long differing = 0;
+    for(Kind kind : kinds) {
+      System.out.println(String.format("%-10s %9d %9d %9d", kind.name, kind.lines, kind.scanned,
+          kind.differing));
+      differing += kind.differing;
+    }
+    if(differing > 0) {
+      System.out.println();
+      for(String s : run.shown) System.out.println(s);
+      System.out.println(differing + " lines differ from Jsoup (seed " + seed + ")");
+      System.exit(1);
+    }
+    System.out.println("The scanner matches Jsoup on every line (seed " + seed + ")");
+  }
+
+  /** Processes a line both ways and compares the results. */
+  private void check(Kind kind, String line) {
+    long fallbacks = preprocessor.fallbacks();
+    Preprocessed scanned = preprocessor.process(line);
+    Preprocessed expected = HtmlPreProcessor.processWithJsoup(line);
+    kind.lines++;
+    if(preprocessor.fallbacks() == fallbacks) kind.scanned++;
+    String difference = difference(expected, scanned);
+    if(difference != null) {
+      kind.differing++;
+      if(shown.size() < SHOWN) {
+        shown.add(kind.name + " line " + escape(line) + "\n  " + difference);
+      }
+    }
+  }
+
+  /** @return how two results differ, or null if they do not */
+  private static String difference(Preprocessed expected, Preprocessed actual) {
+    if(!expected.text.equals(actual.text)) {
+      return "text " + escape(actual.text) + " instead of " + escape(expected.text);
+    }
+    if(!expected.titleAge.equals(actual.titleAge)) {
+      return "title age " + actual.titleAge + " instead of " + expected.titleAge;
+    }
+    if(!expected.mailto.equals(actual.mailto)) {
+      return "mailto " + actual.mailto + " instead of " + expected.mailto;
+    }
+    if(!expected.href.equals(actual.href)) {
+      return "href " + actual.href + " instead of " + expected.href;
+    }
+    if(!expected.imports.equals(actual.imports)) {
+      return "imports " + actual.imports + " instead of " + expected.imports;
+    }
+    if(!expected.src.equals(actual.src)) {
+      return "src " + actual.src + " instead of " + expected.src;
+    }
+    return null;
+  }
+
+  /** @return markup made of up to 40 random pieces */
+  private static String randomMarkup(Random random) {
+    StringBuilder sb = new StringBuilder();
+    int pieces = 1 + random.nextInt(40);
+    for(int i = 0; i < pieces; i++) sb.append(piece(random));
+    return sb.toString();
+  }
+
+  /** @return one random piece of markup or text */
+  private static String piece(Random random) {
+    int kind = random.nextInt(100);
+    if(kind < 35) return pick(TEXT, random);
+    if(kind < 60) return startTag(random);
+    if(kind < 80) return "</" + tagName(random) + ">";
+    if(kind < 90) return pick(MARKUP, random);
+    // a single character, mostly one that means something in markup
+    String chars = "<>&/=\"'!-?# ;abcXYZ019";
+    return String.valueOf(chars.charAt(random.nextInt(chars.length())));
+  }
+
+  private static String startTag(Random random) {
+    StringBuilder sb = new StringBuilder("<").append(tagName(random));
+    int attributes = random.nextInt(4);
+    for(int i = 0; i < attributes; i++) {
+      sb.append(random.nextInt(10) == 0 ? "" : " ").append(pick(ATTRIBUTES, random));
+      String value = pick(VALUES, random);
+      switch(random.nextInt(5)) {
+        case 0:
+          break;
+        case 1:
+          sb.append("='").append(value.replace("'", "")).append("'");
+          break;
+        case 2:
+          sb.append("=").append(value.replace(" ", "").replace(">", ""));
+          break;
+        default:
+          sb.append("=\"").append(value.replace("\"", "")).append("\"");
+          break;
+      }
+    }
+    int end = random.nextInt(10);
+    if(end == 0) sb.append("/>");
+    else if(end == 1) sb.append(" / >");
+    else if(end == 2) sb.append(" ");
+    else sb.append(">");
+    return sb.toString();
+  }
+
+  private static String tagName(Random random) {
+    String name = random.nextInt(30) == 0 ? pick(OTHER_TAGS, random) : pick(TAGS, random);
+    return random.nextInt(10) == 0 ? name.toUpperCase() : name;
+  }
+
+  /** @return a line cut short, or with random pieces put into it */
+  private static String mutate(String line, Random random) {
+    if(line.isEmpty()) return piece(random);
+    if(random.nextInt(4) == 0) return line.substring(0, random.nextInt(line.length()));
+    StringBuilder sb = new StringBuilder(line);
+    int edits = 1 + random.nextInt(4);
+    for(int i = 0; i < edits; i++) sb.insert(random.nextInt(sb.length() + 1), piece(random));
+    return sb.toString();
+  }
+
+  private static String pick(String[] values, Random random) {
+    return values[random.nextInt(values.length)];
+  }
+
+  /** @return a string as a Java literal, so that whitespace is visible */
+  private static String escape(String s) {
+    StringBuilder sb = new StringBuilder("\"");
+    for(char c : s.toCharArray()) {
+      if(c == '"' || c == '\\') sb.append('\\').append(c);
+      else if(c == '\n') sb.append("\\n");
+      else if(c == '\r') sb.append("\\r");
+      else if(c == '\t') sb.append("\\t");
+      else if(c < ' ' || c > '~') sb.append(String.format("\\u%04x", (int)c));
+      else sb.append(c);
+    }
+    return sb.append('"').toString();
+  }
+}
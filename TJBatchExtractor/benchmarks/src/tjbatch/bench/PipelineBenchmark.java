@@ -0,0 +1,109 @@
+/*
+   File:        PipelineBenchmark.java
+   Description: the whole application, and the whole record, per document
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch.bench;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tjbatch.ColumnSchema;
+import tjbatch.HtmlPreProcessor;
+import tjbatch.Pipeline;
+import tjbatch.Preprocessed;
+import tjbatch.RecyclableDocument;
+import tjbatch.RowEncoder;
+import tjbatch.RowExtractor;
+
+/**
+ * One document through the controller, as a worker runs it: document() is
+ * the application alone, record() is everything a worker does for a line,
+ * from the html pre-processing to the encoded row and text.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+
+  @Param({Workload.EXAMPLES, Workload.LONG, Workload.HTML})
+  public String workload;
+
+  private Pipeline pipeline;
+  private List<String> lines;
+  private List<Preprocessed> records;
+  private int next;
+  private RecyclableDocument document;
+  private HtmlPreProcessor preprocessor;
+  private RowExtractor extractor;
+  private RowExtractor.Scratch scratch;
+  private RowEncoder encoder;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    pipeline = Application.pipeline();
+    lines = Workload.lines(workload);
+    records = Application.preprocessed(workload);
+    document = RecyclableDocument.create();
+    preprocessor = new HtmlPreProcessor();
+    ColumnSchema columns = ColumnSchema.load(new File("TJ_Columns.def"));
+    extractor = columns.compile();
+    scratch = extractor.newScratch();
+    encoder = RowEncoder.create("csv", columns);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    pipeline.cleanup();
+  }
+
+  @Benchmark
+  public int document() throws Exception {
+    Preprocessed prep = records.get(next);
+    next = (next + 1) % records.size();
+    document.recycle(prep.text);
+    try {
+      pipeline.execute(document, null);
+      return document.getAnnotations().size();
+    } finally {
+      document.clear();
+    }
+  }
+
+  @Benchmark
+  public byte[] record() throws Exception {
+    String line = lines.get(next);
+    next = (next + 1) % lines.size();
+    Preprocessed prep = preprocessor.process(line);
+    document.recycle(prep.text);
+    try {
+      pipeline.execute(document, null);
+      byte[] row = extractor.extract(document.getAnnotations(""), prep, null, scratch, encoder);
+      byte[] text = encoder.text(prep.outputText());
+      return row.length > text.length ? row : text;
+    } finally {
+      document.clear();
+    }
+  }
+}
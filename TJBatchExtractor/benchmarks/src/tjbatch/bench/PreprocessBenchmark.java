@@ -0,0 +1,72 @@
+/*
+   File:        PreprocessBenchmark.java
+   Description: the html pre-processing of a record
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jsoup.Jsoup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tjbatch.HtmlPreProcessor;
+import tjbatch.Preprocessed;
+
+/**
+ * Getting the text and links out of a line: process() is what the workers
+ * do, with Jsoup only for the lines the scanner cannot handle; jsoup() is
+ * the whole-document Jsoup parse the extractor used to do for every line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PreprocessBenchmark {
+
+  @Param({Workload.EXAMPLES, Workload.LONG, Workload.HTML})
+  public String workload;
+
+  private List<String> lines;
+  private int next;
+  private HtmlPreProcessor preprocessor;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    lines = Workload.lines(workload);
+    preprocessor = new HtmlPreProcessor();
+  }
+
+  private String nextLine() {
+    String line = lines.get(next);
+    next = (next + 1) % lines.size();
+    return line;
+  }
+
+  @Benchmark
+  public Preprocessed process() {
+    return preprocessor.process(nextLine());
+  }
+
+  @Benchmark
+  public String jsoup() {
+    return Jsoup.parseBodyFragment(nextLine()).text();
+  }
+}
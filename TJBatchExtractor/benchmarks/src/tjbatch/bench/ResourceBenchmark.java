@@ -0,0 +1,96 @@
+/*
+   File:        ResourceBenchmark.java
+   Description: one PR of the application per document
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch.bench;
+
+import gate.LanguageAnalyser;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tjbatch.Pipeline;
+import tjbatch.Preprocessed;
+import tjbatch.RecyclableDocument;
+
+/**
+ * The execute() of a single PR, by default the integer and phone number
+ * taggers. Before each call the PRs that come before it in the application
+ * run over the next document, outside the measurement, so the PR sees the
+ * annotations it sees in a real run. Any other PR can be measured with
+ * <code>-p pr=&lt;name&gt;</code>.
+ *
+ * As the document is prepared before every call, this is only meaningful
+ * for PRs that take well over a microsecond per document, which all of the
+ * application's do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResourceBenchmark {
+
+  @Param({"Integer Tagger", "Phone Number Tagger"})
+  public String pr;
+
+  @Param({Workload.EXAMPLES, Workload.LONG})
+  public String workload;
+
+  private Pipeline pipeline;
+  private int index;
+  private LanguageAnalyser resource;
+  private List<Preprocessed> records;
+  private int next;
+  private RecyclableDocument document;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    pipeline = Application.pipeline();
+    index = Application.indexOf(pipeline, pr);
+    resource = (LanguageAnalyser)Application.prs(pipeline).get(index);
+    records = Application.preprocessed(workload);
+    document = RecyclableDocument.create();
+    Application.started(pipeline);
+  }
+
+  @Setup(Level.Invocation)
+  public void nextDocument() throws Exception {
+    document.recycle(records.get(next).text);
+    next = (next + 1) % records.size();
+    Application.runBefore(pipeline, index, document);
+    resource.setDocument(document);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    Application.finished(pipeline);
+    document.clear();
+    pipeline.cleanup();
+  }
+
+  @Benchmark
+  public int execute() throws Exception {
+    resource.execute();
+    return document.getAnnotations().size();
+  }
+}
@@ -0,0 +1,101 @@
+/*
+   File:        RowBenchmark.java
+   Description: the assembly of the output row of a processed document
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch.bench;
+
+import gate.AnnotationSet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tjbatch.ColumnSchema;
+import tjbatch.Pipeline;
+import tjbatch.Preprocessed;
+import tjbatch.RecyclableDocument;
+import tjbatch.RowEncoder;
+import tjbatch.RowExtractor;
+
+/**
+ * Turning the annotations of a processed document into an encoded row and
+ * text, in each output format. The documents are all processed once before
+ * the measurement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowBenchmark {
+
+  @Param({"csv", "rfc4180", "jsonl", "binary"})
+  public String format;
+
+  @Param({Workload.EXAMPLES})
+  public String workload;
+
+  private List<Preprocessed> records;
+  private List<AnnotationSet> annotations;
+  private int next;
+  private RowExtractor extractor;
+  private RowExtractor.Scratch scratch;
+  private RowEncoder encoder;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    ColumnSchema columns = ColumnSchema.load(new File("TJ_Columns.def"));
+    extractor = columns.compile();
+    scratch = extractor.newScratch();
+    encoder = RowEncoder.create(format, columns);
+    records = Application.preprocessed(workload);
+    annotations = new ArrayList<AnnotationSet>();
+    Pipeline pipeline = Application.pipeline();
+    try {
+      for(Preprocessed prep : records) {
+        // a document of its own for each record, so its annotations stay
+        RecyclableDocument doc = RecyclableDocument.create();
+        doc.recycle(prep.text);
+        pipeline.execute(doc, null);
+        annotations.add(doc.getAnnotations(""));
+      }
+    } finally {
+      pipeline.cleanup();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    annotations = null;
+  }
+
+  @Benchmark
+  public byte[] extract() {
+    int i = next;
+    next = (next + 1) % records.size();
+    Preprocessed prep = records.get(i);
+    byte[] row = extractor.extract(annotations.get(i), prep, null, scratch, encoder);
+    byte[] text = encoder.text(prep.outputText());
+    return row.length > text.length ? row : text;
+  }
+}
@@ -0,0 +1,88 @@
+/*
+   File:        Workload.java
+   Description: the records the benchmarks run on
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import tjbatch.LineReader;
+
+/**
+ * The input lines of a benchmark, read the way TJBatchExtractor reads them.
+ * <ul>
+ * <li><b>examples</b>: the ads of Example_text.txt as they are.</li>
+ * <li><b>long</b>: ten consecutive examples run together into one ad, for
+ * the cost of the grammar on long documents.</li>
+ * <li><b>html</b>: the examples with their bodies wrapped in markup, links
+ * and images, for the cost of the html pre-processing.</li>
+ * </ul>
+ */
+public final class Workload {
+
+  public static final String EXAMPLES = "examples";
+  public static final String LONG = "long";
+  public static final String HTML = "html";
+
+  private static final String EXAMPLE_FILE = "Example_text.txt";
+  private static final int LONG_GROUP = 10;
+
+  private Workload() {
+  }
+
+  /**
+   * @param kind examples, long or html
+   * @return the input lines, without the header line of the example file
+   */
+  public static List<String> lines(String kind) throws IOException {
+    List<String> examples = new ArrayList<String>();
+    LineReader in = new LineReader(new File(EXAMPLE_FILE), Charset.defaultCharset(), 0);
+    try {
+      String line;
+      while((line = in.readLine()) != null) examples.add(line);
+    } finally {
+      in.close();
+    }
+    // the column name
+    if(!examples.isEmpty() && examples.get(0).equals("Text")) examples.remove(0);
+    if(kind.equals(EXAMPLES)) return examples;
+    List<String> lines = new ArrayList<String>();
+    if(kind.equals(LONG)) {
+      for(int i = 0; i < examples.size(); i += LONG_GROUP) {
+        StringBuilder line = new StringBuilder(examples.get(i));
+        for(int j = i + 1; j < Math.min(i + LONG_GROUP, examples.size()); j++) {
+          line.append(' ').append(body(examples.get(j)));
+        }
+        lines.add(line.toString());
+      }
+      return lines;
+    }
+    if(kind.equals(HTML)) {
+      for(int i = 0; i < examples.size(); i++) {
+        String line = examples.get(i);
+        String body = body(line);
+        String title = line.substring(0, line.length() - body.length());
+        lines.add(title + "<div class=\"ad\"><p>" + body.replace(". ", ".<br/>").replace("&", "&amp;")
+            + "</p><p><a href=\"/ads/" + i + ".html\">More &raquo;</a> "
+            + "<a href=\"mailto:ad" + i + "@example.com\">Mail</a></p>"
+            + "<img src=\"/img/" + i + ".jpg\"></div>");
+      }
+      return lines;
+    }
+    throw new IllegalArgumentException("unknown workload '" + kind + "'");
+  }
+
+  /** @return the line without the title, as the pre-processor splits it. */
+  private static String body(String line) {
+    int titleEnd = line.indexOf(",>");
+    return titleEnd < 0 ? line : line.substring(titleEnd + 2);
+  }
+}
@@ -0,0 +1,109 @@
+/*
+   File:        BinaryEncoder.java
+   Description: a compact length-prefixed binary output format
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+/**
+ * A binary format that needs no escaping and can be read back without
+ * parsing text; see {@link BinaryReader}. All numbers are unsigned varints
+ * (7 bits per byte, least significant group first) and all strings are a
+ * varint byte count followed by UTF-8.
+ *
+ * <pre>
+ *   row file:  "TJR1" columns name*   row*
+ *   row:       length (column: count value*)*
+ *   text file: "TJT1" text*
+ * </pre>
+ *
+ * A row starts with the number of bytes that follow, so a reader can skip
+ * rows without decoding them.
+ */
+class BinaryEncoder extends RowEncoder {
+
+  static final byte[] ROW_MAGIC = { 'T', 'J', 'R', '1' };
+  static final byte[] TEXT_MAGIC = { 'T', 'J', 'T', '1' };
+
+  /** The row being built; its length is only known at the end. */
+  private final ByteBuilder row = new ByteBuilder(1024);
+  private final ByteBuilder col = new ByteBuilder(256);
+  private final ByteBuilder value = new ByteBuilder(128);
+
+  BinaryEncoder(ColumnSchema schema) {
+    super(schema);
+  }
+
+  @Override
+  public byte[] header() {
+    out.reset();
+    out.put(ROW_MAGIC);
+    out.putVarint(names.length);
+    for(String name : names) putString(out, name);
+    return out.toByteArray();
+  }
+
+  @Override
+  public byte[] textHeader() {
+    return TEXT_MAGIC.clone();
+  }
+
+  @Override
+  public void startRow() {
+    super.startRow();
+    row.reset();
+  }
+
+  @Override
+  public void startColumn() {
+    super.startColumn();
+    col.reset();
+  }
+
+  @Override
+  public void startValue() {
+    super.startValue();
+    value.reset();
+  }
+
+  @Override
+  public void append(CharSequence s, boolean clean) {
+    value.putUtf8(s);
+  }
+
+  @Override
+  public void endValue() {
+    col.putVarint(value.length());
+    col.put(value);
+  }
+
+  @Override
+  public void endColumn() {
+    row.putVarint(values);
+    row.put(col);
+  }
+
+  @Override
+  public byte[] endRow() {
+    out.putVarint(row.length());
+    out.put(row);
+    return out.toByteArray();
+  }
+
+  @Override
+  public byte[] text(String text) {
+    out.reset();
+    putString(out, text);
+    return out.toByteArray();
+  }
+
+  private void putString(ByteBuilder b, String s) {
+    value.reset();
+    value.putUtf8(s);
+    b.putVarint(value.length());
+    b.put(value);
+  }
+}
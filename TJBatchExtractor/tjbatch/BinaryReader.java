@@ -0,0 +1,113 @@
+/*
+   File:        BinaryReader.java
+   Description: reads the files written in the binary output format
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a row or text file written by {@link BinaryEncoder}, gzip compressed
+ * or not.
+ */
+public class BinaryReader {
+
+  private final InputStream in;
+  private final boolean rows;
+  private String[] names;
+
+  /**
+   * @param rows true for a row file, false for a text file
+   */
+  public BinaryReader(File file, boolean rows) throws IOException {
+    InputStream is = new BufferedInputStream(new FileInputStream(file), 65536);
+    is.mark(2);
+    boolean gzip = is.read() == 0x1F && is.read() == 0x8B;
+    is.reset();
+    in = gzip ? new BufferedInputStream(new GZIPInputStream(is, 65536), 65536) : is;
+    this.rows = rows;
+    byte[] magic = new byte[4];
+    readFully(magic);
+    if(!Arrays.equals(magic, rows ? BinaryEncoder.ROW_MAGIC : BinaryEncoder.TEXT_MAGIC)) {
+      throw new IOException(file + " is not a binary " + (rows ? "row" : "text") + " file");
+    }
+    if(rows) {
+      names = new String[(int)readVarint()];
+      for(int i = 0; i < names.length; i++) names[i] = readString();
+    }
+  }
+
+  /** @return the column names of a row file. */
+  public String[] names() {
+    return names;
+  }
+
+  /**
+   * @return the values of each column of the next row, or null at the end
+   *   of the file
+   */
+  public String[][] nextRow() throws IOException {
+    if(!rows) throw new IllegalStateException("not a row file");
+    if(!more()) return null;
+    readVarint();
+    String[][] row = new String[names.length][];
+    for(int c = 0; c < row.length; c++) {
+      row[c] = new String[(int)readVarint()];
+      for(int v = 0; v < row[c].length; v++) row[c][v] = readString();
+    }
+    return row;
+  }
+
+  /** @return the next text, or null at the end of the file. */
+  public String nextText() throws IOException {
+    if(rows) throw new IllegalStateException("not a text file");
+    return more() ? readString() : null;
+  }
+
+  public void close() throws IOException {
+    in.close();
+  }
+
+  private boolean more() throws IOException {
+    in.mark(1);
+    boolean more = in.read() >= 0;
+    in.reset();
+    return more;
+  }
+
+  private long readVarint() throws IOException {
+    long v = 0;
+    for(int shift = 0; ; shift += 7) {
+      int b = in.read();
+      if(b < 0) throw new EOFException();
+      v |= (long)(b & 0x7F) << shift;
+      if((b & 0x80) == 0) return v;
+    }
+  }
+
+  private String readString() throws IOException {
+    byte[] b = new byte[(int)readVarint()];
+    readFully(b);
+    return new String(b, "UTF-8");
+  }
+
+  private void readFully(byte[] b) throws IOException {
+    int off = 0;
+    while(off < b.length) {
+      int n = in.read(b, off, b.length - off);
+      if(n < 0) throw new EOFException();
+      off += n;
+    }
+  }
+}
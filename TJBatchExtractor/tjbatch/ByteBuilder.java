@@ -0,0 +1,120 @@
+/*
+   File:        ByteBuilder.java
+   Description: a growable byte array with utf-8 and varint encoding
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import java.util.Arrays;
+
+/**
+ * The byte counterpart of a StringBuilder, used by the {@link RowEncoder}s
+ * to encode rows without going through a Writer or String.getBytes().
+ * Characters are encoded as UTF-8; like the JDK encoder, an unpaired
+ * surrogate is written as '?'.
+ */
+public class ByteBuilder {
+
+  private byte[] buf;
+  private int len;
+
+  public ByteBuilder(int capacity) {
+    buf = new byte[capacity];
+  }
+
+  public int length() {
+    return len;
+  }
+
+  public void reset() {
+    len = 0;
+  }
+
+  /** @return a copy of the bytes written since the last reset. */
+  public byte[] toByteArray() {
+    return Arrays.copyOf(buf, len);
+  }
+
+  private void ensure(int extra) {
+    if(len + extra > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+  }
+
+  public void put(int b) {
+    ensure(1);
+    buf[len++] = (byte)b;
+  }
+
+  public void put(byte[] b) {
+    put(b, 0, b.length);
+  }
+
+  public void put(byte[] b, int off, int n) {
+    ensure(n);
+    System.arraycopy(b, off, buf, len, n);
+    len += n;
+  }
+
+  public void put(ByteBuilder b) {
+    put(b.buf, 0, b.len);
+  }
+
+  /** Writes a non-negative number in 7 bit groups, least significant first. */
+  public void putVarint(long v) {
+    while((v & ~0x7FL) != 0) {
+      put((int)((v & 0x7F) | 0x80));
+      v >>>= 7;
+    }
+    put((int)v);
+  }
+
+  public void putUtf8(CharSequence s) {
+    putUtf8(s, 0, s.length());
+  }
+
+  /** Writes the characters from (inclusive) to to (exclusive) of s. */
+  public void putUtf8(CharSequence s, int from, int to) {
+    int n = to;
+    ensure(to - from);
+    for(int i = from; i < n; i++) {
+      char c = s.charAt(i);
+      if(c < 0x80) {
+        // multi-byte characters may have used up the room made above
+        if(len == buf.length) ensure(1);
+        buf[len++] = (byte)c;
+      } else if(Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+        putCodePoint(Character.toCodePoint(c, s.charAt(++i)));
+      } else {
+        putChar(c);
+      }
+    }
+  }
+
+  /** Writes one char; surrogates must be handled by the caller. */
+  public void putChar(char c) {
+    if(c < 0x80) {
+      put(c);
+    } else if(c < 0x800) {
+      ensure(2);
+      buf[len++] = (byte)(0xC0 | (c >> 6));
+      buf[len++] = (byte)(0x80 | (c & 0x3F));
+    } else if(Character.isSurrogate(c)) {
+      put('?');
+    } else {
+      ensure(3);
+      buf[len++] = (byte)(0xE0 | (c >> 12));
+      buf[len++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+      buf[len++] = (byte)(0x80 | (c & 0x3F));
+    }
+  }
+
+  private void putCodePoint(int cp) {
+    ensure(4);
+    buf[len++] = (byte)(0xF0 | (cp >> 18));
+    buf[len++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+    buf[len++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+    buf[len++] = (byte)(0x80 | (cp & 0x3F));
+  }
+}
@@ -0,0 +1,115 @@
+/*
+   File:        Checkpoint.java
+   Description: how far a run got, saved so that it can be resumed
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * The state of the output after a number of records: how many records were
+ * written, where the next one starts in the input and how long the output
+ * files were once those records had been {@link Sink#sync() synced}. To
+ * resume, the output files are {@link Sink#truncate truncated} to those sizes
+ * and reading continues at the input offset.
+ *
+ * A checkpoint is written to a temporary file, forced to disk and then
+ * renamed over the previous one, so that the checkpoint on disk is always
+ * complete and never ahead of the output.
+ */
+public class Checkpoint {
+
+  /**
+   * The settings the output depends on; a run is only resumed with the same
+   * settings.
+   */
+  public String options;
+
+  /** Number of records written. */
+  public long records;
+
+  /** Input byte offset of the first record not written. */
+  public long offset;
+
+  /** Size of the row file. */
+  public long rows;
+
+  /** Size of the text file. */
+  public long text;
+
+  /** Whether all records have been written. */
+  public boolean complete;
+
+  public Checkpoint(String options) {
+    this.options = options;
+  }
+
+  /** @return the checkpoint file kept next to an output file. */
+  public static File file(File output) {
+    return new File(output.getPath() + ".ckpt");
+  }
+
+  /** @return the checkpoint saved in f, or null if there is none. */
+  public static Checkpoint load(File f) throws IOException {
+    if(!f.exists()) return null;
+    Properties p = new Properties();
+    InputStream in = new FileInputStream(f);
+    try {
+      p.load(in);
+    } finally {
+      in.close();
+    }
+    Checkpoint c = new Checkpoint(p.getProperty("options", ""));
+    try {
+      c.records = Long.parseLong(p.getProperty("records"));
+      c.offset = Long.parseLong(p.getProperty("offset"));
+      c.rows = Long.parseLong(p.getProperty("rows"));
+      c.text = Long.parseLong(p.getProperty("text"));
+    } catch(NumberFormatException e) {
+      throw new IOException(f + " is not a valid checkpoint");
+    }
+    c.complete = Boolean.parseBoolean(p.getProperty("complete"));
+    return c;
+  }
+
+  /**
+   * Checks that the checkpoint was written with the given options.
+   */
+  public void check(String expected, File f) throws IOException {
+    if(!options.equals(expected)) {
+      throw new IOException(f + " was written with different options (" + options
+          + "); run without --resume to start again");
+    }
+  }
+
+  public void save(File f) throws IOException {
+    Properties p = new Properties();
+    p.setProperty("options", options);
+    p.setProperty("records", Long.toString(records));
+    p.setProperty("offset", Long.toString(offset));
+    p.setProperty("rows", Long.toString(rows));
+    p.setProperty("text", Long.toString(text));
+    p.setProperty("complete", Boolean.toString(complete));
+    File tmp = new File(f.getPath() + ".tmp");
+    FileOutputStream out = new FileOutputStream(tmp);
+    try {
+      p.store(out, null);
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+}
@@ -0,0 +1,190 @@
+/*
+   File:        ColumnSchema.java
+   Description: the declarative description of the output columns
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The output columns, as read from a column definition file such as
+ * TJ_Columns.def. Each line of the file defines one column:
+ *
+ * <pre>
+ *   Column:Source[ + Source ...]
+ * </pre>
+ *
+ * A source is <code>Type.feature[/feature...]</code> (one value per
+ * annotation of that type), <code>Type.@count</code> (the number of such
+ * annotations) or one of the values produced by the pre-processing:
+ * <code>@title_age</code>, <code>@mailto</code>, <code>@href</code>,
+ * <code>@import</code> and <code>@src</code>, or <code>@flags</code>, what
+ * went wrong while processing the record. It may be followed by the
+ * flags <code>none</code>, <code>skip</code>, <code>lower</code> and
+ * <code>clean</code>; see TJ_Columns.def for their meaning. Lines starting
+ * with '#' are comments and <code>@separator:x</code> sets the string that
+ * separates the values within a column.
+ *
+ * A schema is parsed once and then {@link #compile() compiled} into a
+ * {@link RowExtractor}.
+ */
+public class ColumnSchema {
+
+  public static final int SOURCE_FEATURES = 0;
+  public static final int SOURCE_COUNT = 1;
+  public static final int SOURCE_TITLE_AGE = 2;
+  public static final int SOURCE_MAILTO = 3;
+  public static final int SOURCE_HREF = 4;
+  public static final int SOURCE_IMPORT = 5;
+  public static final int SOURCE_SRC = 6;
+  public static final int SOURCE_FLAGS = 7;
+
+  /** A missing feature contributes an empty value. */
+  public static final int MISSING_EMPTY = 0;
+  /** A missing feature contributes the value "none". */
+  public static final int MISSING_NONE = 1;
+  /** An annotation that lacks the feature contributes no value at all. */
+  public static final int MISSING_SKIP = 2;
+
+  /** One source of values for a column. */
+  public static class Source {
+    public int kind;
+    /** The annotation type, for annotation sources. */
+    public String type;
+    /** The features making up one value, joined with '/'. */
+    public String[] features;
+    public int missing = MISSING_EMPTY;
+    public boolean lower;
+    public boolean clean;
+  }
+
+  /** One output column. */
+  public static class Column {
+    public String name;
+    public final List<Source> sources = new ArrayList<Source>();
+  }
+
+  public String separator = ";";
+  public final List<Column> columns = new ArrayList<Column>();
+
+  public static ColumnSchema load(File file) throws IOException {
+    Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+    try {
+      return parse(in, file.getName());
+    } finally {
+      in.close();
+    }
+  }
+
+  public static ColumnSchema parse(Reader in, String name) throws IOException {
+    ColumnSchema schema = new ColumnSchema();
+    BufferedReader br = new BufferedReader(in);
+    String line;
+    int lineNo = 0;
+    while((line = br.readLine()) != null) {
+      lineNo++;
+      if(line.trim().length() == 0 || line.trim().startsWith("#")) continue;
+      int colon = line.indexOf(':');
+      if(colon <= 0) throw error(name, lineNo, "expected Column:Source");
+      String column = line.substring(0, colon).trim();
+      String rest = line.substring(colon + 1);
+      if(column.equals("@separator")) {
+        schema.separator = rest;
+        continue;
+      }
+      Column c = new Column();
+      c.name = column;
+      for(String spec : rest.split("\\+")) {
+        c.sources.add(parseSource(spec.trim().split("\\s+"), name, lineNo));
+      }
+      schema.columns.add(c);
+    }
+    if(schema.columns.isEmpty()) throw error(name, lineNo, "no columns defined");
+    return schema;
+  }
+
+  private static Source parseSource(String[] tokens, String name, int lineNo) throws IOException {
+    Source s = new Source();
+    String spec = tokens[0];
+    if(spec.equals("@title_age")) s.kind = SOURCE_TITLE_AGE;
+    else if(spec.equals("@mailto")) s.kind = SOURCE_MAILTO;
+    else if(spec.equals("@href")) s.kind = SOURCE_HREF;
+    else if(spec.equals("@import")) s.kind = SOURCE_IMPORT;
+    else if(spec.equals("@src")) s.kind = SOURCE_SRC;
+    else if(spec.equals("@flags")) s.kind = SOURCE_FLAGS;
+    else {
+      int dot = spec.indexOf('.');
+      if(dot <= 0 || dot == spec.length() - 1) throw error(name, lineNo, "bad source '" + spec + "'");
+      s.type = spec.substring(0, dot);
+      String features = spec.substring(dot + 1);
+      if(features.equals("@count")) s.kind = SOURCE_COUNT;
+      else {
+        s.kind = SOURCE_FEATURES;
+        s.features = features.split("/");
+      }
+    }
+    for(int i = 1; i < tokens.length; i++) {
+      String flag = tokens[i];
+      if(flag.equals("none")) s.missing = MISSING_NONE;
+      else if(flag.equals("skip")) s.missing = MISSING_SKIP;
+      else if(flag.equals("lower")) s.lower = true;
+      else if(flag.equals("clean")) s.clean = true;
+      else throw error(name, lineNo, "unknown flag '" + flag + "'");
+    }
+    return s;
+  }
+
+  private static IOException error(String name, int lineNo, String msg) {
+    return new IOException(name + " line " + lineNo + ": " + msg);
+  }
+
+  /**
+   * Adds a last column, Flags, with what went wrong while processing each
+   * record, unless a column already has the <code>@flags</code> source.
+   */
+  public void addFlagsColumn() {
+    for(Column c : columns) {
+      for(Source s : c.sources) {
+        if(s.kind == SOURCE_FLAGS) return;
+      }
+    }
+    Column c = new Column();
+    c.name = "Flags";
+    Source s = new Source();
+    s.kind = SOURCE_FLAGS;
+    c.sources.add(s);
+    columns.add(c);
+  }
+
+  /** @return the column names, in order. */
+  public String[] names() {
+    String[] names = new String[columns.size()];
+    for(int i = 0; i < names.length; i++) names[i] = columns.get(i).name;
+    return names;
+  }
+
+  /** @return the csv header line. */
+  public String header() {
+    StringBuilder sb = new StringBuilder();
+    for(Column c : columns) {
+      if(sb.length() > 0) sb.append(',');
+      sb.append(c.name);
+    }
+    return sb.toString();
+  }
+
+  public RowExtractor compile() {
+    return new RowExtractor(this);
+  }
+}
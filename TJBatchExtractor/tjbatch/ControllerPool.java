@@ -0,0 +1,135 @@
+/*
+   File:        ControllerPool.java
+   Description: a pool of duplicated TJInfoExtractor applications
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import gate.CorpusController;
+import gate.Factory;
+import gate.util.GateException;
+
+import gate.creole.ResourceInstantiationException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Holds a fixed number of {@link Factory#duplicate duplicates} of the
+ * application, or of copies restored from a {@link Snapshot}. A worker
+ * checks a pipeline out for the duration of one document and returns it
+ * straight afterwards, so any idle worker can use any idle pipeline and
+ * the number of workers need not match the number of pipelines.
+ */
+public class ControllerPool {
+
+  private final List<Pipeline> all = new ArrayList<Pipeline>();
+  private final BlockingQueue<Pipeline> idle;
+  private Watchdog watchdog;
+
+  public ControllerPool(CorpusController application, int size) throws GateException {
+    idle = new ArrayBlockingQueue<Pipeline>(size);
+    for(int i = 0; i < size; ++i) {
+      Pipeline p = new Pipeline((CorpusController)Factory.duplicate(application));
+      all.add(p);
+      idle.add(p);
+    }
+  }
+
+  /**
+   * Pools applications made beforehand, such as those restored from a
+   * {@link Snapshot}.
+   */
+  public ControllerPool(List<CorpusController> applications) throws GateException {
+    idle = new ArrayBlockingQueue<Pipeline>(applications.size());
+    for(CorpusController application : applications) {
+      Pipeline p = new Pipeline(application);
+      all.add(p);
+      idle.add(p);
+    }
+  }
+
+  /** @return the number of pipelines in the pool. */
+  public int size() {
+    return all.size();
+  }
+
+  public List<Pipeline> pipelines() {
+    return Collections.unmodifiableList(all);
+  }
+
+  /**
+   * Sets the budget of every pipeline, see {@link Pipeline#setBudget}, and
+   * starts a {@link Watchdog} if there is a time budget.
+   */
+  public void setBudget(long millis, int maxInstances) throws ResourceInstantiationException {
+    for(Pipeline p : all) p.setBudget(millis, maxInstances);
+    if(millis > 0 && watchdog == null) watchdog = new Watchdog(all, millis);
+  }
+
+  /**
+   * Blocks until a pipeline is idle and hands it to the caller, who must give
+   * it back with {@link #release(Pipeline)}.
+   */
+  public Pipeline checkout() throws InterruptedException {
+    return idle.take();
+  }
+
+  public void release(Pipeline p) {
+    idle.add(p);
+  }
+
+  /**
+   * @return a profile of the stages of a record, with the PRs of every
+   *   pipeline timed
+   */
+  public Profile profile() {
+    for(Pipeline p : all) p.profile();
+    return new Profile(all.get(0).prNames());
+  }
+
+  /**
+   * Makes the JAPE Plus transducers of every pipeline count the work of
+   * each phase and rule.
+   */
+  public void profilePhases() throws ResourceInstantiationException {
+    for(Pipeline p : all) p.profilePhases();
+  }
+
+  /**
+   * Writes what the JAPE Plus transducers of all the pipelines counted
+   * since {@link #profilePhases()} to a CSV file. The pipelines should be
+   * idle.
+   */
+  public void writePhaseProfile(File file) throws IOException, ResourceInstantiationException {
+    // the transducers of every pipeline add up the counts of all their copies
+    String csv = all.get(0).phaseProfile();
+    if(csv == null) return;
+    Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try {
+      out.write(csv);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Releases the resources held by the pipelines. Must only be called once
+   * all of them have been returned.
+   */
+  public void cleanup() {
+    if(watchdog != null) watchdog.stop();
+    for(Pipeline p : all) p.cleanup();
+  }
+}
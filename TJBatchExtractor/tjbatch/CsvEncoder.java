@@ -0,0 +1,80 @@
+/*
+   File:        CsvEncoder.java
+   Description: the original, unquoted csv output format
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+/**
+ * Writes rows exactly as TJBatchExtractor always has: columns separated by
+ * commas, values by the schema separator, lines ended with the platform line
+ * separator and no quoting at all.
+ */
+class CsvEncoder extends RowEncoder {
+
+  private static final String NEWLINE = System.getProperty("line.separator");
+
+  CsvEncoder(ColumnSchema schema) {
+    super(schema);
+  }
+
+  @Override
+  public byte[] header() {
+    out.reset();
+    for(int i = 0; i < names.length; i++) {
+      if(i > 0) out.put(',');
+      out.putUtf8(names[i]);
+    }
+    out.putUtf8(NEWLINE);
+    return out.toByteArray();
+  }
+
+  @Override
+  public void startColumn() {
+    if(column >= 0) out.put(',');
+    super.startColumn();
+  }
+
+  @Override
+  public void startValue() {
+    if(values > 0) out.putUtf8(separator);
+    super.startValue();
+  }
+
+  @Override
+  public void append(CharSequence s, boolean clean) {
+    if(!clean) {
+      out.putUtf8(s);
+      return;
+    }
+    int n = s.length();
+    for(int i = 0; i < n; i++) {
+      char c = s.charAt(i);
+      if(c == ',' || c == ';') {
+        out.put(' ');
+      } else if(Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+        out.putUtf8(s, i, i + 2);
+        i++;
+      } else {
+        out.putChar(c);
+      }
+    }
+  }
+
+  @Override
+  public byte[] endRow() {
+    out.putUtf8(NEWLINE);
+    return out.toByteArray();
+  }
+
+  @Override
+  public byte[] text(String text) {
+    out.reset();
+    out.putUtf8(text);
+    out.putUtf8(NEWLINE);
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,85 @@
+/*
+   File:        Histogram.java
+   Description: a latency histogram with one writer and any number of readers
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in nanoseconds in logarithmic buckets: 16 buckets per
+ * power of two, so a percentile read from the histogram is within 1/16 of
+ * the true value. Only one thread records into a histogram, so recording
+ * needs no locks or atomic read-modify-write; the counts are published with
+ * lazySet so that other threads can read a consistent enough picture while
+ * the run goes on.
+ */
+public class Histogram {
+
+  private static final int SUB_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  /** Enough buckets for any long. */
+  static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  /** Number of values, their sum and the largest one; kept in one array so they are read together. */
+  private final AtomicLongArray totals = new AtomicLongArray(3);
+
+  /** Records one duration. Must only be called by the owning thread. */
+  public void record(long nanos) {
+    if(nanos < 0) nanos = 0;
+    int b = bucket(nanos);
+    counts.lazySet(b, counts.get(b) + 1);
+    totals.lazySet(0, totals.get(0) + 1);
+    totals.lazySet(1, totals.get(1) + nanos);
+    if(nanos > totals.get(2)) totals.lazySet(2, nanos);
+  }
+
+  static int bucket(long v) {
+    if(v < SUB_BUCKETS) return (int)v;
+    int exp = 63 - Long.numberOfLeadingZeros(v);
+    int sub = (int)(v >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  /** @return the largest value that falls in bucket b. */
+  static long upperBound(int b) {
+    if(b < SUB_BUCKETS) return b;
+    int exp = b / SUB_BUCKETS + SUB_BITS - 1;
+    long sub = b % SUB_BUCKETS;
+    long low = (SUB_BUCKETS + sub) << (exp - SUB_BITS);
+    return low + (1L << (exp - SUB_BITS)) - 1;
+  }
+
+  /**
+   * Adds the contents of this histogram to a merged one.
+   *
+   * @param merged bucket counts, as many as {@link #BUCKETS}
+   * @param mergedTotals count, sum and max
+   */
+  void addTo(long[] merged, long[] mergedTotals) {
+    for(int b = 0; b < BUCKETS; b++) merged[b] += counts.get(b);
+    mergedTotals[0] += totals.get(0);
+    mergedTotals[1] += totals.get(1);
+    mergedTotals[2] = Math.max(mergedTotals[2], totals.get(2));
+  }
+
+  /**
+   * @param q the quantile, between 0 and 1
+   * @return the q-quantile of merged bucket counts, never more than max
+   */
+  static long quantile(long[] merged, long count, long max, double q) {
+    long rank = (long)Math.ceil(q * count);
+    if(rank < 1) rank = 1;
+    long seen = 0;
+    for(int b = 0; b < BUCKETS; b++) {
+      seen += merged[b];
+      if(seen >= rank) return Math.min(upperBound(b), max);
+    }
+    return max;
+  }
+}
@@ -0,0 +1,682 @@
+/*
+   File:        HtmlPreProcessor.java
+   Description: turns one input line into the text and links handed to GATE
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Entities;
+
+/**
+ * Splits the title from the body of an ad and extracts the visible text and
+ * the link and media targets from its markup.
+ *
+ * This used to be done by building a Jsoup document for every record,
+ * selecting the interesting elements from it and asking it for its text.
+ * Nearly all ads are simple markup, though, so the body is now scanned once,
+ * collecting the text and the attributes as the tags go by, without building
+ * a tree. The scanner follows the Jsoup tokeniser and tree builder closely
+ * enough to give exactly the same result, as long as the markup only opens
+ * and closes elements in a well nested way. Anything it does not model
+ * (mis-nested tags, tables, forms, lists, scripts, doctypes, unfinished
+ * tags...) makes it give up and hand the record to Jsoup as before; see
+ * {@link #fallbacks()}.
+ *
+ * A pre-processor keeps its working storage between records and must only be
+ * used by one thread.
+ */
+public class HtmlPreProcessor {
+
+  /** Elements Jsoup treats as blocks when it builds the text. */
+  private static final Set<String> BLOCK = set("html", "head", "body", "frameset", "script",
+      "noscript", "style", "meta", "link", "title", "frame", "noframes", "section", "nav",
+      "aside", "hgroup", "header", "footer", "p", "h1", "h2", "h3", "h4", "h5", "h6", "ul",
+      "ol", "pre", "div", "blockquote", "hr", "address", "figure", "figcaption", "form",
+      "fieldset", "ins", "del", "s", "dl", "dt", "dd", "li", "table", "caption", "thead",
+      "tfoot", "tbody", "colgroup", "col", "tr", "th", "td", "video", "audio", "canvas",
+      "details", "menu", "plaintext");
+
+  /** Elements that never have content. */
+  private static final Set<String> VOID = set("area", "br", "embed", "img", "keygen", "wbr",
+      "input", "param", "source", "track", "meta", "link", "basefont", "bgsound", "command",
+      "hr");
+
+  /** Elements whose start tag closes an open paragraph. */
+  private static final Set<String> CLOSES_P = set("address", "article", "aside", "blockquote",
+      "center", "details", "dir", "div", "dl", "fieldset", "figcaption", "figure", "footer",
+      "header", "hgroup", "menu", "nav", "ol", "p", "section", "summary", "ul", "pre", "hr",
+      "h1", "h2", "h3", "h4", "h5", "h6");
+
+  private static final Set<String> HEADINGS = set("h1", "h2", "h3", "h4", "h5", "h6");
+
+  /**
+   * Start tags the tree builder gives special treatment that the scanner
+   * does not model, either because they change how the following text is
+   * tokenised or because they close or move other elements.
+   */
+  private static final Set<String> UNSUPPORTED = set("html", "head", "body", "frameset",
+      "frame", "noframes", "base", "title", "script", "style", "form", "li", "dd", "dt",
+      "plaintext", "listing", "button", "nobr", "table", "caption", "col", "colgroup",
+      "tbody", "thead", "tfoot", "tr", "th", "td", "image", "isindex", "textarea", "xmp",
+      "iframe", "noembed", "select", "optgroup", "option", "rp", "rt", "math", "svg",
+      "applet", "marquee", "object");
+
+  private static Set<String> set(String... names) {
+    return new HashSet<String>(Arrays.asList(names));
+  }
+
+  // tokeniser states within a tag
+  private static final int BEFORE_ATTR_NAME = 0;
+  private static final int ATTR_NAME = 1;
+  private static final int AFTER_ATTR_NAME = 2;
+  private static final int BEFORE_ATTR_VALUE = 3;
+  private static final int ATTR_VALUE_DOUBLE = 4;
+  private static final int ATTR_VALUE_SINGLE = 5;
+  private static final int ATTR_VALUE_UNQUOTED = 6;
+  private static final int AFTER_ATTR_VALUE = 7;
+  private static final int SELF_CLOSING = 8;
+
+  // tokeniser states within a comment
+  private static final int COMMENT_START = 0;
+  private static final int COMMENT_START_DASH = 1;
+  private static final int COMMENT = 2;
+  private static final int COMMENT_END_DASH = 3;
+  private static final int COMMENT_END = 4;
+  private static final int COMMENT_END_BANG = 5;
+
+  private final StringBuilder text = new StringBuilder(4096);
+  /** Names of the open elements, innermost last. */
+  private String[] open = new String[32];
+  private int depth;
+  /** Set when the text contains something Jsoup would handle differently. */
+  private boolean unsupported;
+
+  // the tag being scanned
+  private String tagName;
+  private final StringBuilder attrName = new StringBuilder();
+  private final StringBuilder attrValue = new StringBuilder();
+  private boolean inAttribute;
+  private String href, src, absHref, absSrc;
+
+  /** The characters of the last character reference. */
+  private char[] ref;
+
+  private long records;
+  private long fallbacks;
+
+  /**
+   * @param line one line of the input file
+   * @return the title age, visible text and links of the line
+   */
+  public Preprocessed process(String line) {
+    Preprocessed prep = new Preprocessed();
+    String body = body(line, prep);
+    records++;
+    if(!scan(body, prep)) {
+      fallbacks++;
+      prep.mailto.clear();
+      prep.href.clear();
+      prep.imports.clear();
+      prep.src.clear();
+      parse(body, prep);
+    }
+    return prep;
+  }
+
+  /**
+   * Processes a line the way the extractor did before the scanner, with a
+   * whole Jsoup document, which is what {@link #process} must give. Used by
+   * the differential check in the benchmarks (HtmlDiffRun).
+   */
+  public static Preprocessed processWithJsoup(String line) {
+    Preprocessed prep = new Preprocessed();
+    parse(body(line, prep), prep);
+    return prep;
+  }
+
+  /** @return the number of records processed. */
+  public long records() {
+    return records;
+  }
+
+  /** @return the number of records that had to be handed to Jsoup. */
+  public long fallbacks() {
+    return fallbacks;
+  }
+
+  public static boolean isInteger(String s) {
+    try {
+      Integer.parseInt(s);
+    } catch(NumberFormatException e) {
+      return false;
+    }
+    return true;
+  }
+
+  /** @return the markup of a line, with the title split off */
+  private static String body(String line, Preprocessed prep) {
+    String body = splitTitle(line, prep);
+    if(body.indexOf("COMMA_GOES_HERE") >= 0) body = body.replace("COMMA_GOES_HERE", ",");
+    return body;
+  }
+
+  /**
+   * Splits the title from the body and gets the age embedded in the title.
+   *
+   * @return the body, with the title put in front of it again followed by
+   *   the separator
+   */
+  private static String splitTitle(String body, Preprocessed prep) {
+    String sep = Preprocessed.SEPARATOR;
+    String title;
+    boolean trimmed = false;
+    int age_end = body.indexOf(",>           ");
+    if(age_end >= 0 && age_end < body.length()) {
+      int age_start = body.lastIndexOf("-", age_end);
+      if(age_start >= 0 && age_start < age_end) {
+        String title_age = body.substring(age_start + 1, age_end).trim();
+        if(isInteger(title_age)) {
+          prep.titleAge = title_age;
+          title = body.substring(0, age_start);
+          body = body.substring(age_end + 2, body.length());
+          body = title + sep + body;
+          trimmed = true;
+        }
+      }
+      if(!trimmed) {
+        title = body.substring(0, age_end);
+        body = body.substring(age_end + 2, body.length());
+        body = title + sep + body;
+      }
+    }
+    return body;
+  }
+
+  /** The old way: build the whole document with Jsoup. */
+  private static void parse(String body, Preprocessed prep) {
+    org.jsoup.nodes.Document htmldoc = Jsoup.parseBodyFragment(body);
+    prep.text = htmldoc.text();
+    for(Element l : htmldoc.select("a[href]")) link(l.attr("abs:href"), prep);
+    for(Element l : htmldoc.select("link[href]")) prep.imports.add(l.attr("abs:href"));
+    for(Element l : htmldoc.select("[src]")) prep.src.add(l.attr("abs:src"));
+  }
+
+  private static void link(String href, Preprocessed prep) {
+    if(href.length() > 7 && href.substring(0, 7).toLowerCase().equals("mailto:")) {
+      prep.mailto.add(href.substring(7, href.length()));
+    } else {
+      prep.href.add(href);
+    }
+  }
+
+  /**
+   * Scans the body once, filling in the text and links.
+   *
+   * @return false if the body contains something the scanner does not
+   *   handle exactly like Jsoup
+   */
+  private boolean scan(String s, Preprocessed prep) {
+    int n = s.length();
+    for(int i = 0; i < n; i++) {
+      char c = s.charAt(i);
+      // control characters are dropped or kept in ways the text rules below
+      // do not cover, and Jsoup's reader uses \uffff to mark the end of input
+      if((c < ' ' && c != '\t' && c != '\n' && c != '\f' && c != '\r') || c == '\uffff') {
+        return false;
+      }
+    }
+    text.setLength(0);
+    depth = 0;
+    unsupported = false;
+    int i = 0;
+    while(i < n) {
+      char c = s.charAt(i);
+      if(c == '&') {
+        int end = charRef(s, i + 1, (char)0, false);
+        if(end < 0) {
+          appendText('&');
+          i++;
+        } else {
+          for(char r : ref) appendText(r);
+          i = end;
+        }
+      } else if(c == '<') {
+        i = markup(s, i + 1, prep);
+        if(i < 0) return false;
+      } else {
+        appendText(c);
+        i++;
+      }
+      if(unsupported) return false;
+    }
+    prep.text = text.toString().trim();
+    return true;
+  }
+
+  /**
+   * Appends one character of text the way Jsoup's Element.text() does: runs
+   * of whitespace become a single space, except directly within a pre.
+   */
+  private void appendText(char c) {
+    if(c < ' ' && c != '\t' && c != '\n' && c != '\f' && c != '\r') {
+      unsupported = true;
+    } else if(preserveWhitespace()) {
+      text.append(c);
+    } else if(c == ' ' || c == '\t' || c == '\n' || c == '\f' || c == '\r') {
+      int len = text.length();
+      if(len == 0 || text.charAt(len - 1) != ' ') text.append(' ');
+    } else {
+      text.append(c);
+    }
+  }
+
+  private boolean preserveWhitespace() {
+    return (depth > 0 && open[depth - 1].equals("pre"))
+        || (depth > 1 && open[depth - 2].equals("pre"));
+  }
+
+  /**
+   * Handles whatever follows a '<'.
+   *
+   * @return the position after it, or -1 to give up
+   */
+  private int markup(String s, int p, Preprocessed prep) {
+    int n = s.length();
+    if(p >= n) {
+      appendText('<');
+      return p;
+    }
+    char c = s.charAt(p);
+    if(c == '!') {
+      p++;
+      if(s.startsWith("--", p)) return comment(s, p + 2);
+      if(s.regionMatches(true, p, "DOCTYPE", 0, 7) || s.startsWith("[CDATA[", p)) return -1;
+      return bogusComment(s, p);
+    }
+    if(c == '/') {
+      p++;
+      if(p >= n) {
+        appendText('<');
+        appendText('/');
+        return p;
+      }
+      c = s.charAt(p);
+      if(isLetter(c)) return tag(s, p, false, prep);
+      if(c == '>') return p + 1;
+      return bogusComment(s, p);
+    }
+    if(c == '?') return bogusComment(s, p);
+    if(isLetter(c)) return tag(s, p, true, prep);
+    appendText('<');
+    return p;
+  }
+
+  private static int bogusComment(String s, int p) {
+    int gt = s.indexOf('>', p);
+    return gt < 0 ? s.length() : gt + 1;
+  }
+
+  /** Skips a comment; p is just after the opening "&lt;!--". */
+  private static int comment(String s, int p) {
+    int n = s.length();
+    int state = COMMENT_START;
+    while(p < n) {
+      char c = s.charAt(p++);
+      switch(state) {
+        case COMMENT_START:
+        case COMMENT_START_DASH:
+          if(c == '>') return p;
+          if(c == '-') state = state == COMMENT_START ? COMMENT_START_DASH : COMMENT_END;
+          else state = COMMENT;
+          break;
+        case COMMENT:
+          if(c == '-') state = COMMENT_END_DASH;
+          break;
+        case COMMENT_END_DASH:
+          state = c == '-' ? COMMENT_END : COMMENT;
+          break;
+        case COMMENT_END:
+          if(c == '>') return p;
+          if(c == '!') state = COMMENT_END_BANG;
+          else if(c != '-') state = COMMENT;
+          break;
+        default:
+          if(c == '>') return p;
+          state = c == '-' ? COMMENT_END_DASH : COMMENT;
+          break;
+      }
+    }
+    // an unterminated comment runs to the end of the input
+    return n;
+  }
+
+  /**
+   * Scans a start or end tag; p is at the first letter of its name.
+   *
+   * @return the position after the tag, or -1 to give up
+   */
+  private int tag(String s, int p, boolean start, Preprocessed prep) {
+    int n = s.length();
+    int q = p;
+    while(q < n && !isTagNameEnd(s.charAt(q))) q++;
+    tagName = s.substring(p, q).toLowerCase();
+    p = q;
+    inAttribute = false;
+    href = src = absHref = absSrc = null;
+    // an unterminated tag is dropped by Jsoup, along with the rest of the input
+    if(p >= n) return -1;
+    char c = s.charAt(p++);
+    if(c == '>') return element(s, p, start, false, prep);
+    int state = c == '/' ? SELF_CLOSING : BEFORE_ATTR_NAME;
+    while(true) {
+      if(p >= n) return -1;
+      c = s.charAt(p++);
+      switch(state) {
+        case BEFORE_ATTR_NAME:
+        case AFTER_ATTR_NAME:
+          if(isSpace(c)) break;
+          if(c == '/') {
+            state = SELF_CLOSING;
+          } else if(c == '=' && state == AFTER_ATTR_NAME) {
+            state = BEFORE_ATTR_VALUE;
+          } else if(c == '>') {
+            return element(s, p, start, false, prep);
+          } else {
+            newAttribute();
+            if(c == '"' || c == '\'' || c == '<' || c == '=') attrName.append(c);
+            else p--;
+            state = ATTR_NAME;
+          }
+          break;
+        case ATTR_NAME:
+          q = --p;
+          while(q < n && !isAttrNameEnd(s.charAt(q))) q++;
+          attrName.append(s.substring(p, q).toLowerCase());
+          p = q;
+          if(p >= n) return -1;
+          c = s.charAt(p++);
+          if(isSpace(c)) state = AFTER_ATTR_NAME;
+          else if(c == '/') state = SELF_CLOSING;
+          else if(c == '=') state = BEFORE_ATTR_VALUE;
+          else if(c == '>') return element(s, p, start, false, prep);
+          else attrName.append(c);
+          break;
+        case BEFORE_ATTR_VALUE:
+          if(isSpace(c)) break;
+          if(c == '"') {
+            state = ATTR_VALUE_DOUBLE;
+          } else if(c == '\'') {
+            state = ATTR_VALUE_SINGLE;
+          } else if(c == '>') {
+            return element(s, p, start, false, prep);
+          } else {
+            if(c == '<' || c == '=' || c == '`') attrValue.append(c);
+            else p--;
+            state = ATTR_VALUE_UNQUOTED;
+          }
+          break;
+        case ATTR_VALUE_DOUBLE:
+        case ATTR_VALUE_SINGLE:
+          char quote = state == ATTR_VALUE_DOUBLE ? '"' : '\'';
+          q = --p;
+          while(q < n && s.charAt(q) != quote && s.charAt(q) != '&') q++;
+          attrValue.append(s, p, q);
+          p = q;
+          if(p >= n) return -1;
+          c = s.charAt(p++);
+          if(c == quote) state = AFTER_ATTR_VALUE;
+          else p = attrCharRef(s, p, quote);
+          break;
+        case ATTR_VALUE_UNQUOTED:
+          q = --p;
+          while(q < n && !isUnquotedValueEnd(s.charAt(q))) q++;
+          attrValue.append(s, p, q);
+          p = q;
+          if(p >= n) return -1;
+          c = s.charAt(p++);
+          if(isSpace(c)) state = BEFORE_ATTR_NAME;
+          else if(c == '&') p = attrCharRef(s, p, '>');
+          else if(c == '>') return element(s, p, start, false, prep);
+          else attrValue.append(c);
+          break;
+        case AFTER_ATTR_VALUE:
+          if(isSpace(c)) {
+            state = BEFORE_ATTR_NAME;
+          } else if(c == '/') {
+            state = SELF_CLOSING;
+          } else if(c == '>') {
+            return element(s, p, start, false, prep);
+          } else {
+            p--;
+            state = BEFORE_ATTR_NAME;
+          }
+          break;
+        default:
+          if(c == '>') return element(s, p, start, true, prep);
+          // Jsoup drops the character following a stray '/'
+          state = BEFORE_ATTR_NAME;
+          break;
+      }
+    }
+  }
+
+  private int attrCharRef(String s, int p, char additional) {
+    int end = charRef(s, p, additional, true);
+    if(end < 0) {
+      attrValue.append('&');
+      return p;
+    }
+    attrValue.append(ref);
+    return end;
+  }
+
+  /** Finishes the attribute being scanned, if any, and starts a new one. */
+  private void newAttribute() {
+    finishAttribute();
+    inAttribute = true;
+    attrName.setLength(0);
+    attrValue.setLength(0);
+  }
+
+  private void finishAttribute() {
+    if(!inAttribute) return;
+    inAttribute = false;
+    // later attributes of the same name replace earlier ones
+    String key = attrName.toString().trim().toLowerCase();
+    if(key.equals("href")) href = attrValue.toString();
+    else if(key.equals("src")) src = attrValue.toString();
+    else if(key.equals("abs:href")) absHref = attrValue.toString();
+    else if(key.equals("abs:src")) absSrc = attrValue.toString();
+  }
+
+  /**
+   * Applies a complete tag to the open elements and collects its links.
+   *
+   * @param p the position after the tag
+   * @return p, or -1 to give up
+   */
+  private int element(String s, int p, boolean start, boolean selfClosing, Preprocessed prep) {
+    finishAttribute();
+    String name = tagName;
+    if(!start) return endTag(name, p);
+
+    if(UNSUPPORTED.contains(name)) return -1;
+    // the tree builder closes an open a, an open paragraph before a block
+    // and an open heading before another heading; that is only simple when
+    // the element to close is the innermost one
+    if(name.equals("a") && isOpen("a") && !close("a")) return -1;
+    if(CLOSES_P.contains(name) && isOpen("p") && !close("p")) return -1;
+    if(HEADINGS.contains(name) && depth > 0 && HEADINGS.contains(open[depth - 1])) depth--;
+    if(name.equals("pre") && p < s.length()) {
+      // a newline straight after <pre> may be dropped
+      char c = s.charAt(p);
+      if(c == '\n' || c == '\r' || c == '&') return -1;
+    }
+
+    separate(name);
+    if(href != null) {
+      if(name.equals("a")) link(absUrl(href, absHref), prep);
+      else if(name.equals("link")) prep.imports.add(absUrl(href, absHref));
+    }
+    if(src != null) prep.src.add(absUrl(src, absSrc));
+
+    // a self closing tag is closed again straight away
+    if(!VOID.contains(name) && !selfClosing) {
+      if(depth == open.length) open = Arrays.copyOf(open, depth * 2);
+      open[depth++] = name;
+    }
+    return p;
+  }
+
+  private int endTag(String name, int p) {
+    if(close(name)) return p;
+    if(name.equals("br") || (name.equals("p") && !isOpen("p"))) {
+      // treated as <br>, and as an empty paragraph
+      separate(name);
+      return p;
+    }
+    if(HEADINGS.contains(name)) {
+      // closes whatever heading is open
+      if(depth > 0 && HEADINGS.contains(open[depth - 1])) depth--;
+      else if(isOpenHeading()) return -1;
+      return p;
+    }
+    // mis-nested tags
+    if(isOpen(name) || name.equals("body") || name.equals("html")) return -1;
+    // any other stray end tag is ignored
+    return p;
+  }
+
+  /** Closes the innermost element if it has the given name. */
+  private boolean close(String name) {
+    if(depth > 0 && open[depth - 1].equals(name)) {
+      depth--;
+      return true;
+    }
+    return false;
+  }
+
+  /** Adds the space Jsoup puts in the text before a block or a br. */
+  private void separate(String name) {
+    int len = text.length();
+    if(len > 0 && (BLOCK.contains(name) || name.equals("br")) && text.charAt(len - 1) != ' ') {
+      text.append(' ');
+    }
+  }
+
+  private boolean isOpenHeading() {
+    for(int i = depth - 1; i >= 0; i--) {
+      if(HEADINGS.contains(open[i])) return true;
+    }
+    return false;
+  }
+
+  private boolean isOpen(String name) {
+    for(int i = depth - 1; i >= 0; i--) {
+      if(open[i].equals(name)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Resolves a link the way Jsoup's attr("abs:...") does when the document
+   * has no base uri.
+   */
+  private static String absUrl(String value, String absAttr) {
+    if(absAttr != null) return absAttr;
+    if(value == null) return "";
+    try {
+      return new URL(value).toExternalForm();
+    } catch(MalformedURLException e) {
+      return "";
+    }
+  }
+
+  /**
+   * Decodes the character reference following an '&amp;' into {@link #ref}.
+   *
+   * @param p the position after the '&amp;'
+   * @param additional a character that ends the value the reference is in
+   * @return the position after the reference, or -1 if there is none
+   */
+  private int charRef(String s, int p, char additional, boolean attribute) {
+    int n = s.length();
+    if(p >= n) return -1;
+    char c = s.charAt(p);
+    if((additional != 0 && c == additional) || isSpace(c) || c == '<' || c == '&') return -1;
+    if(c == '#') {
+      p++;
+      boolean hex = p < n && (s.charAt(p) == 'x' || s.charAt(p) == 'X');
+      if(hex) p++;
+      int start = p;
+      while(p < n && (hex ? isHexDigit(s.charAt(p)) : isDigit(s.charAt(p)))) p++;
+      if(p == start) return -1;
+      int value = -1;
+      try {
+        value = Integer.valueOf(s.substring(start, p), hex ? 16 : 10);
+      } catch(NumberFormatException e) {
+        // too large, replaced below
+      }
+      if(p < n && s.charAt(p) == ';') p++;
+      if(value == -1 || (value >= 0xD800 && value <= 0xDFFF) || value > 0x10FFFF) {
+        ref = new char[] { '\ufffd' };
+      } else {
+        ref = Character.toChars(value);
+      }
+      return p;
+    }
+    int start = p;
+    while(p < n && isLetter(s.charAt(p))) p++;
+    while(p < n && isDigit(s.charAt(p))) p++;
+    String name = s.substring(start, p);
+    boolean semicolon = p < n && s.charAt(p) == ';';
+    if(!Entities.isBaseNamedEntity(name) && !(Entities.isNamedEntity(name) && semicolon)) return -1;
+    if(attribute && p < n) {
+      c = s.charAt(p);
+      if(isLetter(c) || isDigit(c) || c == '=' || c == '-' || c == '_') return -1;
+    }
+    if(semicolon) p++;
+    ref = new char[] { Entities.getCharacterByName(name) };
+    return p;
+  }
+
+  private static boolean isSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+  }
+
+  private static boolean isLetter(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isHexDigit(char c) {
+    return isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+  }
+
+  private static boolean isTagNameEnd(char c) {
+    return isSpace(c) || c == '/' || c == '>';
+  }
+
+  private static boolean isAttrNameEnd(char c) {
+    return isSpace(c) || c == '/' || c == '=' || c == '>' || c == '"' || c == '\'' || c == '<';
+  }
+
+  private static boolean isUnquotedValueEnd(char c) {
+    return isSpace(c) || c == '&' || c == '>' || c == '"' || c == '\'' || c == '<' || c == '='
+        || c == '`';
+  }
+}
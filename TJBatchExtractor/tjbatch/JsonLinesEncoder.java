@@ -0,0 +1,131 @@
+/*
+   File:        JsonLinesEncoder.java
+   Description: JSON Lines output, one object per row
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+/**
+ * Writes each row as a JSON object on a line of its own, for instance
+ *
+ * <pre>
+ *   {"Perspective_1st":["2"],"Name":["Amy","Jen"],"Age":["-1","21"],...}
+ * </pre>
+ *
+ * Every column maps to an array, so multi-valued columns need no separator
+ * and values are never altered. The texts are written as JSON strings, one
+ * per line.
+ */
+class JsonLinesEncoder extends RowEncoder {
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  /** The encoded <code>"name":[</code> of each column. */
+  private final byte[][] keys;
+
+  JsonLinesEncoder(ColumnSchema schema) {
+    super(schema);
+    keys = new byte[names.length][];
+    for(int i = 0; i < names.length; i++) {
+      out.reset();
+      putString(names[i]);
+      out.put(':');
+      out.put('[');
+      keys[i] = out.toByteArray();
+    }
+    out.reset();
+  }
+
+  @Override
+  public byte[] header() {
+    return null;
+  }
+
+  @Override
+  public void startRow() {
+    super.startRow();
+    out.put('{');
+  }
+
+  @Override
+  public void startColumn() {
+    if(column >= 0) out.put(',');
+    super.startColumn();
+    out.put(keys[column]);
+  }
+
+  @Override
+  public void startValue() {
+    if(values > 0) out.put(',');
+    super.startValue();
+    out.put('"');
+  }
+
+  @Override
+  public void append(CharSequence s, boolean clean) {
+    putEscaped(s);
+  }
+
+  @Override
+  public void endValue() {
+    out.put('"');
+  }
+
+  @Override
+  public void endColumn() {
+    out.put(']');
+  }
+
+  @Override
+  public byte[] endRow() {
+    out.put('}');
+    out.put('\n');
+    return out.toByteArray();
+  }
+
+  @Override
+  public byte[] text(String text) {
+    out.reset();
+    putString(text);
+    out.put('\n');
+    return out.toByteArray();
+  }
+
+  private void putString(CharSequence s) {
+    out.put('"');
+    putEscaped(s);
+    out.put('"');
+  }
+
+  private void putEscaped(CharSequence s) {
+    int n = s.length();
+    int from = 0;
+    for(int i = 0; i < n; i++) {
+      char c = s.charAt(i);
+      if(c >= 0x20 && c != '"' && c != '\\') continue;
+      out.putUtf8(s, from, i);
+      from = i + 1;
+      out.put('\\');
+      switch(c) {
+        case '"':  out.put('"'); break;
+        case '\\': out.put('\\'); break;
+        case '\n': out.put('n'); break;
+        case '\r': out.put('r'); break;
+        case '\t': out.put('t'); break;
+        case '\b': out.put('b'); break;
+        case '\f': out.put('f'); break;
+        default:
+          out.put('u');
+          out.put('0');
+          out.put('0');
+          out.put(HEX[c >> 4]);
+          out.put(HEX[c & 0xF]);
+          break;
+      }
+    }
+    out.putUtf8(s, from, n);
+  }
+}
@@ -0,0 +1,126 @@
+/*
+   File:        LineReader.java
+   Description: reads the lines of the input file and keeps track of their offsets
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * Reads lines like BufferedReader.readLine() (lines end at "\n", "\r" or
+ * "\r\n", malformed input is replaced), but also knows the byte offset in
+ * the file where the next line starts. That offset is what a
+ * {@link Checkpoint} records, and reading can start again from it.
+ *
+ * The charset must be one in which the line terminators are single bytes,
+ * as they are in ASCII, UTF-8 and the ISO-8859 and windows code pages.
+ */
+public class LineReader {
+
+  private final FileInputStream in;
+  private final CharsetDecoder decoder;
+  /** Whether ASCII bytes decode to themselves, so pure ASCII lines need no decoder. */
+  private final boolean asciiCompatible;
+
+  private final byte[] buf = new byte[65536];
+  private int pos, lim;
+  /** Offset in the file of buf[pos]. */
+  private long offset;
+
+  private byte[] line = new byte[1024];
+  private int len;
+  private char[] chars = new char[1024];
+
+  /**
+   * @param start the offset of the first line to read
+   */
+  public LineReader(File file, Charset charset, long start) throws IOException {
+    in = new FileInputStream(file);
+    in.getChannel().position(start);
+    offset = start;
+    decoder = charset.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    byte[] ascii = new byte[128];
+    for(int i = 0; i < ascii.length; i++) ascii[i] = (byte)i;
+    char[] decoded = new char[128];
+    for(int i = 0; i < decoded.length; i++) decoded[i] = (char)i;
+    asciiCompatible = charset.decode(ByteBuffer.wrap(ascii)).toString().equals(new String(decoded));
+  }
+
+  /** @return the offset of the line the next readLine() returns. */
+  public long offset() {
+    return offset;
+  }
+
+  /** @return the next line, without its terminator, or null at the end of the file. */
+  public String readLine() throws IOException {
+    len = 0;
+    boolean ascii = true;
+    while(true) {
+      if(pos == lim && !fill()) return len == 0 ? null : decode(ascii);
+      int start = pos;
+      byte b = 0;
+      while(pos < lim && (b = buf[pos]) != '\n' && b != '\r') {
+        if(b < 0) ascii = false;
+        pos++;
+      }
+      append(start, pos);
+      offset += pos - start;
+      if(pos < lim) {
+        pos++;
+        offset++;
+        if(b == '\r' && (pos < lim || fill()) && buf[pos] == '\n') {
+          pos++;
+          offset++;
+        }
+        return decode(ascii);
+      }
+    }
+  }
+
+  public void close() throws IOException {
+    in.close();
+  }
+
+  private boolean fill() throws IOException {
+    int n = in.read(buf);
+    pos = 0;
+    lim = Math.max(n, 0);
+    return n > 0;
+  }
+
+  private void append(int from, int to) {
+    int n = to - from;
+    if(len + n > line.length) line = Arrays.copyOf(line, Math.max(line.length * 2, len + n));
+    System.arraycopy(buf, from, line, len, n);
+    len += n;
+  }
+
+  private String decode(boolean ascii) {
+    if(ascii && asciiCompatible) {
+      if(chars.length < len) chars = new char[Math.max(len, chars.length * 2)];
+      for(int i = 0; i < len; i++) chars[i] = (char)line[i];
+      return new String(chars, 0, len);
+    }
+    int max = (int)(len * (double)decoder.maxCharsPerByte()) + 1;
+    if(chars.length < max) chars = new char[max];
+    CharBuffer out = CharBuffer.wrap(chars);
+    decoder.reset();
+    decoder.decode(ByteBuffer.wrap(line, 0, len), out, true);
+    decoder.flush(out);
+    return new String(chars, 0, out.position());
+  }
+}
@@ -0,0 +1,190 @@
+/*
+   File:        MappedInput.java
+   Description: an input file split into line aligned, memory mapped ranges
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits the input file into byte ranges that start at the beginning of a
+ * line, so that each range can be read on its own by a different worker.
+ * Workers {@link #claim()} ranges one at a time until none are left, map the
+ * range into memory and decode its lines as UTF-8 straight from the mapping;
+ * there is no reader thread and no queue in between.
+ *
+ * Lines end at "\n", "\r" or "\r\n", as for BufferedReader.readLine().
+ * Malformed UTF-8 is replaced by U+FFFD, as by an InputStreamReader.
+ */
+public class MappedInput {
+
+  /** Ranges are kept well below the 2GB limit of a single mapping. */
+  private static final long MAX_RANGE = 1L << 30;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  /** Start offsets of the ranges, followed by the file size. */
+  private final long[] bounds;
+  private final AtomicInteger next = new AtomicInteger();
+
+  /**
+   * @param ranges the number of ranges to split the file into; the file is
+   *   split further if that would make a range too large to map, and less
+   *   if it has too few lines
+   */
+  public MappedInput(File f, int ranges) throws IOException {
+    file = new RandomAccessFile(f, "r");
+    channel = file.getChannel();
+    long size = channel.size();
+    int n = (int)Math.max(Math.max(ranges, 1), (size + MAX_RANGE - 1) / MAX_RANGE);
+    List<Long> starts = new ArrayList<Long>();
+    long last = 0;
+    starts.add(last);
+    for(int k = 1; k < n; k++) {
+      long p = nextLine(size * k / n, size);
+      if(p > last && p < size) starts.add(last = p);
+    }
+    bounds = new long[starts.size() + 1];
+    for(int i = 0; i < starts.size(); i++) bounds[i] = starts.get(i);
+    bounds[starts.size()] = size;
+  }
+
+  /** @return the start of the first line that begins after p. */
+  private long nextLine(long p, long size) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(8192);
+    boolean cr = false;
+    while(p < size) {
+      buf.clear();
+      int n = channel.read(buf, p);
+      if(n <= 0) break;
+      for(int i = 0; i < n; i++) {
+        byte b = buf.get(i);
+        if(cr) return b == '\n' ? p + i + 1 : p + i;
+        if(b == '\n') return p + i + 1;
+        cr = b == '\r';
+      }
+      p += n;
+    }
+    return size;
+  }
+
+  /** @return the number of ranges. */
+  public int ranges() {
+    return bounds.length - 1;
+  }
+
+  /**
+   * Hands out each range exactly once.
+   *
+   * @return the index of a range nobody has claimed yet, or -1
+   */
+  public int claim() {
+    int r = next.getAndIncrement();
+    return r < ranges() ? r : -1;
+  }
+
+  /** @return the offset in the file of the start of a range. */
+  public long start(int range) {
+    return bounds[range];
+  }
+
+  /** @return the offset in the file of the end of a range. */
+  public long end(int range) {
+    return bounds[range + 1];
+  }
+
+  /** Maps a range into memory. */
+  public Lines open(int range) throws IOException {
+    long length = bounds[range + 1] - bounds[range];
+    if(length > Integer.MAX_VALUE) throw new IOException("input range " + range + " is too large to map");
+    return new Lines(channel.map(FileChannel.MapMode.READ_ONLY, bounds[range], length));
+  }
+
+  public void close() throws IOException {
+    file.close();
+  }
+
+  /** The lines of one range. Only to be used by one thread. */
+  public static class Lines {
+
+    private final MappedByteBuffer buf;
+    private final CharsetDecoder decoder = UTF8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private char[] chars = new char[1024];
+
+    Lines(MappedByteBuffer buf) {
+      this.buf = buf;
+    }
+
+    /** @return the offset within the range of the line readLine() returns next. */
+    public int position() {
+      return buf.position();
+    }
+
+    /** Continues reading at an offset returned by position(). */
+    public void seek(int position) {
+      buf.position(position);
+    }
+
+    /** @return the next line, without its line terminator, or null. */
+    public String readLine() {
+      int pos = buf.position();
+      int lim = buf.limit();
+      if(pos >= lim) return null;
+      int end = pos;
+      byte b = 0;
+      boolean ascii = true;
+      while(end < lim && (b = buf.get(end)) != '\n' && b != '\r') {
+        if(b < 0) ascii = false;
+        end++;
+      }
+      String line = ascii ? ascii(pos, end) : decode(pos, end);
+      if(end < lim) {
+        end++;
+        if(b == '\r' && end < lim && buf.get(end) == '\n') end++;
+      }
+      buf.position(end);
+      return line;
+    }
+
+    private String ascii(int from, int to) {
+      int n = to - from;
+      if(chars.length < n) chars = new char[Math.max(n, chars.length * 2)];
+      for(int i = 0; i < n; i++) chars[i] = (char)buf.get(from + i);
+      return new String(chars, 0, n);
+    }
+
+    private String decode(int from, int to) {
+      int n = to - from;
+      // UTF-8 never needs more chars than bytes
+      if(chars.length < n) chars = new char[Math.max(n, chars.length * 2)];
+      ByteBuffer in = buf.duplicate();
+      in.limit(to);
+      in.position(from);
+      CharBuffer out = CharBuffer.wrap(chars);
+      decoder.reset();
+      decoder.decode(in, out, true);
+      decoder.flush(out);
+      return new String(chars, 0, out.position());
+    }
+  }
+}
@@ -0,0 +1,209 @@
+/*
+   File:        OffsetIndex.java
+   Description: a hash table from keys to file offsets, kept in a memory
+                mapped file
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Maps 8-byte keys to offsets in another file, the way {@link ResultCache}
+ * finds its entries. The table is a file mapped into memory rather than a
+ * map on the heap, so it costs the same heap however many entries it holds;
+ * the operating system keeps the parts in use in memory and pages the rest
+ * out. It is an open addressing table with linear probing, doubled into a
+ * new file once it is half full.
+ *
+ * The file starts with a header: a magic number, whether it was closed
+ * cleanly, the length of the indexed file it covers, the number of entries
+ * and the number of slots. The slots follow, 16 bytes each: the key and the
+ * offset, which is 0 in an empty slot. A table that was not closed cleanly
+ * may lack the last entries added, and is started again.
+ *
+ * Not thread safe.
+ */
+public class OffsetIndex {
+
+  private static final int MAGIC = 0x544a4931; // "TJI1"
+  private static final int HEADER = 32;
+  private static final int SLOT = 16;
+  /** Slots per mapping: a mapped buffer holds at most 2 GB. */
+  private static final int SEGMENT_BITS = 26;
+  private static final int INITIAL_SLOTS = 1 << 16;
+
+  private final File file;
+  private FileChannel channel;
+  private MappedByteBuffer header;
+  private MappedByteBuffer[] segments;
+  private long slots;
+  private long count;
+  private long covered;
+
+  /**
+   * Opens the table in a file, or starts an empty one if there is no file
+   * or it was not closed cleanly.
+   */
+  public OffsetIndex(File file) throws IOException {
+    this.file = file;
+    if(file.length() >= HEADER) {
+      map(file);
+      if(header.getInt(0) == MAGIC && header.getInt(4) == 1
+          && file.length() == HEADER + header.getLong(24) * SLOT) {
+        covered = header.getLong(8);
+        count = header.getLong(16);
+        slots = header.getLong(24);
+        segments = mapSlots(channel, slots);
+        // until it is closed again
+        header.putInt(4, 0);
+        return;
+      }
+      channel.close();
+    }
+    create(file, INITIAL_SLOTS);
+  }
+
+  /**
+   * @return the length of the indexed file whose entries are all in the
+   *   table; the entries after it have to be {@link #put} again
+   */
+  public long covered() {
+    return covered;
+  }
+
+  /** @return the number of entries. */
+  public long size() {
+    return count;
+  }
+
+  /** Empties the table. */
+  public void clear() throws IOException {
+    channel.close();
+    create(file, INITIAL_SLOTS);
+  }
+
+  /** @return the offset stored for a key, or -1. */
+  public long get(long key) {
+    for(long slot = key & (slots - 1); ; slot = (slot + 1) & (slots - 1)) {
+      long offset = offset(slot);
+      if(offset == 0) return -1;
+      if(key(slot) == key) return offset;
+    }
+  }
+
+  /**
+   * Stores the offset of a key, which must be greater than 0.
+   *
+   * @return false if the key was already there, in which case its offset
+   *   is left as it was
+   */
+  public boolean put(long key, long offset) throws IOException {
+    if(!insert(segments, slots, key, offset)) return false;
+    count++;
+    if(count * 2 > slots) grow();
+    return true;
+  }
+
+  /**
+   * Writes the table out and closes it.
+   *
+   * @param covered the length of the indexed file the table now covers
+   */
+  public void close(long covered) throws IOException {
+    header.putLong(8, covered);
+    header.putLong(16, count);
+    header.putInt(4, 1);
+    for(MappedByteBuffer segment : segments) segment.force();
+    header.force();
+    channel.close();
+  }
+
+  private void grow() throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    long newSlots = slots * 2;
+    FileChannel newChannel = new RandomAccessFile(tmp, "rw").getChannel();
+    newChannel.truncate(0);
+    MappedByteBuffer[] newSegments = mapSlots(newChannel, newSlots);
+    for(long slot = 0; slot < slots; slot++) {
+      long offset = offset(slot);
+      if(offset != 0) insert(newSegments, newSlots, key(slot), offset);
+    }
+    channel.close();
+    if(!tmp.renameTo(file)) {
+      file.delete();
+      if(!tmp.renameTo(file)) throw new IOException("Could not write " + file);
+    }
+    channel = newChannel;
+    header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+    writeHeader(newSlots);
+    segments = newSegments;
+    slots = newSlots;
+  }
+
+  private static boolean insert(MappedByteBuffer[] segments, long slots, long key, long offset) {
+    for(long slot = key & (slots - 1); ; slot = (slot + 1) & (slots - 1)) {
+      ByteBuffer segment = segments[(int)(slot >>> SEGMENT_BITS)];
+      int pos = (int)(slot & ((1 << SEGMENT_BITS) - 1)) * SLOT;
+      if(segment.getLong(pos + 8) == 0) {
+        segment.putLong(pos, key);
+        segment.putLong(pos + 8, offset);
+        return true;
+      }
+      if(segment.getLong(pos) == key) return false;
+    }
+  }
+
+  private long key(long slot) {
+    return segments[(int)(slot >>> SEGMENT_BITS)].getLong((int)(slot & ((1 << SEGMENT_BITS) - 1)) * SLOT);
+  }
+
+  private long offset(long slot) {
+    return segments[(int)(slot >>> SEGMENT_BITS)].getLong((int)(slot & ((1 << SEGMENT_BITS) - 1)) * SLOT + 8);
+  }
+
+  private void create(File f, long newSlots) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(f, "rw");
+    raf.setLength(0);
+    channel = raf.getChannel();
+    segments = mapSlots(channel, newSlots);
+    header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+    slots = newSlots;
+    count = 0;
+    covered = 0;
+    writeHeader(newSlots);
+  }
+
+  private void map(File f) throws IOException {
+    channel = new RandomAccessFile(f, "rw").getChannel();
+    header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+  }
+
+  private void writeHeader(long newSlots) {
+    header.putInt(0, MAGIC);
+    header.putInt(4, 0);
+    header.putLong(8, covered);
+    header.putLong(16, count);
+    header.putLong(24, newSlots);
+  }
+
+  /** Maps the slots of a table, growing the file to hold them. */
+  private static MappedByteBuffer[] mapSlots(FileChannel channel, long slots) throws IOException {
+    long perSegment = 1L << SEGMENT_BITS;
+    MappedByteBuffer[] segments = new MappedByteBuffer[(int)((slots + perSegment - 1) / perSegment)];
+    for(int i = 0; i < segments.length; i++) {
+      long first = i * perSegment;
+      segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER + first * SLOT,
+          Math.min(perSegment, slots - first) * SLOT);
+    }
+    return segments;
+  }
+}
@@ -0,0 +1,72 @@
+/*
+   File:        Options.java
+   Description: command line handling for TJBatchExtractor
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits the command line into the positional arguments
+ * (<code>[num_threads] [textfile] [outfile] ...</code>) and named options
+ * of the form <code>--name=value</code> or <code>--flag</code>. Named
+ * options may appear anywhere on the command line.
+ */
+public class Options {
+
+  private final List<String> positional = new ArrayList<String>();
+  private final Map<String, String> named = new HashMap<String, String>();
+
+  public Options(String[] args) {
+    for(String arg : args) {
+      if(arg.startsWith("--")) {
+        int eq = arg.indexOf('=');
+        if(eq < 0) named.put(arg.substring(2), "");
+        else named.put(arg.substring(2, eq), arg.substring(eq + 1));
+      } else {
+        positional.add(arg);
+      }
+    }
+  }
+
+  /** @return the number of positional arguments. */
+  public int size() {
+    return positional.size();
+  }
+
+  /** @return the i'th positional argument, or def if there are fewer. */
+  public String get(int i, String def) {
+    return i < positional.size() ? positional.get(i) : def;
+  }
+
+  public int getInt(int i, int def) {
+    return i < positional.size() ? Integer.parseInt(positional.get(i)) : def;
+  }
+
+  /** @return true if the named option was given, with or without a value. */
+  public boolean has(String name) {
+    return named.containsKey(name);
+  }
+
+  public String get(String name, String def) {
+    String v = named.get(name);
+    return v == null || v.length() == 0 ? def : v;
+  }
+
+  public int getInt(String name, int def) {
+    String v = named.get(name);
+    return v == null || v.length() == 0 ? def : Integer.parseInt(v);
+  }
+
+  public long getLong(String name, long def) {
+    String v = named.get(name);
+    return v == null || v.length() == 0 ? def : Long.parseLong(v);
+  }
+}
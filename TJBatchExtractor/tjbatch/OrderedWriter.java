@@ -0,0 +1,211 @@
+/*
+   File:        OrderedWriter.java
+   Description: the writer stage of the extraction pipeline
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Writes finished records in input order. Workers complete records in
+ * whatever order they finish them; completed records wait here until every
+ * record before them has been written.
+ *
+ * The writer also provides the pipeline's backpressure: the reader has to
+ * {@link #reserve()} a slot before it hands a record to the workers, and the
+ * slot is only given back once the record has been written. At most
+ * <code>capacity</code> records are therefore held in memory at any time,
+ * no matter how large the input is or how unevenly the workers progress.
+ *
+ * As the writer is the only one who knows which records have made it to the
+ * output, it is also the one that saves the {@link Checkpoint}s.
+ */
+public class OrderedWriter implements Runnable {
+
+  /** Print a progress line every this many records. */
+  public static final int PROGRESS_INTERVAL = 10000;
+
+  public final Thread t;
+
+  private final Sink rows;
+  private final Sink text;
+  private final Semaphore window;
+
+  /** Completed records that are waiting for their predecessors. */
+  private final Map<Long, Record> pending = new HashMap<Long, Record>();
+
+  /** Sequence number of the next record to write. */
+  private long next;
+
+  /** Total number of records, or -1 while the reader is still running. */
+  private long total = -1;
+
+  /** The first write error, if any. */
+  private IOException error;
+
+  /** The error a worker could not recover from, if any. */
+  private Error fatal;
+
+  private File checkpointFile;
+  private Checkpoint checkpoint;
+  private int interval;
+
+  public OrderedWriter(Sink rows, Sink text, int capacity) {
+    this(rows, text, capacity, 0);
+  }
+
+  /**
+   * @param first the sequence number of the first record, which is not 0
+   *   when a run is resumed
+   */
+  public OrderedWriter(Sink rows, Sink text, int capacity, long first) {
+    this.rows = rows;
+    this.text = text;
+    this.window = new Semaphore(capacity);
+    this.next = first;
+    t = new Thread(this, "Writer");
+    t.start();
+  }
+
+  /**
+   * Saves a checkpoint every <code>interval</code> records. Must be called
+   * before the first record is completed.
+   *
+   * @param state the options of the run; the rest is filled in by the writer
+   */
+  public synchronized void checkpoint(File file, Checkpoint state, int interval) {
+    this.checkpointFile = file;
+    this.checkpoint = state;
+    this.interval = interval;
+  }
+
+  /**
+   * Blocks until there is room for one more record in the pipeline.
+   */
+  public void reserve() throws InterruptedException {
+    window.acquire();
+  }
+
+  /**
+   * Hands a processed record to the writer. Must be called exactly once for
+   * every record read, whether or not processing succeeded.
+   */
+  public synchronized void complete(Record r) {
+    pending.put(r.seq, r);
+    notifyAll();
+  }
+
+  /**
+   * Tells the writer how many records were read in total. The writer thread
+   * terminates once all of them have been written.
+   */
+  public synchronized void finish(long count) {
+    total = count;
+    notifyAll();
+  }
+
+  /**
+   * @return the number of records written so far.
+   */
+  public synchronized long written() {
+    return next;
+  }
+
+  /**
+   * @return the first error writing the output, or null. Once a write has
+   *   failed the remaining records are still taken in, but not written.
+   */
+  public synchronized IOException error() {
+    return error;
+  }
+
+  /**
+   * Gives up on the run after an error a worker cannot recover from, such
+   * as running out of memory. Nothing more is written and no more
+   * checkpoints are saved, so the run can be resumed from the last one; the
+   * records still in the pipeline are taken in and dropped.
+   */
+  public synchronized void abort(Error e) {
+    if(fatal == null) {
+      System.out.println("Worker caught error " + e);
+      fatal = e;
+    }
+  }
+
+  /**
+   * @return the error the run was aborted with, or null
+   */
+  public synchronized Error fatal() {
+    return fatal;
+  }
+
+  public void run() {
+    try {
+      while(true) {
+        Record r;
+        synchronized(this) {
+          while(!pending.containsKey(next) && (total < 0 || next < total)) wait();
+          if(total >= 0 && next >= total) break;
+          r = pending.remove(next);
+        }
+        write(r);
+        synchronized(this) {
+          next++;
+        }
+        if(interval > 0 && next % interval == 0 && r.end >= 0) save(r.end);
+        window.release();
+        if(next % PROGRESS_INTERVAL == 0) System.out.println("Processed " + next + " lines...");
+      }
+    } catch(InterruptedException e) {
+      System.out.println("Writer interrupted.");
+    }
+    try {
+      rows.flush();
+      text.flush();
+    } catch(IOException e) {
+      failed(e);
+    }
+  }
+
+  private void write(Record r) {
+    if(error() != null || fatal() != null) return;
+    try {
+      // a record that failed has neither
+      rows.write(r.row);
+      text.write(r.text);
+    } catch(IOException e) {
+      failed(e);
+    }
+  }
+
+  /**
+   * Saves a checkpoint after the record that ends at the given input offset.
+   */
+  private void save(long offset) {
+    if(error() != null || fatal() != null) return;
+    try {
+      checkpoint.records = next;
+      checkpoint.offset = offset;
+      checkpoint.rows = rows.sync();
+      checkpoint.text = text.sync();
+      checkpoint.save(checkpointFile);
+    } catch(IOException e) {
+      failed(e);
+    }
+  }
+
+  private synchronized void failed(IOException e) {
+    if(error == null) {
+      System.out.println("Writer caught exception " + e);
+      error = e;
+    }
+  }
+}
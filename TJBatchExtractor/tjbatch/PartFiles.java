@@ -0,0 +1,68 @@
+/*
+   File:        PartFiles.java
+   Description: an output file written in parts that are joined at the end
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * An output file that is written as numbered parts, <code>file.part0</code>,
+ * <code>file.part1</code>..., by different threads at the same time and
+ * joined in order once all parts are done. Joining copies the parts
+ * byte for byte; gzip compressed parts become members of one gzip file.
+ */
+public class PartFiles {
+
+  private final File target;
+  private final boolean gzip;
+
+  public PartFiles(File target, boolean gzip) {
+    this.target = target;
+    this.gzip = gzip;
+  }
+
+  public File part(int i) {
+    return new File(target.getPath() + ".part" + i);
+  }
+
+  /**
+   * @param append whether to add to an existing part
+   */
+  public Sink open(int i, boolean append) throws IOException {
+    return new Sink(part(i), gzip, append);
+  }
+
+  /**
+   * Writes the header followed by the first <code>count</code> parts to the
+   * target file and deletes the parts.
+   */
+  public void concatenate(byte[] header, int count) throws IOException {
+    Sink head = new Sink(target, gzip);
+    head.write(header);
+    head.close();
+    FileChannel out = new FileOutputStream(target, true).getChannel();
+    try {
+      for(int i = 0; i < count; i++) {
+        FileChannel in = new FileInputStream(part(i)).getChannel();
+        try {
+          long size = in.size();
+          for(long pos = 0; pos < size; ) pos += in.transferTo(pos, size - pos, out);
+        } finally {
+          in.close();
+        }
+      }
+    } finally {
+      out.close();
+    }
+    for(int i = 0; i < count; i++) part(i).delete();
+  }
+}
@@ -0,0 +1,187 @@
+/*
+   File:        Pipeline.java
+   Description: one copy of the TJInfoExtractor application
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import gate.Corpus;
+import gate.CorpusController;
+import gate.Document;
+import gate.Factory;
+import gate.ProcessingResource;
+import gate.creole.ExecutionException;
+import gate.creole.ResourceInstantiationException;
+import gate.util.GateException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A controller together with the single document corpus it runs over.
+ * A pipeline is not thread safe; it must only be used by the thread that
+ * checked it out of the {@link ControllerPool}.
+ *
+ * A document can be given a time budget. Once it is used up, the
+ * {@link Watchdog} interrupts the JAPE Plus transducers, which stop at the
+ * next FSM instance; the annotations made so far are kept. The
+ * transducers also take a budget for the number of active FSM instances of
+ * each phase, beyond which they skip the rest of their phases.
+ *
+ * When profiling, the PRs are run by a {@link TimedController} that
+ * records the time each of them takes.
+ */
+public class Pipeline {
+
+  /** The PRs that check for interruption often enough to enforce a time budget. */
+  private static final String TRANSDUCER = "gate.jape.plus.Transducer";
+
+  /** Document feature that names the phase that went over the instance budget. */
+  private static final String OVER_BUDGET_FEATURE = "JAPEPlus.overBudget";
+
+  public final CorpusController controller;
+  public final Corpus corpus;
+  private final List<ProcessingResource> transducers = new ArrayList<ProcessingResource>();
+  private final List<ProcessingResource> prs = new ArrayList<ProcessingResource>();
+  /** The controller that runs the PRs, the application's own unless profiling. */
+  private CorpusController runner;
+  /** Where the PRs record their times, while a profiled worker runs a document. */
+  Profile.Times times;
+
+  private long budget;
+  /** When the current document runs out of time, or 0. */
+  private long deadline;
+  private boolean timedOut;
+
+  public Pipeline(CorpusController controller) throws GateException {
+    this.controller = controller;
+    // We recycle the same Corpus object for each document.
+    corpus = Factory.newCorpus("BatchProcessApp Corpus");
+    controller.setCorpus(corpus);
+    runner = controller;
+    for(Object pr : controller.getPRs()) {
+      prs.add((ProcessingResource)pr);
+      if(pr.getClass().getName().equals(TRANSDUCER)) transducers.add((ProcessingResource)pr);
+    }
+  }
+
+  /** @return the names of the PRs, in the order they run. */
+  public List<String> prNames() {
+    List<String> names = new ArrayList<String>();
+    for(ProcessingResource pr : prs) names.add(pr.getName());
+    return names;
+  }
+
+  /**
+   * Makes the PRs record their times, see {@link Profile#FIRST_PR}.
+   */
+  public void profile() {
+    if(runner != controller) return;
+    TimedController timed = new TimedController(this, controller.getName(), prs);
+    timed.setCorpus(corpus);
+    runner = timed;
+  }
+
+  /**
+   * Makes the JAPE Plus transducers count the work of each phase and rule,
+   * see {@link #phaseProfile()}.
+   */
+  public void profilePhases() throws ResourceInstantiationException {
+    for(ProcessingResource pr : transducers) {
+      pr.setParameterValue("profile", Boolean.TRUE);
+    }
+  }
+
+  /**
+   * @return a CSV table of the work of each phase and rule of the JAPE Plus
+   *   transducers, added up over this pipeline and all the other copies of
+   *   the application; or null if there are no transducers
+   */
+  public String phaseProfile() throws ResourceInstantiationException {
+    StringBuilder csv = new StringBuilder();
+    for(ProcessingResource pr : transducers) {
+      // a bean property of the transducer, read the way its parameters are
+      String table = (String)pr.getParameterValue("profileCsv");
+      // one header is enough
+      if(csv.length() > 0) table = table.substring(table.indexOf('\n') + 1);
+      csv.append(table);
+    }
+    return csv.length() == 0 ? null : csv.toString();
+  }
+
+  /**
+   * @param millis the time a document may take, or 0 for no limit
+   * @param maxInstances the number of active FSM instances a phase may
+   *   have, or 0 for no limit
+   */
+  public void setBudget(long millis, int maxInstances) throws ResourceInstantiationException {
+    budget = millis;
+    for(ProcessingResource pr : transducers) {
+      pr.setParameterValue("maxActiveInstances", Integer.valueOf(maxInstances));
+    }
+  }
+
+  /**
+   * Runs the application over one document.
+   *
+   * @param times where to record the time each PR takes, or null
+   * @return null, or why processing was cut short: "timeout" when the time
+   *   budget ran out, or "instances:Phase" when a phase went over the
+   *   instance budget
+   */
+  public String execute(Document doc, Profile.Times times) throws GateException {
+    this.times = times;
+    synchronized(this) {
+      deadline = budget > 0 ? System.currentTimeMillis() + budget : 0;
+      timedOut = false;
+    }
+    // put the document in the corpus
+    corpus.add(doc);
+    boolean cutShort = false;
+    try {
+      // run the application
+      runner.execute();
+    } catch(ExecutionException e) {
+      // a transducer the watchdog interrupted; anything else is an error
+      if(!timedOut()) throw e;
+      cutShort = true;
+    } finally {
+      synchronized(this) {
+        deadline = 0;
+      }
+      this.times = null;
+      // remove the document from the corpus again
+      corpus.clear();
+    }
+    // the deadline may also pass once the last transducer is done, which
+    // leaves the document whole
+    if(cutShort) return "timeout";
+    Object phase = doc.getFeatures().get(OVER_BUDGET_FEATURE);
+    return phase == null ? null : "instances:" + phase;
+  }
+
+  private synchronized boolean timedOut() {
+    return timedOut;
+  }
+
+  /**
+   * Interrupts the document being processed if it is past its deadline.
+   * Called by the {@link Watchdog} until the document is done, as a
+   * transducer that starts afterwards clears the interruption.
+   */
+  synchronized void check(long now) {
+    if(deadline > 0 && now > deadline) {
+      timedOut = true;
+      for(ProcessingResource pr : transducers) pr.interrupt();
+    }
+  }
+
+  public void cleanup() {
+    if(runner != controller) ((TimedController)runner).release();
+    controller.setCorpus(null);
+    Factory.deleteResource(corpus);
+  }
+}
@@ -0,0 +1,46 @@
+/*
+   File:        Preprocessed.java
+   Description: an advertisement after the title/age split and html parsing
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What is left of one input line once the markup has been parsed: the
+ * visible text that is handed to GATE, the age embedded in the title and the
+ * link and media targets that are reported next to the annotations.
+ */
+public class Preprocessed {
+
+  /** Marks the end of the title in {@link #text}. */
+  public static final String SEPARATOR = "..THIS IS MY SEPARATION STRING..";
+
+  /** The age found in the ad title, or "-1". */
+  public String titleAge = "-1";
+
+  /** The visible text, including the title separator. */
+  public String text;
+
+  /** Targets of mailto: links, without the scheme. */
+  public final List<String> mailto = new ArrayList<String>();
+
+  /** Targets of all other &lt;a href&gt; links. */
+  public final List<String> href = new ArrayList<String>();
+
+  /** Targets of &lt;link href&gt; elements. */
+  public final List<String> imports = new ArrayList<String>();
+
+  /** Values of src attributes. */
+  public final List<String> src = new ArrayList<String>();
+
+  /** @return the visible text as written to the text output file. */
+  public String outputText() {
+    return text.replace(SEPARATOR, " ");
+  }
+}
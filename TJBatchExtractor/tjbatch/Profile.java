@@ -0,0 +1,125 @@
+/*
+   File:        Profile.java
+   Description: latency histograms of the stages a record goes through
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Where the time of each record goes: the html pre-processing, each PR of
+ * the application, the extraction of the row and the record as a whole.
+ * Every worker records into {@link Times} of its own, so recording takes no
+ * locks; a report merges the histograms of all workers.
+ *
+ * Profiling is off unless a Profile is created; workers then have no Times
+ * and do not even read the clock.
+ */
+public class Profile {
+
+  public static final int PREPROCESS = 0;
+  /** The stage of the first PR; the others follow in application order. */
+  public static final int FIRST_PR = 1;
+
+  /** The histograms of one worker thread. */
+  public static class Times {
+    private final Histogram[] stages;
+
+    Times(int n) {
+      stages = new Histogram[n];
+      for(int i = 0; i < n; i++) stages[i] = new Histogram();
+    }
+
+    /** Must only be called by the thread the Times belong to. */
+    public void record(int stage, long nanos) {
+      stages[stage].record(nanos);
+    }
+  }
+
+  private final String[] names;
+  public final int extract;
+  public final int record;
+  private final List<Times> threads = new CopyOnWriteArrayList<Times>();
+  private Thread reporter;
+
+  /**
+   * @param prNames the names of the PRs of the application, in order
+   */
+  public Profile(List<String> prNames) {
+    names = new String[prNames.size() + 3];
+    names[PREPROCESS] = "preprocess";
+    for(int i = 0; i < prNames.size(); i++) names[FIRST_PR + i] = prNames.get(i);
+    extract = FIRST_PR + prNames.size();
+    names[extract] = "extract";
+    record = extract + 1;
+    names[record] = "record";
+  }
+
+  /** @return histograms for a new worker thread. */
+  public Times newTimes() {
+    Times t = new Times(names.length);
+    threads.add(t);
+    return t;
+  }
+
+  /**
+   * Prints a report every given number of seconds until {@link #stop()}.
+   */
+  public void startReporting(final long seconds) {
+    reporter = new Thread("Profile") {
+      public void run() {
+        try {
+          while(true) {
+            Thread.sleep(seconds * 1000);
+            report(System.out);
+          }
+        } catch(InterruptedException e) {
+          // stopped
+        }
+      }
+    };
+    reporter.setDaemon(true);
+    reporter.start();
+  }
+
+  public void stop() {
+    if(reporter != null) reporter.interrupt();
+  }
+
+  /**
+   * Prints the count, percentiles and maximum of every stage in
+   * milliseconds, and its share of the total record time.
+   */
+  public void report(PrintStream out) {
+    long[][] merged = new long[names.length][Histogram.BUCKETS];
+    long[][] totals = new long[names.length][3];
+    for(Times t : threads) {
+      for(int s = 0; s < names.length; s++) t.stages[s].addTo(merged[s], totals[s]);
+    }
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%-30s %9s %9s %9s %9s %9s %7s%n",
+        "Stage", "count", "p50 ms", "p90 ms", "p99 ms", "max ms", "share"));
+    double all = Math.max(totals[record][1], 1);
+    for(int s = 0; s < names.length; s++) {
+      long count = totals[s][0];
+      long max = totals[s][2];
+      sb.append(String.format("%-30s %9d %9.3f %9.3f %9.3f %9.3f %6.1f%%%n", names[s], count,
+          ms(Histogram.quantile(merged[s], count, max, 0.5)),
+          ms(Histogram.quantile(merged[s], count, max, 0.9)),
+          ms(Histogram.quantile(merged[s], count, max, 0.99)),
+          ms(max), 100 * totals[s][1] / all));
+    }
+    out.print(sb);
+    out.flush();
+  }
+
+  private static double ms(long nanos) {
+    return nanos / 1e6;
+  }
+}
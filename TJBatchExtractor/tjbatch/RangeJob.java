@@ -0,0 +1,158 @@
+/*
+   File:        RangeJob.java
+   Description: the ranges of a memory mapped input and the output written for them
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands the ranges of a {@link MappedInput} to the workers and keeps the part
+ * files they are written to, see {@link PartFiles}. Every range has a
+ * checkpoint of its own, next to its part of the row file, so a resumed run
+ * skips the ranges that were complete and continues the others where their
+ * last checkpoint left them.
+ */
+public class RangeJob {
+
+  private final MappedInput input;
+  private final PartFiles rows;
+  private final PartFiles texts;
+  private final String options;
+  private final int interval;
+  private final boolean resume;
+  private final AtomicLong processed = new AtomicLong();
+  private volatile Error fatal;
+
+  /**
+   * @param options the settings the output depends on
+   * @param interval number of records between checkpoints, or 0 for none
+   * @param resume whether to continue from existing checkpoints
+   */
+  public RangeJob(MappedInput input, PartFiles rows, PartFiles texts, String options,
+          int interval, boolean resume) {
+    this.input = input;
+    this.rows = rows;
+    this.texts = texts;
+    this.options = options;
+    this.interval = interval;
+    this.resume = resume;
+  }
+
+  /** @return the number of records written so far, including resumed ones. */
+  public long processed() {
+    return processed.get();
+  }
+
+  /**
+   * Claims the next range that still has records to process.
+   *
+   * @return the range, or null if there are none left
+   */
+  public Part next() throws IOException {
+    int range;
+    while(fatal == null && (range = input.claim()) >= 0) {
+      File ckpt = checkpoint(range);
+      String expected = options + " range=" + input.start(range) + "-" + input.end(range);
+      Checkpoint c = resume ? Checkpoint.load(ckpt) : null;
+      if(c == null) return new Part(range, new Checkpoint(expected), false);
+      c.check(expected, ckpt);
+      processed.addAndGet(c.records);
+      if(!c.complete) return new Part(range, c, true);
+    }
+    return null;
+  }
+
+  /**
+   * Gives up on the job after an error a worker cannot recover from, such as
+   * running out of memory. No more ranges are handed out, and the ranges
+   * being processed are left to be resumed from their checkpoints.
+   */
+  public synchronized void abort(Error e) {
+    if(fatal == null) {
+      System.out.println("Worker caught error " + e);
+      fatal = e;
+    }
+  }
+
+  /** @return the error the job was aborted with, or null */
+  public Error fatal() {
+    return fatal;
+  }
+
+  /**
+   * Joins the parts into the output files, once all ranges are complete, and
+   * removes the parts and their checkpoints.
+   */
+  public void finish(byte[] rowHeader, byte[] textHeader) throws IOException {
+    rows.concatenate(rowHeader, input.ranges());
+    texts.concatenate(textHeader, input.ranges());
+    for(int i = 0; i < input.ranges(); i++) checkpoint(i).delete();
+  }
+
+  private File checkpoint(int range) {
+    return Checkpoint.file(rows.part(range));
+  }
+
+  /** One range being processed. Only to be used by the thread that claimed it. */
+  public class Part {
+
+    public final MappedInput.Lines lines;
+    private final File ckpt;
+    private final Checkpoint state;
+    private final Sink rowSink;
+    private final Sink textSink;
+
+    Part(int range, Checkpoint state, boolean resumed) throws IOException {
+      this.ckpt = checkpoint(range);
+      this.state = state;
+      lines = input.open(range);
+      if(resumed) {
+        Sink.truncate(rows.part(range), state.rows);
+        Sink.truncate(texts.part(range), state.text);
+        lines.seek((int)state.offset);
+      }
+      rowSink = rows.open(range, resumed);
+      textSink = texts.open(range, resumed);
+    }
+
+    /** @return the sequence number, within the range, of the next record. */
+    public long seq() {
+      return state.records;
+    }
+
+    /** Writes the next record of the range. */
+    public void write(Record r) throws IOException {
+      rowSink.write(r.row);
+      textSink.write(r.text);
+      state.records++;
+      long n = processed.incrementAndGet();
+      if(n % OrderedWriter.PROGRESS_INTERVAL == 0) System.out.println("Processed " + n + " lines...");
+      if(interval > 0 && state.records % interval == 0) save();
+    }
+
+    /** Marks the range as done, once all its records have been written. */
+    public void complete() throws IOException {
+      state.complete = true;
+      save();
+    }
+
+    private void save() throws IOException {
+      state.offset = lines.position();
+      state.rows = rowSink.sync();
+      state.text = textSink.sync();
+      state.save(ckpt);
+    }
+
+    public void close() throws IOException {
+      rowSink.close();
+      textSink.close();
+    }
+  }
+}
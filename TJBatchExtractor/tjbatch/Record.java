@@ -0,0 +1,48 @@
+/*
+   File:        Record.java
+   Description: a single input line travelling through the extraction pipeline
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One advertisement (one line of the input file) on its way from the reader
+ * to the ordered writer. The sequence number is the zero based line number and
+ * is what the writer uses to put results back into input order.
+ */
+public class Record {
+
+  /** Marker handed to each worker to tell it that the input is exhausted. */
+  public static final Record END = new Record(-1, null);
+
+  public final long seq;
+  public final String line;
+
+  /** Input byte offset of the line after this one, if known. */
+  public long end = -1;
+
+  /** The encoded output row. */
+  public byte[] row;
+
+  /** The encoded pre-processed text written to the text output file. */
+  public byte[] text;
+
+  /** What went wrong while processing the record, or null if nothing did. */
+  public List<String> flags;
+
+  public Record(long seq, String line) {
+    this.seq = seq;
+    this.line = line;
+  }
+
+  public void flag(String flag) {
+    if(flags == null) flags = new ArrayList<String>(2);
+    flags.add(flag);
+  }
+}
@@ -0,0 +1,75 @@
+/*
+   File:        RecyclableDocument.java
+   Description: a GATE document that is reused for one record after another
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import gate.Factory;
+import gate.corpora.DocumentContentImpl;
+import gate.corpora.DocumentImpl;
+
+/**
+ * A document that each worker creates once and then {@link #recycle fills}
+ * with one record after another, instead of creating and deleting a GATE
+ * resource (with its listeners, feature map and registry entries) for
+ * every ad.
+ *
+ * Recycling leaves the document in the state a plain text document created
+ * with {@link Factory#newDocument(String)} would be in: the content wraps
+ * the given string without copying it, there are no annotation sets (they
+ * are created again when they are asked for) and annotation and node ids
+ * start from 0 again.
+ *
+ * The document is not created through the Factory: it never enters the
+ * CREOLE register, is not a creole listener and fires no creole events, so
+ * workers do not contend for the register's locks and listener lists. The
+ * controller and the PRs only need a Document, which it is. It must not be
+ * passed to Factory.deleteResource().
+ */
+public class RecyclableDocument extends DocumentImpl {
+
+  private static final long serialVersionUID = 1L;
+
+  /** The feature DocumentImpl sets on a document made from a string. */
+  private static final String SOURCE_URL_FEATURE = "gate.SourceURL";
+  private static final String FROM_STRING = "created from String";
+
+  /**
+   * @return a new, empty document, with the parameters Factory.newDocument()
+   *   would have given it.
+   */
+  public static RecyclableDocument create() {
+    RecyclableDocument doc = new RecyclableDocument();
+    doc.setName("Batch Document");
+    doc.setFeatures(Factory.newFeatureMap());
+    doc.setMarkupAware(Boolean.TRUE);
+    return doc;
+  }
+
+  /**
+   * Drops everything the previous record left behind and makes the text the
+   * content of the document.
+   */
+  public void recycle(String text) {
+    clear();
+    content = new DocumentContentImpl(text);
+    getFeatures().put(SOURCE_URL_FEATURE, FROM_STRING);
+  }
+
+  /**
+   * Drops the content, annotations and features, so that they do not stay
+   * in memory until the next record.
+   */
+  public void clear() {
+    defaultAnnots = null;
+    namedAnnotSets = null;
+    nextAnnotationId = 0;
+    nextNodeId = 0;
+    content = new DocumentContentImpl("");
+    getFeatures().clear();
+  }
+}
@@ -0,0 +1,298 @@
+/*
+   File:        ResultCache.java
+   Description: the output of records seen before, by a hash of their text
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the encoded row and text of every record that went through the
+ * pipeline, keyed by a SHA-256 hash of the record after pre-processing
+ * (see {@link #key}). Ads are reposted many times; a record whose key is
+ * known is written straight from the cache, without running GATE.
+ *
+ * The results are appended to a file, so the cache lasts from one run to
+ * the next, and a bounded number of the most recently used ones are also
+ * kept in memory. The offset of each entry in the file is found through an
+ * {@link OffsetIndex} kept next to it (FILE.index), which is memory mapped
+ * rather than held on the heap, so the heap the cache takes does not grow
+ * with the number of entries. The file starts with a fingerprint of
+ * everything besides the record the output depends on: the format, the
+ * column definitions and every file of the application (grammars,
+ * gazetteer lists, plugins). A file made with other settings or another
+ * application is started again.
+ *
+ * All methods are synchronized, so one cache is shared by all workers.
+ */
+public class ResultCache {
+
+  private static final byte[] MAGIC = {'T', 'J', 'C', '1'};
+  private static final int KEY_SIZE = 32;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final File file;
+  private final FileChannel reader;
+  private final OutputStream out;
+  /** Length of the file, including what is still buffered in out. */
+  private long size;
+  /** Length of the file that has been flushed. */
+  private long flushed;
+  /** File offset of each entry, by the first 8 bytes of its key. */
+  private final OffsetIndex index;
+  private final Recent recent;
+
+  private long hits, diskHits, misses;
+
+  /**
+   * @param settings everything besides the record the output depends on
+   * @param capacity number of results kept in memory
+   */
+  public ResultCache(File file, String settings, int capacity) throws IOException {
+    this.file = file;
+    recent = new Recent(capacity);
+    byte[] header = new byte[MAGIC.length + KEY_SIZE];
+    System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+    System.arraycopy(digest().digest(settings.getBytes(UTF8)), 0, header, MAGIC.length, KEY_SIZE);
+    index = new OffsetIndex(new File(file.getPath() + ".index"));
+    size = load(header);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    if(size < 0) {
+      if(raf.length() > 0) System.out.println("Cache " + file + " was made with other settings or another application, starting a new one");
+      raf.setLength(0);
+      raf.write(header);
+      size = header.length;
+      index.clear();
+    } else {
+      // drop an entry that was cut short
+      raf.setLength(size);
+    }
+    raf.close();
+    flushed = size;
+    reader = new RandomAccessFile(file, "r").getChannel();
+    out = new BufferedOutputStream(new FileOutputStream(file, true), 65536);
+  }
+
+  /** The results used most recently, by key. */
+  private static final class Recent extends LinkedHashMap<ByteBuffer, byte[][]> {
+    private static final long serialVersionUID = 1L;
+    private final int capacity;
+
+    Recent(int capacity) {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<ByteBuffer, byte[][]> eldest) {
+      return size() > capacity;
+    }
+  }
+
+  /** @return a digest for {@link #key}, one per thread. */
+  public static MessageDigest digest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch(NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the key of a record: the hash of everything in it that the
+   *   output depends on
+   */
+  public static byte[] key(Preprocessed p, MessageDigest md) {
+    md.reset();
+    update(md, p.text);
+    update(md, p.titleAge);
+    update(md, p.mailto);
+    update(md, p.href);
+    update(md, p.imports);
+    update(md, p.src);
+    return md.digest();
+  }
+
+  private static void update(MessageDigest md, List<String> values) {
+    md.update(intBytes(values.size()));
+    for(String s : values) update(md, s);
+  }
+
+  private static void update(MessageDigest md, String s) {
+    byte[] b = s.getBytes(UTF8);
+    md.update(intBytes(b.length));
+    md.update(b);
+  }
+
+  private static byte[] intBytes(int i) {
+    return new byte[] {(byte)(i >>> 24), (byte)(i >>> 16), (byte)(i >>> 8), (byte)i};
+  }
+
+  /**
+   * Looks the key up and, if it is found, sets the row and text of the
+   * record to the cached ones.
+   *
+   * @return whether the key was found
+   */
+  public synchronized boolean get(byte[] key, Record r) throws IOException {
+    ByteBuffer k = ByteBuffer.wrap(key);
+    byte[][] result = recent.get(k);
+    if(result == null) {
+      result = read(key);
+      if(result == null) {
+        misses++;
+        return false;
+      }
+      recent.put(k, result);
+      diskHits++;
+    }
+    hits++;
+    r.row = result[0];
+    r.text = result[1];
+    return true;
+  }
+
+  /** Adds the row and text of a record that was processed. */
+  public synchronized void put(byte[] key, Record r) throws IOException {
+    if(r.row == null || r.text == null) return;
+    recent.put(ByteBuffer.wrap(key), new byte[][] {r.row, r.text});
+    // another worker may have stored the same record in the meantime
+    if(!index.put(ByteBuffer.wrap(key).getLong(), size)) return;
+    out.write(key);
+    out.write(intBytes(r.row.length));
+    out.write(r.row);
+    out.write(intBytes(r.text.length));
+    out.write(r.text);
+    size += KEY_SIZE + 8 + r.row.length + r.text.length;
+  }
+
+  /** @return the number of lookups that were found. */
+  public synchronized long hits() {
+    return hits;
+  }
+
+  /** @return the number of lookups that were found on disk, not in memory. */
+  public synchronized long diskHits() {
+    return diskHits;
+  }
+
+  public synchronized long misses() {
+    return misses;
+  }
+
+  public synchronized void close() throws IOException {
+    out.close();
+    reader.close();
+    index.close(size);
+  }
+
+  /** @return the result stored for the key, or null. */
+  private byte[][] read(byte[] key) throws IOException {
+    long offset = index.get(ByteBuffer.wrap(key).getLong());
+    if(offset < 0) return null;
+    if(offset >= flushed) {
+      out.flush();
+      flushed = size;
+    }
+    ByteBuffer head = ByteBuffer.allocate(KEY_SIZE + 4);
+    readFully(head, offset);
+    // the index only holds part of the key
+    if(!Arrays.equals(Arrays.copyOf(head.array(), KEY_SIZE), key)) return null;
+    byte[] row = new byte[head.getInt(KEY_SIZE)];
+    long pos = offset + head.capacity();
+    readFully(ByteBuffer.wrap(row), pos);
+    pos += row.length;
+    ByteBuffer length = ByteBuffer.allocate(4);
+    readFully(length, pos);
+    byte[] text = new byte[length.getInt(0)];
+    readFully(ByteBuffer.wrap(text), pos + 4);
+    return new byte[][] {row, text};
+  }
+
+  private void readFully(ByteBuffer b, long pos) throws IOException {
+    while(b.hasRemaining()) {
+      int n = reader.read(b, pos);
+      if(n < 0) throw new EOFException(file + " ends in the middle of an entry");
+      pos += n;
+    }
+  }
+
+  /**
+   * Brings the index up to date with the file: the entries it does not
+   * cover yet, which is all of them if it was started again, are added.
+   *
+   * @return the length of the complete entries in the file, or -1 if there
+   *   is no file or it does not start with the header
+   */
+  private long load(byte[] header) throws IOException {
+    if(!file.exists()) return -1;
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+    try {
+      byte[] h = new byte[header.length];
+      try {
+        in.readFully(h);
+      } catch(EOFException e) {
+        return -1;
+      }
+      if(!Arrays.equals(h, header)) return -1;
+      long pos = header.length;
+      long covered = index.covered();
+      if(covered >= pos && covered <= file.length()) {
+        skipFully(in, covered - pos);
+        pos = covered;
+      } else {
+        index.clear();
+      }
+      byte[] key = new byte[KEY_SIZE];
+      while(true) {
+        try {
+          in.readFully(key);
+          int rowLength = in.readInt();
+          skipFully(in, rowLength);
+          int textLength = in.readInt();
+          skipFully(in, textLength);
+          index.put(ByteBuffer.wrap(key).getLong(), pos);
+          pos += KEY_SIZE + 8 + rowLength + textLength;
+        } catch(EOFException e) {
+          return pos;
+        }
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void skipFully(DataInputStream in, long n) throws IOException {
+    if(n < 0) throw new EOFException();
+    while(n > 0) {
+      int skipped = in.skipBytes((int)Math.min(n, Integer.MAX_VALUE));
+      if(skipped <= 0) {
+        if(in.read() < 0) throw new EOFException();
+        skipped = 1;
+      }
+      n -= skipped;
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/*
+   File:        Rfc4180Encoder.java
+   Description: csv output quoted according to RFC 4180
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+/**
+ * Comma separated values as described by RFC 4180. A field is quoted only if
+ * it contains a comma, a double quote, CR or LF; quotes inside a quoted field
+ * are doubled. The values of a column are joined with the schema separator
+ * into one field and are otherwise left as they are.
+ */
+class Rfc4180Encoder extends RowEncoder {
+
+  /** The current field, which has to be complete before we know whether to quote it. */
+  private final StringBuilder field = new StringBuilder(256);
+
+  Rfc4180Encoder(ColumnSchema schema) {
+    super(schema);
+  }
+
+  @Override
+  public byte[] header() {
+    out.reset();
+    for(int i = 0; i < names.length; i++) {
+      if(i > 0) out.put(',');
+      putField(names[i]);
+    }
+    out.put('\r');
+    out.put('\n');
+    return out.toByteArray();
+  }
+
+  @Override
+  public void startColumn() {
+    if(column >= 0) out.put(',');
+    super.startColumn();
+    field.setLength(0);
+  }
+
+  @Override
+  public void startValue() {
+    if(values > 0) field.append(separator);
+    super.startValue();
+  }
+
+  @Override
+  public void append(CharSequence s, boolean clean) {
+    field.append(s);
+  }
+
+  @Override
+  public void endColumn() {
+    putField(field);
+  }
+
+  @Override
+  public byte[] endRow() {
+    out.put('\r');
+    out.put('\n');
+    return out.toByteArray();
+  }
+
+  /** Writes the text as a record with a single field. */
+  @Override
+  public byte[] text(String text) {
+    out.reset();
+    putField(text);
+    out.put('\r');
+    out.put('\n');
+    return out.toByteArray();
+  }
+
+  private void putField(CharSequence s) {
+    int n = s.length();
+    boolean quote = false;
+    for(int i = 0; i < n && !quote; i++) {
+      char c = s.charAt(i);
+      quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+    }
+    if(!quote) {
+      out.putUtf8(s);
+      return;
+    }
+    out.put('"');
+    int from = 0;
+    for(int i = 0; i < n; i++) {
+      if(s.charAt(i) == '"') {
+        out.putUtf8(s, from, i + 1);
+        out.put('"');
+        from = i + 1;
+      }
+    }
+    out.putUtf8(s, from, n);
+    out.put('"');
+  }
+}
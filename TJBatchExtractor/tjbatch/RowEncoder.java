@@ -0,0 +1,110 @@
+/*
+   File:        RowEncoder.java
+   Description: turns output rows and texts into the bytes of an output format
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+/**
+ * Encodes the rows produced by a {@link RowExtractor} and the texts that go
+ * with them. The extractor calls, for each row,
+ *
+ * <pre>
+ *   startRow()
+ *     startColumn()   once per column, in schema order
+ *       startValue() append(...)* endValue()   once per value
+ *     endColumn()
+ *   endRow()          returns the encoded row
+ * </pre>
+ *
+ * and a value may be appended in several pieces. Encoders keep their buffers
+ * from one row to the next and must only be used by one thread; each worker
+ * creates its own with {@link #create}. The encoded bytes are written
+ * unchanged to a {@link Sink}, so all the formatting work is done by the
+ * workers and none by the writer thread.
+ *
+ * The formats are:
+ * <ul>
+ * <li><b>csv</b>: the original output. Values within a column are joined with
+ *   the schema separator and nothing is quoted, so sources marked
+ *   <code>clean</code> have their commas and semicolons replaced by spaces.
+ * <li><b>rfc4180</b>: comma separated values as described by RFC 4180. Values
+ *   are joined as for csv but left intact; fields containing a comma, quote
+ *   or line break are quoted. Lines end with CRLF.
+ * <li><b>jsonl</b>: one JSON object per line, mapping each column name to the
+ *   array of its values. Each text is written as a JSON string.
+ * <li><b>binary</b>: see {@link BinaryEncoder}.
+ * </ul>
+ */
+public abstract class RowEncoder {
+
+  protected final String[] names;
+  protected final String separator;
+  protected final ByteBuilder out = new ByteBuilder(4096);
+
+  /** Index of the current column. */
+  protected int column;
+  /** Number of values started in the current column. */
+  protected int values;
+
+  protected RowEncoder(ColumnSchema schema) {
+    names = schema.names();
+    separator = schema.separator;
+  }
+
+  /**
+   * @param format csv, rfc4180, jsonl or binary
+   */
+  public static RowEncoder create(String format, ColumnSchema schema) {
+    if(format.equals("csv")) return new CsvEncoder(schema);
+    if(format.equals("rfc4180")) return new Rfc4180Encoder(schema);
+    if(format.equals("jsonl")) return new JsonLinesEncoder(schema);
+    if(format.equals("binary")) return new BinaryEncoder(schema);
+    throw new IllegalArgumentException("unknown output format '" + format + "'");
+  }
+
+  /** @return the bytes the row file starts with, or null. */
+  public abstract byte[] header();
+
+  /** @return the bytes the text file starts with, or null. */
+  public byte[] textHeader() {
+    return null;
+  }
+
+  public void startRow() {
+    out.reset();
+    column = -1;
+  }
+
+  public void startColumn() {
+    column++;
+    values = 0;
+  }
+
+  public void startValue() {
+    values++;
+  }
+
+  /**
+   * Appends (part of) a value.
+   *
+   * @param clean whether the source asked for commas and semicolons to be
+   *   removed; only the csv format, which cannot quote, does so
+   */
+  public abstract void append(CharSequence s, boolean clean);
+
+  public void endValue() {
+  }
+
+  public void endColumn() {
+  }
+
+  /** @return the encoded row. */
+  public abstract byte[] endRow();
+
+  /** @return the encoded text of a record. */
+  public abstract byte[] text(String text);
+}
@@ -0,0 +1,243 @@
+/*
+   File:        RowExtractor.java
+   Description: turns the annotations of a processed document into an output row
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.FeatureMap;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compiled {@link ColumnSchema}. The extractor itself is immutable and
+ * shared by all worker threads; everything that changes from one document
+ * to the next lives in a {@link Scratch} that each thread allocates once.
+ *
+ * Rather than asking the annotation set for every type separately, the
+ * annotations are put into one bucket per referenced type in a single pass
+ * over the set. Each bucket is then sorted by start offset. Annotations of
+ * one type that start at the same offset are left in whatever order
+ * {@link AnnotationSet#inDocumentOrder()} gives them, so that the output
+ * does not depend on how the document was processed.
+ *
+ * The values are handed to a {@link RowEncoder}, which decides how they are
+ * separated, quoted and encoded.
+ */
+public class RowExtractor {
+
+  private static final Comparator<Annotation> BY_START = new Comparator<Annotation>() {
+    public int compare(Annotation a, Annotation b) {
+      long x = a.getStartNode().getOffset().longValue();
+      long y = b.getStartNode().getOffset().longValue();
+      return x < y ? -1 : (x == y ? 0 : 1);
+    }
+  };
+
+  /** Per thread working storage, reused from one document to the next. */
+  public static class Scratch {
+    final Annotation[][] buckets;
+    final int[] sizes;
+
+    Scratch(int types) {
+      buckets = new Annotation[types][8];
+      sizes = new int[types];
+    }
+
+    void add(int type, Annotation a) {
+      Annotation[] b = buckets[type];
+      if(sizes[type] == b.length) buckets[type] = b = Arrays.copyOf(b, b.length * 2);
+      b[sizes[type]++] = a;
+    }
+  }
+
+  private final String[] names;
+  /** Annotation types referenced by the schema. */
+  private final String[] types;
+  private final Map<String, Integer> typeIndex = new HashMap<String, Integer>();
+  /** Whether the annotations of a type are needed in document order. */
+  private final boolean[] ordered;
+  /** The sources of each column, with the annotation type replaced by its index. */
+  private final ColumnSchema.Source[][] columns;
+  private final int[][] columnTypes;
+
+  RowExtractor(ColumnSchema schema) {
+    names = schema.names();
+    int n = schema.columns.size();
+    columns = new ColumnSchema.Source[n][];
+    columnTypes = new int[n][];
+    for(int i = 0; i < n; i++) {
+      List<ColumnSchema.Source> sources = schema.columns.get(i).sources;
+      columns[i] = sources.toArray(new ColumnSchema.Source[sources.size()]);
+      columnTypes[i] = new int[columns[i].length];
+      for(int j = 0; j < columns[i].length; j++) {
+        String type = columns[i][j].type;
+        if(type == null) continue;
+        Integer t = typeIndex.get(type);
+        if(t == null) {
+          t = typeIndex.size();
+          typeIndex.put(type, t);
+        }
+        columnTypes[i][j] = t;
+      }
+    }
+    types = new String[typeIndex.size()];
+    for(Map.Entry<String, Integer> e : typeIndex.entrySet()) types[e.getValue()] = e.getKey();
+    ordered = new boolean[types.length];
+    for(int i = 0; i < n; i++) {
+      for(int j = 0; j < columns[i].length; j++) {
+        if(columns[i][j].kind == ColumnSchema.SOURCE_FEATURES) ordered[columnTypes[i][j]] = true;
+      }
+    }
+  }
+
+  public String[] names() {
+    return names;
+  }
+
+  public Scratch newScratch() {
+    return new Scratch(types.length);
+  }
+
+  /**
+   * @param annots the annotations of the processed document
+   * @param prep the pre-processed record the document was created from
+   * @param flags what went wrong while processing the record, or null
+   * @param s the calling thread's scratch space
+   * @param enc the calling thread's encoder
+   * @return the encoded row
+   */
+  public byte[] extract(AnnotationSet annots, Preprocessed prep, List<String> flags, Scratch s,
+          RowEncoder enc) {
+    bucket(annots, s);
+    enc.startRow();
+    for(int i = 0; i < columns.length; i++) {
+      enc.startColumn();
+      for(int j = 0; j < columns[i].length; j++) {
+        appendSource(enc, columns[i][j], columnTypes[i][j], prep, flags, s);
+      }
+      enc.endColumn();
+    }
+    // do not keep the document alive through the scratch space
+    for(int t = 0; t < types.length; t++) {
+      Arrays.fill(s.buckets[t], 0, s.sizes[t], null);
+    }
+    return enc.endRow();
+  }
+
+  /**
+   * @return a row that holds nothing but the flags, for a record that could
+   *   not be processed
+   */
+  public byte[] emptyRow(List<String> flags, RowEncoder enc) {
+    enc.startRow();
+    for(int i = 0; i < columns.length; i++) {
+      enc.startColumn();
+      for(int j = 0; j < columns[i].length; j++) {
+        if(columns[i][j].kind == ColumnSchema.SOURCE_FLAGS) appendAll(enc, flags, columns[i][j]);
+      }
+      enc.endColumn();
+    }
+    return enc.endRow();
+  }
+
+  private void bucket(AnnotationSet annots, Scratch s) {
+    Arrays.fill(s.sizes, 0);
+    for(Annotation a : annots) {
+      Integer t = typeIndex.get(a.getType());
+      if(t != null) s.add(t, a);
+    }
+    for(int t = 0; t < types.length; t++) {
+      int n = s.sizes[t];
+      if(!ordered[t] || n < 2) continue;
+      Annotation[] b = s.buckets[t];
+      Arrays.sort(b, 0, n, BY_START);
+      for(int i = 1; i < n; i++) {
+        if(BY_START.compare(b[i - 1], b[i]) == 0) {
+          // same start offset; let the annotation set decide the order
+          int k = 0;
+          Iterator<Annotation> it = annots.get(types[t]).inDocumentOrder().iterator();
+          while(it.hasNext()) b[k++] = it.next();
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Hands the values of one source to the encoder.
+   */
+  private void appendSource(RowEncoder enc, ColumnSchema.Source src, int type,
+          Preprocessed prep, List<String> flags, Scratch s) {
+    switch(src.kind) {
+      case ColumnSchema.SOURCE_COUNT:
+        appendValue(enc, Integer.toString(s.sizes[type]), src);
+        return;
+      case ColumnSchema.SOURCE_TITLE_AGE:
+        appendValue(enc, prep.titleAge, src);
+        return;
+      case ColumnSchema.SOURCE_MAILTO:
+        appendAll(enc, prep.mailto, src);
+        return;
+      case ColumnSchema.SOURCE_HREF:
+        appendAll(enc, prep.href, src);
+        return;
+      case ColumnSchema.SOURCE_IMPORT:
+        appendAll(enc, prep.imports, src);
+        return;
+      case ColumnSchema.SOURCE_SRC:
+        appendAll(enc, prep.src, src);
+        return;
+      case ColumnSchema.SOURCE_FLAGS:
+        if(flags != null) appendAll(enc, flags, src);
+        return;
+      default:
+        break;
+    }
+    Annotation[] b = s.buckets[type];
+    String[] features = src.features;
+    for(int i = 0; i < s.sizes[type]; i++) {
+      FeatureMap fm = b[i].getFeatures();
+      if(src.missing == ColumnSchema.MISSING_SKIP && !hasAny(fm, features)) continue;
+      enc.startValue();
+      for(int f = 0; f < features.length; f++) {
+        if(f > 0) enc.append("/", false);
+        Object value = fm.get(features[f]);
+        if(value != null) appendPart(enc, value.toString(), src);
+        else if(src.missing == ColumnSchema.MISSING_NONE) enc.append("none", false);
+      }
+      enc.endValue();
+    }
+  }
+
+  private static boolean hasAny(FeatureMap fm, String[] features) {
+    for(String f : features) {
+      if(fm.get(f) != null) return true;
+    }
+    return false;
+  }
+
+  private static void appendAll(RowEncoder enc, List<String> values, ColumnSchema.Source src) {
+    for(int i = 0; i < values.size(); i++) appendValue(enc, values.get(i), src);
+  }
+
+  private static void appendValue(RowEncoder enc, String value, ColumnSchema.Source src) {
+    enc.startValue();
+    appendPart(enc, value, src);
+    enc.endValue();
+  }
+
+  private static void appendPart(RowEncoder enc, String value, ColumnSchema.Source src) {
+    enc.append(src.lower ? value.toLowerCase() : value, src.clean);
+  }
+}
@@ -0,0 +1,274 @@
+/*
+   File:        Server.java
+   Description: extracts records sent over HTTP with the application kept loaded
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the application loaded and extracts the records sent to it over
+ * HTTP, so that a small batch costs only its own processing and not the
+ * seconds it takes to start GATE, load the application and duplicate it.
+ *
+ * <pre>
+ *   POST /extract[?format=F][&amp;header=true]
+ *       the body holds one record per line, UTF-8 encoded and written as
+ *       in an input file; the response holds their rows, in the same order,
+ *       in format F (default: the --format of the command line), preceded
+ *       by the header of the format if asked for
+ *   GET /stats
+ *       the number of requests and records served, and the time per stage
+ *       if the server was started with --profile
+ * </pre>
+ *
+ * Requests are handled by a fixed number of threads, each with a
+ * {@link Worker} of its own for every format it has been asked for; the
+ * workers share the pipelines of a {@link ControllerPool}. The records of a
+ * request are processed in order by the thread that handles it, so clients
+ * that want all threads busy send several requests at once.
+ */
+public class Server {
+
+  /** Processes records on one thread. */
+  public interface Worker {
+
+    /**
+     * Sets the row and text of a record. A record that cannot be processed
+     * gets an empty, flagged row rather than an exception.
+     */
+    void process(Record rec);
+  }
+
+  /** Creates the worker of a handler thread for an output format. */
+  public interface WorkerFactory {
+
+    Worker create(String format, RowEncoder encoder);
+  }
+
+  /** A worker and the encoder it writes with. */
+  private static final class Slot {
+    final RowEncoder encoder;
+    final Worker worker;
+
+    Slot(RowEncoder encoder, Worker worker) {
+      this.encoder = encoder;
+      this.worker = worker;
+    }
+  }
+
+  private final HttpServer http;
+  private final ExecutorService handlers;
+  private final ColumnSchema columns;
+  private final String format;
+  private final WorkerFactory factory;
+  private final Profile profile;
+  private final int pipelines;
+  private final ThreadLocal<Map<String, Slot>> slots = new ThreadLocal<Map<String, Slot>>() {
+    @Override
+    protected Map<String, Slot> initialValue() {
+      return new HashMap<String, Slot>();
+    }
+  };
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong records = new AtomicLong();
+
+  /**
+   * @param threads the number of requests handled at once
+   * @param format the format of a request that names none
+   * @param profile the profile the workers record their times in, or null
+   */
+  public Server(InetSocketAddress address, int threads, ColumnSchema columns, String format,
+      WorkerFactory factory, Profile profile, int pipelines) throws IOException {
+    this.columns = columns;
+    this.format = format;
+    this.factory = factory;
+    this.profile = profile;
+    this.pipelines = pipelines;
+    // fails straight away on a format that does not exist
+    RowEncoder.create(format, columns);
+    // a small response goes out at once rather than waiting for the
+    // client to acknowledge the headers
+    if(System.getProperty("sun.net.httpserver.nodelay") == null) {
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+    handlers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        return new Thread(r, "Server" + count.getAndIncrement());
+      }
+    });
+    http = HttpServer.create(address, 0);
+    http.setExecutor(handlers);
+    http.createContext("/extract", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          extract(exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    http.createContext("/stats", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          stats(exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+  }
+
+  public InetSocketAddress address() {
+    return http.getAddress();
+  }
+
+  public void start() {
+    http.start();
+  }
+
+  /**
+   * Stops taking requests, lets the ones in progress finish and stops the
+   * handler threads.
+   */
+  public void stop() throws InterruptedException {
+    http.stop(1);
+    handlers.shutdown();
+    handlers.awaitTermination(1, TimeUnit.MINUTES);
+  }
+
+  /**
+   * Runs records through the handler threads before the server starts, so
+   * that the first requests find the pipelines, the documents of the
+   * workers and the compiled code ready. The rows are thrown away.
+   */
+  public void warmUp(List<String> lines) throws Exception {
+    final int chunk = 16;
+    List<Future<?>> done = new ArrayList<Future<?>>();
+    for(int i = 0; i < lines.size(); i += chunk) {
+      final List<String> part = lines.subList(i, Math.min(i + chunk, lines.size()));
+      done.add(handlers.submit(new Runnable() {
+        public void run() {
+          Slot slot = slot(format);
+          for(String line : part) slot.worker.process(new Record(0, line));
+        }
+      }));
+    }
+    for(Future<?> f : done) f.get();
+  }
+
+  /** @return this thread's worker for a format. */
+  private Slot slot(String format) {
+    Map<String, Slot> mine = slots.get();
+    Slot slot = mine.get(format);
+    if(slot == null) {
+      RowEncoder encoder = RowEncoder.create(format, columns);
+      slot = new Slot(encoder, factory.create(format, encoder));
+      mine.put(format, slot);
+    }
+    return slot;
+  }
+
+  private void extract(HttpExchange exchange) throws IOException {
+    if(!exchange.getRequestMethod().equals("POST")) {
+      respond(exchange, 405, "POST the records to /extract, one per line\n");
+      return;
+    }
+    Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+    String f = query.containsKey("format") ? query.get("format") : format;
+    Slot slot;
+    try {
+      slot = slot(f);
+    } catch(IllegalArgumentException e) {
+      respond(exchange, 400, e.getMessage() + "\n");
+      return;
+    }
+    requests.incrementAndGet();
+    exchange.getResponseHeaders().set("Content-Type", contentType(f));
+    // the rows are streamed back, so a large batch is not held in memory
+    exchange.sendResponseHeaders(200, 0);
+    OutputStream out = new BufferedOutputStream(exchange.getResponseBody(), 65536);
+    byte[] header = slot.encoder.header();
+    if(header != null && "true".equals(query.get("header"))) out.write(header);
+    BufferedReader in = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
+    long seq = 0;
+    String line;
+    while((line = in.readLine()) != null) {
+      Record rec = new Record(seq++, line);
+      slot.worker.process(rec);
+      out.write(rec.row);
+    }
+    records.addAndGet(seq);
+    out.close();
+  }
+
+  private void stats(HttpExchange exchange) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes, false, "UTF-8");
+    out.println("requests: " + requests.get());
+    out.println("records: " + records.get());
+    out.println("pipelines: " + pipelines);
+    if(profile != null) {
+      out.println("Time per stage:");
+      profile.report(out);
+    }
+    out.close();
+    respond(exchange, 200, bytes.toString("UTF-8"));
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+
+  private static String contentType(String format) {
+    if(format.equals("jsonl")) return "application/x-ndjson; charset=utf-8";
+    if(format.equals("binary")) return "application/octet-stream";
+    return "text/csv; charset=utf-8";
+  }
+
+  private static Map<String, String> query(String raw) throws IOException {
+    Map<String, String> params = new HashMap<String, String>();
+    if(raw == null) return params;
+    for(String param : raw.split("&")) {
+      int eq = param.indexOf('=');
+      if(eq < 0) params.put(URLDecoder.decode(param, "UTF-8"), "");
+      else params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"),
+          URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+    }
+    return params;
+  }
+}
@@ -0,0 +1,62 @@
+/*
+   File:        SideFile.java
+   Description: a log of records that need a closer look, written next to the output
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * A UTF-8 text file, shared by all workers, that gets one entry per record
+ * worth reporting. The file is only created once there is something to
+ * write, and every entry is flushed straight away, so that the file is of
+ * use even if the run does not finish.
+ */
+public class SideFile {
+
+  private final File file;
+  private final boolean append;
+  private Writer out;
+  private long entries;
+
+  /**
+   * @param append whether to add to an existing file rather than replace it
+   */
+  public SideFile(File file, boolean append) {
+    this.file = file;
+    this.append = append;
+  }
+
+  public File file() {
+    return file;
+  }
+
+  /** Writes one entry, followed by a line break. */
+  public synchronized void write(String entry) throws IOException {
+    if(out == null) {
+      out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append), "UTF-8"));
+    }
+    out.write(entry);
+    out.write('\n');
+    out.flush();
+    entries++;
+  }
+
+  /** @return the number of entries written in this run. */
+  public synchronized long entries() {
+    return entries;
+  }
+
+  public synchronized void close() throws IOException {
+    if(out != null) out.close();
+  }
+}
@@ -0,0 +1,103 @@
+/*
+   File:        Sink.java
+   Description: an output file of the extraction pipeline
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A buffered output file, optionally gzip compressed, that takes the bytes
+ * produced by a {@link RowEncoder}. Only one thread writes to a sink.
+ *
+ * A gzip sink writes a gzip member per {@link #sync()}, so that the file is
+ * a valid gzip file whenever it is cut at a position returned by sync().
+ * Readers see the members as one stream.
+ */
+public class Sink {
+
+  private static final int BUFFER_SIZE = 65536;
+
+  private final FileOutputStream file;
+  private final boolean gzip;
+  /** The stream writes go to, or null until the first write after a sync. */
+  private OutputStream out;
+  /** The gzip member being written, if any. */
+  private GZIPOutputStream zip;
+
+  public Sink(File file, boolean gzip) throws IOException {
+    this(file, gzip, false);
+  }
+
+  /**
+   * @param append whether to add to the end of an existing file
+   */
+  public Sink(File file, boolean gzip, boolean append) throws IOException {
+    this.file = new FileOutputStream(file, append);
+    this.gzip = gzip;
+  }
+
+  private OutputStream out() throws IOException {
+    if(out == null) {
+      if(gzip) zip = new GZIPOutputStream(file, BUFFER_SIZE);
+      out = new BufferedOutputStream(gzip ? zip : file, BUFFER_SIZE);
+    }
+    return out;
+  }
+
+  /** Writes b, if it is not null. */
+  public void write(byte[] b) throws IOException {
+    if(b != null) out().write(b);
+  }
+
+  public void flush() throws IOException {
+    if(out != null) out.flush();
+  }
+
+  /**
+   * Forces everything written so far to disk.
+   *
+   * @return the size of the file, which is where the next write will start
+   */
+  public long sync() throws IOException {
+    if(out != null) {
+      out.flush();
+      if(gzip) {
+        // end the member; the next write starts a new one
+        zip.finish();
+        zip = null;
+        out = null;
+      }
+    }
+    file.getFD().sync();
+    return file.getChannel().position();
+  }
+
+  public void close() throws IOException {
+    // an empty gzip file still needs one (empty) member
+    if(gzip && out == null && file.getChannel().position() == 0) out();
+    if(out != null) out.close();
+    else file.close();
+  }
+
+  /** Cuts a file back to the given size, as recorded by a {@link Checkpoint}. */
+  public static void truncate(File f, long size) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(f, "rw");
+    try {
+      if(raf.length() < size) throw new IOException(f + " is shorter than its checkpoint");
+      raf.setLength(size);
+    } finally {
+      raf.close();
+    }
+  }
+}
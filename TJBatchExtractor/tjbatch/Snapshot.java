@@ -0,0 +1,438 @@
+/*
+   File:        Snapshot.java
+   Description: an image of the initialised application, restored without
+                reading its resources again
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import gate.CorpusController;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.ProcessingResource;
+import gate.Resource;
+import gate.creole.CustomDuplication;
+import gate.creole.ResourceData;
+import gate.creole.SerialController;
+import gate.creole.metadata.Sharable;
+import gate.creole.gazetteer.LinearDefinition;
+import gate.creole.gazetteer.LinearNode;
+import gate.jape.RightHandSide;
+import gate.util.GateClassLoader;
+import gate.util.GateException;
+import gate.util.Javac;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An image of the application as it is once loaded: every PR, initialised,
+ * written with Java serialization. Restoring it reads no grammar, gazetteer
+ * list or tagger configuration and runs no compiler, so a new process is
+ * ready in a fraction of the time loading the application takes.
+ *
+ * Besides the PRs, the image holds the bytecode of the right hand side
+ * actions of the JAPE grammars they contain, which a JAPE transducer read
+ * back would otherwise compile again. The JAPE Plus transducer writes its
+ * own compiled grammar. The word lists a gazetteer was built from are left
+ * out: it matches with the FSM it built from them, and only needs them to
+ * be edited.
+ *
+ * The image starts with the SHA-256 of every file of the application
+ * directory, the plugins included. An image whose files have changed since
+ * is not restored, and the application should be loaded and written again.
+ * A file whose size and modification time are those recorded is taken to
+ * be unchanged without reading it.
+ *
+ * The copies of the application made from an image are independent of
+ * each other, as duplicates are. Each PR is read from the image for the
+ * first copy. The other copies duplicate the PRs that share what they built
+ * with their duplicates, those that implement {@link CustomDuplication} or
+ * have a {@link Sharable} parameter (the FSM of the gazetteer, the
+ * configuration of the taggers and the compiled classes of the JAPE Plus
+ * transducer), and read the rest from the image again.
+ */
+public final class Snapshot {
+
+  private static final byte[] MAGIC = {'T', 'J', 'S', '1'};
+
+  private final File file;
+  private final File appDir;
+
+  /**
+   * @param file the image
+   * @param appDir the directory of the application it is made from
+   */
+  public Snapshot(File file, File appDir) {
+    this.file = file;
+    this.appDir = appDir;
+  }
+
+  public File file() {
+    return file;
+  }
+
+  /** An ObjectOutputStream that leaves out what a restored PR does not need. */
+  private static final class Out extends ObjectOutputStream {
+    /** The sources of the right hand side actions written, by class name. */
+    final Map<String, String> actions = new HashMap<String, String>();
+
+    Out(ByteArrayOutputStream bytes) throws IOException {
+      super(bytes);
+      enableReplaceObject(true);
+    }
+
+    @Override
+    protected Object replaceObject(Object obj) {
+      if(obj instanceof RightHandSide) {
+        RightHandSide rhs = (RightHandSide)obj;
+        actions.put(rhs.getActionClassName(), rhs.getActionClassString());
+      } else if(obj instanceof LinearDefinition) {
+        return null;
+      } else if(obj instanceof Map && !((Map<?, ?>)obj).isEmpty()
+          && ((Map<?, ?>)obj).keySet().iterator().next() instanceof LinearNode) {
+        // the gazetteer lists, by their entry in the definition
+        return new HashMap<Object, Object>();
+      }
+      return obj;
+    }
+  }
+
+  /** An ObjectInputStream that finds the classes of the plugins. */
+  private static final class In extends ObjectInputStream {
+    In(byte[] bytes) throws IOException {
+      super(new ByteArrayInputStream(bytes));
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+      try {
+        return Class.forName(desc.getName(), false, Gate.getClassLoader());
+      } catch(ClassNotFoundException e) {
+        // primitive types
+        return super.resolveClass(desc);
+      }
+    }
+  }
+
+  /** A class loader that keeps the bytecode of the classes compiled into it. */
+  private static final class RecordingClassLoader extends GateClassLoader {
+    final Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+
+    RecordingClassLoader() {
+      super("TJBatchExtractor snapshot", Gate.getClassLoader());
+    }
+
+    @Override
+    public Class<?> defineGateClass(String name, byte[] bytes, int offset, int length) {
+      classes.put(name, Arrays.copyOfRange(bytes, offset, offset + length));
+      return super.defineGateClass(name, bytes, offset, length);
+    }
+  }
+
+  /**
+   * Writes the PRs of an application, which should not have run yet, to the
+   * image.
+   */
+  public void write(CorpusController application) throws IOException, GateException {
+    List<String> types = new ArrayList<String>();
+    List<byte[]> prs = new ArrayList<byte[]>();
+    Map<String, String> actions = new HashMap<String, String>();
+    for(Object pr : application.getPRs()) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      Out out = new Out(bytes);
+      out.writeObject(pr);
+      out.close();
+      types.add(pr.getClass().getName());
+      prs.add(bytes.toByteArray());
+      actions.putAll(out.actions);
+    }
+    RecordingClassLoader compiled = new RecordingClassLoader();
+    if(!actions.isEmpty()) Javac.loadClasses(actions, compiled);
+    ByteArrayOutputStream features = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(features);
+    out.writeObject(application.getFeatures());
+    out.close();
+
+    File tmp = new File(file.getPath() + ".tmp");
+    DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+    try {
+      data.write(MAGIC);
+      Map<String, Stamp> fingerprint = fingerprint(null);
+      data.writeInt(fingerprint.size());
+      for(Map.Entry<String, Stamp> e : fingerprint.entrySet()) {
+        data.writeUTF(e.getKey());
+        data.writeLong(e.getValue().length);
+        data.writeLong(e.getValue().modified);
+        data.writeUTF(e.getValue().digest);
+      }
+      // the plugins the classes of the PRs come from
+      Set<?> plugins = Gate.getCreoleRegister().getDirectories();
+      data.writeInt(plugins.size());
+      for(Object url : plugins) {
+        try {
+          data.writeUTF(appDir.toURI().relativize(((URL)url).toURI()).toString());
+        } catch(URISyntaxException e) {
+          throw new GateException(e);
+        }
+      }
+      data.writeUTF(application.getClass().getName());
+      data.writeUTF(application.getName());
+      writeBytes(data, features.toByteArray());
+      data.writeInt(compiled.classes.size());
+      for(Map.Entry<String, byte[]> c : compiled.classes.entrySet()) {
+        data.writeUTF(c.getKey());
+        writeBytes(data, c.getValue());
+      }
+      data.writeInt(prs.size());
+      for(int i = 0; i < prs.size(); i++) {
+        data.writeUTF(types.get(i));
+        writeBytes(data, prs.get(i));
+      }
+    } finally {
+      data.close();
+    }
+    if(!tmp.renameTo(file)) {
+      file.delete();
+      if(!tmp.renameTo(file)) throw new IOException("Could not write " + file);
+    }
+  }
+
+  /**
+   * Restores copies of the application from the image.
+   *
+   * @return the copies, or null if there is no image or it was made from
+   *   other files than those of the application directory now
+   */
+  public List<CorpusController> read(int copies) throws IOException, GateException {
+    if(!file.isFile()) return null;
+    DataInputStream data = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+    try {
+      Map<String, Stamp> fingerprint = readFingerprint(data);
+      if(fingerprint == null || !fingerprint.equals(fingerprint(fingerprint))) return null;
+
+      for(int i = data.readInt(); i > 0; i--) {
+        Gate.getCreoleRegister().registerDirectories(appDir.toURI().resolve(data.readUTF()).toURL());
+      }
+      String type = data.readUTF();
+      String name = data.readUTF();
+      byte[] features = readBytes(data);
+      // the action classes go where a right hand side that is read back
+      // looks for them
+      GateClassLoader gateLoader = Gate.getClassLoader();
+      for(int i = data.readInt(); i > 0; i--) {
+        String className = data.readUTF();
+        byte[] bytes = readBytes(data);
+        if(gateLoader.findExistingClass(className) == null) {
+          gateLoader.defineGateClass(className, bytes, 0, bytes.length);
+        }
+      }
+      int count = data.readInt();
+      byte[][] prs = new byte[count][];
+      for(int i = 0; i < count; i++) {
+        data.readUTF();
+        prs[i] = readBytes(data);
+      }
+
+      List<CorpusController> restored = new ArrayList<CorpusController>();
+      List<ProcessingResource> first = null;
+      for(int c = 0; c < copies; c++) {
+        List<ProcessingResource> copy = new ArrayList<ProcessingResource>();
+        for(int i = 0; i < count; i++) {
+          if(first != null && sharesWithDuplicates(first.get(i))) {
+            copy.add((ProcessingResource)Factory.duplicate(first.get(i)));
+          } else {
+            copy.add((ProcessingResource)register((Resource)readObject(prs[i])));
+          }
+        }
+        if(first == null) first = copy;
+        CorpusController controller = (CorpusController)Factory.createResource(type,
+            Factory.newFeatureMap(), (FeatureMap)readObject(features), name);
+        ((SerialController)controller).setPRs(copy);
+        restored.add(controller);
+      }
+      return restored;
+    } catch(ClassNotFoundException e) {
+      throw new GateException(e);
+    } finally {
+      data.close();
+    }
+  }
+
+  /**
+   * @return the SHA-256 of the path and contents of every file of the
+   *   application directory, the same files whose stamps the image starts
+   *   with. Files the image has a stamp for are only read if their size or
+   *   modification time has changed.
+   */
+  public String applicationDigest() throws IOException {
+    Map<String, Stamp> known = null;
+    if(file.isFile()) {
+      DataInputStream data = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+      try {
+        known = readFingerprint(data);
+      } catch(IOException e) {
+        // an image that cannot be read is of no help
+      } finally {
+        data.close();
+      }
+    }
+    MessageDigest md = ResultCache.digest();
+    for(Map.Entry<String, Stamp> e : fingerprint(known).entrySet()) {
+      md.update((e.getKey() + "\t" + e.getValue().digest + "\n").getBytes("UTF-8"));
+    }
+    return hex(md.digest());
+  }
+
+  /**
+   * @return the stamps the image starts with, or null if it is not an image
+   */
+  private static Map<String, Stamp> readFingerprint(DataInputStream data) throws IOException {
+    byte[] magic = new byte[MAGIC.length];
+    data.readFully(magic);
+    if(!Arrays.equals(magic, MAGIC)) return null;
+    Map<String, Stamp> fingerprint = new TreeMap<String, Stamp>();
+    for(int i = data.readInt(); i > 0; i--) {
+      fingerprint.put(data.readUTF(), new Stamp(data.readLong(), data.readLong(), data.readUTF()));
+    }
+    return fingerprint;
+  }
+
+  private static Object readObject(byte[] bytes) throws IOException, ClassNotFoundException {
+    In in = new In(bytes);
+    try {
+      return in.readObject();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static boolean sharesWithDuplicates(Resource resource) {
+    if(resource instanceof CustomDuplication) return true;
+    for(Method m : resource.getClass().getMethods()) {
+      if(m.isAnnotationPresent(Sharable.class)) return true;
+    }
+    return false;
+  }
+
+  /** Lists a restored PR among the instances of its type, as if it was created. */
+  private static Resource register(Resource resource) {
+    ResourceData data = Gate.getCreoleRegister().get(resource.getClass().getName());
+    if(data != null) data.addInstantiation(resource);
+    return resource;
+  }
+
+  private static void writeBytes(DataOutputStream data, byte[] bytes) throws IOException {
+    data.writeInt(bytes.length);
+    data.write(bytes);
+  }
+
+  private static byte[] readBytes(DataInputStream data) throws IOException {
+    byte[] bytes = new byte[data.readInt()];
+    data.readFully(bytes);
+    return bytes;
+  }
+
+  /** The size, modification time and SHA-256 of a file. */
+  private static final class Stamp {
+    final long length;
+    final long modified;
+    final String digest;
+
+    Stamp(long length, long modified, String digest) {
+      this.length = length;
+      this.modified = modified;
+      this.digest = digest;
+    }
+
+    /** Files are the same if their contents are, whenever they were written. */
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Stamp && digest.equals(((Stamp)o).digest);
+    }
+
+    @Override
+    public int hashCode() {
+      return digest.hashCode();
+    }
+  }
+
+  /**
+   * @param known the stamps recorded in the image, whose digests are
+   *   trusted for files of the same size and modification time, or null
+   * @return the stamp of every file of the application directory, by path,
+   *   leaving out the image and the compiled JAPE Plus grammars, which are
+   *   made from the other files
+   */
+  private Map<String, Stamp> fingerprint(Map<String, Stamp> known) throws IOException {
+    Map<String, Stamp> fingerprint = new TreeMap<String, Stamp>();
+    fingerprint(appDir, "", known, fingerprint, new byte[65536]);
+    return fingerprint;
+  }
+
+  private void fingerprint(File dir, String prefix, Map<String, Stamp> known, Map<String, Stamp> fingerprint,
+      byte[] buf) throws IOException {
+    File[] files = dir.listFiles();
+    if(files == null) return;
+    for(File f : files) {
+      String path = prefix + f.getName();
+      if(f.isDirectory()) {
+        fingerprint(f, path + "/", known, fingerprint, buf);
+      } else if(!f.getName().endsWith(".jplusc") && !f.getName().startsWith(file.getName())) {
+        long length = f.length();
+        long modified = f.lastModified();
+        Stamp stamp = known == null ? null : known.get(path);
+        if(stamp == null || stamp.length != length || stamp.modified != modified) {
+          stamp = new Stamp(length, modified, digest(f, buf));
+        }
+        fingerprint.put(path, stamp);
+      }
+    }
+  }
+
+  private static String digest(File f, byte[] buf) throws IOException {
+    MessageDigest md = ResultCache.digest();
+    InputStream in = new FileInputStream(f);
+    try {
+      int n;
+      while((n = in.read(buf)) > 0) md.update(buf, 0, n);
+    } finally {
+      in.close();
+    }
+    return hex(md.digest());
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder();
+    for(byte b : bytes) hex.append(String.format("%02x", b & 0xff));
+    return hex.toString();
+  }
+}
@@ -0,0 +1,68 @@
+/*
+   File:        TimedController.java
+   Description: a controller that times the executions of its PRs for the profile
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import gate.Factory;
+import gate.Gate;
+import gate.creole.ExecutionException;
+import gate.creole.SerialAnalyserController;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * A stand-in for the controller of a {@link Pipeline} that runs the same
+ * PRs and records how long each of them took in the {@link Profile.Times}
+ * of the worker running the pipeline. GATE's own timing of the PRs is in
+ * whole milliseconds and summed over the run, so it cannot give
+ * percentiles.
+ *
+ * Like {@link RecyclableDocument}, it is not created through the Factory,
+ * so that it can be dropped again without deleting the PRs it shares with
+ * the application.
+ */
+class TimedController extends SerialAnalyserController {
+
+  private static final long serialVersionUID = 1L;
+
+  private final Pipeline pipeline;
+
+  /**
+   * @param prs the PRs of the application, in order
+   */
+  TimedController(Pipeline pipeline, String name, Collection<?> prs) {
+    this.pipeline = pipeline;
+    setName(name);
+    setFeatures(Factory.newFeatureMap());
+    setPRs(prs);
+  }
+
+  protected void runComponent(int i) throws ExecutionException {
+    Profile.Times times = pipeline.times;
+    if(times == null) {
+      super.runComponent(i);
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      super.runComponent(i);
+    } finally {
+      times.record(Profile.FIRST_PR + i, System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Lets go of the PRs without deleting them, as cleanup() would.
+   */
+  void release() {
+    Gate.getCreoleRegister().removeCreoleListener(this);
+    setCorpus(null);
+    setPRs(Collections.emptyList());
+  }
+}
@@ -0,0 +1,53 @@
+/*
+   File:        Watchdog.java
+   Description: interrupts documents that take longer than their time budget
+
+   Copyright (C) 2014, Carnegie Mellon University
+   This project is distributed under the MIT license (see TJBatchExtractor.java)
+*/
+
+package tjbatch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A background thread that looks at the pipelines a few times per budget
+ * and interrupts those whose document has run out of time, so that one
+ * pathological ad cannot hold a worker up indefinitely.
+ */
+public class Watchdog implements Runnable {
+
+  private final List<Pipeline> pipelines;
+  private final long interval;
+  private final Thread t;
+  private volatile boolean stopped;
+
+  /**
+   * @param budget the time budget of a document in milliseconds
+   */
+  public Watchdog(List<Pipeline> pipelines, long budget) {
+    this.pipelines = new ArrayList<Pipeline>(pipelines);
+    this.interval = Math.min(Math.max(budget / 10, 10), 1000);
+    t = new Thread(this, "Watchdog");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  public void run() {
+    while(!stopped) {
+      try {
+        Thread.sleep(interval);
+      } catch(InterruptedException e) {
+        return;
+      }
+      long now = System.currentTimeMillis();
+      for(Pipeline p : pipelines) p.check(now);
+    }
+  }
+
+  public void stop() {
+    stopped = true;
+    t.interrupt();
+  }
+}